@@ -27,12 +27,23 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.scijava.Cancelable;
 
+import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.helper.ctc.CTCTrackingMetricsType;
@@ -41,7 +52,6 @@ import fiji.plugin.trackmate.helper.model.ParameterSweepModelIO;
 import fiji.plugin.trackmate.helper.model.detector.DetectorSweepModel;
 import fiji.plugin.trackmate.helper.model.tracker.TrackerSweepModel;
 import fiji.plugin.trackmate.helper.spt.SPTTrackingMetricsType;
-import fiji.plugin.trackmate.io.TmXmlWriter;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.IJ;
 import ij.ImagePlus;
@@ -50,6 +60,12 @@ import net.imglib2.util.ValuePair;
 public class HelperRunner implements Runnable, Cancelable
 {
 
+	/**
+	 * Default max number of detection configurations run concurrently. Each
+	 * of them holds its detection results in memory.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_DETECTIONS = 2;
+
 	private final String gtPath;
 
 	private final ImagePlus imp;
@@ -66,7 +82,7 @@ public class HelperRunner implements Runnable, Cancelable
 
 	private final TrackingMetricsType type;
 
-	private String cancelReason;
+	private volatile String cancelReason;
 
 	private final ResultsCrawler crawler;
 
@@ -74,6 +90,16 @@ public class HelperRunner implements Runnable, Cancelable
 
 	private final String modelPath;
 
+	private int numThreads;
+
+	private int maxConcurrentDetections;
+
+	private double maxDetectionTime;
+
+	private double maxTrackingTime;
+
+	private int maxSpots;
+
 	private HelperRunner(
 			final TrackingMetricsType type,
 			final String gtPath,
@@ -84,7 +110,12 @@ public class HelperRunner implements Runnable, Cancelable
 			final String savePath,
 			final Logger batchLogger,
 			final Logger trackmateLogger,
-			final boolean saveTrackMateFiles )
+			final boolean saveTrackMateFiles,
+			final int numThreads,
+			final int maxConcurrentDetections,
+			final double maxDetectionTime,
+			final double maxTrackingTime,
+			final int maxSpots )
 	{
 		this.type = type;
 		this.gtPath = gtPath;
@@ -96,6 +127,11 @@ public class HelperRunner implements Runnable, Cancelable
 		this.batchLogger = batchLogger;
 		this.trackmateLogger = trackmateLogger;
 		this.saveTrackMateFiles = saveTrackMateFiles;
+		this.numThreads = numThreads;
+		this.maxConcurrentDetections = maxConcurrentDetections;
+		this.maxDetectionTime = maxDetectionTime;
+		this.maxTrackingTime = maxTrackingTime;
+		this.maxSpots = maxSpots;
 		this.crawler = new ResultsCrawler( type, batchLogger );
 		crawler.reset();
 		try
@@ -215,133 +251,405 @@ public class HelperRunner implements Runnable, Cancelable
 		this.saveTrackMateFiles = saveTrackMateFiles;
 	}
 
+	/**
+	 * Sets the total number of threads the runner can use. Some are set aside
+	 * to score the results, and the others are split between the detection
+	 * configurations run concurrently and the threads of their TrackMate
+	 * instance.
+	 * 
+	 * @param numThreads
+	 *            the number of threads.
+	 * @see ThreadBudget
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Sets the max number of detection configurations that can be run
+	 * concurrently. Each of them holds its detection results in memory while
+	 * the tracker configurations are run on them.
+	 * 
+	 * @param maxConcurrentDetections
+	 *            the max number of concurrent detection configurations.
+	 */
+	public void setMaxConcurrentDetections( final int maxConcurrentDetections )
+	{
+		this.maxConcurrentDetections = maxConcurrentDetections;
+	}
+
+	/**
+	 * Sets the budgets of each configuration. A detection or a tracking that
+	 * exceeds its time budget is canceled, and a detection that yields more
+	 * spots than the spot budget is not tracked. The configuration is then
+	 * recorded as timed out, and is not run again when the sweep is resumed.
+	 * 
+	 * @param maxDetectionTime
+	 *            the max detection time in seconds, or
+	 *            {@link Double#POSITIVE_INFINITY} for no limit.
+	 * @param maxTrackingTime
+	 *            the max tracking time in seconds, or
+	 *            {@link Double#POSITIVE_INFINITY} for no limit.
+	 * @param maxSpots
+	 *            the max number of spots, or {@link Integer#MAX_VALUE} for no
+	 *            limit.
+	 * @see SweepWatchdog
+	 */
+	public void setBudgets( final double maxDetectionTime, final double maxTrackingTime, final int maxSpots )
+	{
+		this.maxDetectionTime = maxDetectionTime;
+		this.maxTrackingTime = maxTrackingTime;
+		this.maxSpots = maxSpots;
+	}
+
 	@Override
 	public void run()
 	{
 		cancelReason = null;
-		final int count = model.count();
 
 		final MetricsRunner runner = type.runner( gtPath, savePath );
 		runner.setBatchLogger( batchLogger );
 		runner.setTrackmateLogger( trackmateLogger );
+		final SweepWatchdog watchdog = new SweepWatchdog( maxDetectionTime, maxTrackingTime, maxSpots );
+		runner.setWatchdog( watchdog );
 
 		final Settings base = new Settings( imp );
 		base.setSpotFilters( model.getSpotFilters() );
 		base.setTrackFilters( model.getTrackFilters() );
-		int progress = 0;
 
-		DETECTOR_SETTINGS_LOOP: for ( final DetectorSweepModel detectorModel : model.getActiveDetectors() )
+		// Detection configurations, each run as a job with its trackers.
+		final List< SweepSchedule.Job > jobs = new ArrayList<>();
+		final SweepPruner pruner = new SweepPruner( maxSpots );
+		for ( final DetectorSweepModel detectorModel : model.getActiveDetectors() )
 		{
 			final Iterator< Settings > dit = detectorModel.iterator( base, targetChannel );
 			while ( dit.hasNext() )
 			{
 				final Settings ds = dit.next();
-				if ( isCanceled() )
-					return;
-
-				boolean detectionDone = false;
-				TrackMate trackmate = null;
-				double detectionTiming = Double.NaN;
-
+				pruner.declare( ds.detectorFactory.getKey(), detectorModel.getMonotoneParameters() );
+				final List< Settings > configs = new ArrayList<>();
 				for ( final TrackerSweepModel trackerModel : model.getActiveTracker() )
 				{
 					final Iterator< Settings > tit = trackerModel.iterator( ds, targetChannel );
 					while ( tit.hasNext() )
-					{
-						final Settings dts = tit.next();
-						if ( isCanceled() )
-							return;
+						configs.add( tit.next() );
+				}
+				final boolean[] alreadyRun = new boolean[ configs.size() ];
+				for ( int i = 0; i < configs.size(); i++ )
+					alreadyRun[ i ] = crawler.isSettingsPresent( configs.get( i ) );
+				jobs.add( new SweepSchedule.Job( ds, configs, alreadyRun ) );
+			}
+		}
+
+		/*
+		 * Cheapest jobs first, predicted from the results already there, and
+		 * bisection along the monotone parameters among the cheapest ones.
+		 */
+		final SweepCostModel costModel = new SweepCostModel();
+		costModel.addAll( crawler.getTables() );
+		final SweepSchedule schedule = new SweepSchedule( jobs, costModel, pruner );
 
-						batchLogger.setProgress( ( double ) ++progress / count );
-						batchLogger.log( "________________________________________\n" );
+		// Number of times each tracking stage is run in a job.
+		final Map< String, Integer > trackingStages = new HashMap<>();
+		for ( final TrackerSweepModel trackerModel : model.getActiveTracker() )
+		{
+			final Iterator< Settings > tit = trackerModel.iterator( base, targetChannel );
+			while ( tit.hasNext() )
+				trackingStages.merge( trackingStage( tit.next() ), 1, Integer::sum );
+		}
 
-						if ( crawler.isSettingsPresent( dts ) )
+		/*
+		 * Scoring and writing results overlap with detection and tracking. The
+		 * scoring threads are set aside from the budget of the jobs.
+		 */
+		final int nScoringThreads = scoringThreads( numThreads, maxConcurrentDetections );
+		final ThreadBudget budget = new ThreadBudget( numThreads - nScoringThreads, maxConcurrentDetections );
+		final ExecutorService executor = Executors.newFixedThreadPool( budget.getMaxConcurrentJobs() );
+		final SweepPipeline pipeline = new SweepPipeline(
+				runner,
+				savePath,
+				saveTrackMateFiles,
+				nScoringThreads,
+				budget.getMaxConcurrentJobs(),
+				batchLogger,
+				this );
+		try
+		{
+			final List< Future< ? > > futures = new ArrayList<>( budget.getMaxConcurrentJobs() );
+			for ( int i = 0; i < budget.getMaxConcurrentJobs(); i++ )
+			{
+				futures.add( executor.submit( () -> {
+					SweepSchedule.Job job;
+					while ( !isCanceled() && ( job = schedule.next() ) != null )
+					{
+						final Map< String, Integer > stages = new HashMap<>( trackingStages );
+						stages.put( detectionStage( job.getDetectionSettings() ), 1 );
+						ThreadBudget.Lease lease = null;
+						try
 						{
-							batchLogger.log( "Settings for detector " + dts.detectorFactory.getKey() + " with parameters:\n" );
-							batchLogger.log( TMUtils.echoMap( dts.detectorSettings, 2 ) );
-							batchLogger.log( "and tracker " + dts.trackerFactory.getKey() + " with parameters:\n" );
-							batchLogger.log( TMUtils.echoMap( dts.trackerSettings, 2 ) );
-							batchLogger.log( "were already tested. Skipping.\n" );
-							continue;
+							lease = budget.acquire( stages, schedule.numPending() + 1 );
+							runJob( job, runner, pipeline, budget, lease, schedule, costModel, pruner );
 						}
-
-						if ( !detectionDone )
+						catch ( final InterruptedException e )
+						{
+							Thread.currentThread().interrupt();
+							return;
+						}
+						finally
 						{
-							batchLogger.log( "\n________________________________________\n" );
-							batchLogger.log( TMUtils.getCurrentTimeString() + "\n" );
-							batchLogger.setStatus( ds.detectorFactory.getName() );
+							budget.release( lease );
+						}
+						logRemainingTime( schedule );
+					}
+				} ) );
+			}
 
-							final ValuePair< TrackMate, Double > detectionResult = runner.execDetection( dts );
-							trackmate = detectionResult.getA();
-							detectionTiming = detectionResult.getB();
-							detectionDone = true;
+			for ( final Future< ? > future : futures )
+			{
+				try
+				{
+					future.get();
+				}
+				catch ( final ExecutionException e )
+				{
+					batchLogger.error( "Error running TrackMate:\n" + e.getCause().getMessage() + '\n' );
+					e.getCause().printStackTrace();
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			cancel( "Interrupted." );
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			executor.shutdownNow();
+			try
+			{
+				pipeline.close();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			watchdog.close();
+			runner.close();
+		}
+	}
 
-							// Detection failed?
-							if ( null == trackmate )
-							{
-								batchLogger.error( "Error running TrackMate with these parameters.\nSkipping.\n" );
-								progress += model.countTrackerSettings();
-								batchLogger.setProgress( ( double ) ++progress / count );
-								continue DETECTOR_SETTINGS_LOOP;
-							}
-							// Got 0 spots to track?
-							if ( trackmate.getModel().getSpots().getNSpots( true ) == 0 )
-							{
-								batchLogger.log( "Settings result in having 0 spots to track.\nSkipping.\n" );
-								progress += model.countTrackerSettings();
-								batchLogger.setProgress( ( double ) ++progress / count );
-								continue DETECTOR_SETTINGS_LOOP;
-							}
-						}
+	/**
+	 * Returns the number of threads set aside for scoring, out of the total
+	 * number of threads: one per 4 threads, at most one per concurrent job,
+	 * and at least one. With only one thread, none is set aside and the jobs
+	 * score their configurations themselves.
+	 */
+	private static int scoringThreads( final int numThreads, final int maxConcurrentJobs )
+	{
+		if ( numThreads < 2 )
+			return 0;
+		return Math.max( 1, Math.min( Math.max( 1, maxConcurrentJobs ), numThreads / 4 ) );
+	}
 
-						final Settings settings = trackmate.getSettings();
-						settings.trackerFactory = dts.trackerFactory;
-						settings.trackerSettings = dts.trackerSettings;
-						batchLogger.setStatus( settings.detectorFactory.getName() + " + " + settings.trackerFactory.getName() );
+	/**
+	 * Runs the detection of a job, then all its tracker configurations on the
+	 * detection results. Each tracker configuration is run on its own TrackMate
+	 * instance, sharing the detected spots, so that it can be handed to the
+	 * pipeline while the next one is tracked.
+	 */
+	private void runJob(
+			final SweepSchedule.Job job,
+			final MetricsRunner runner,
+			final SweepPipeline pipeline,
+			final ThreadBudget budget,
+			final ThreadBudget.Lease lease,
+			final SweepSchedule schedule,
+			final SweepCostModel costModel,
+			final SweepPruner pruner ) throws InterruptedException
+	{
+		final Settings ds = job.getDetectionSettings();
+		final List< Settings > configs = job.getConfigs();
+		boolean detectionDone = false;
+		TrackMate detection = null;
+		double detectionTiming = Double.NaN;
 
-						// Exec tracking.
-						final double trackingTiming = runner.execTracking( trackmate );
+		for ( int i = 0; i < configs.size(); i++ )
+		{
+			final Settings dts = configs.get( i );
+			if ( isCanceled() )
+				return;
 
-						// Perform and save metrics measurements.
-						runner.performMetricsMeasurements( trackmate, detectionTiming, trackingTiming );
+			batchLogger.log( "________________________________________\n" );
 
-						// Save TrackMate file if required.
-						if ( saveTrackMateFiles )
-						{
-							final String nameGen = "TrackMate_%s_%s_%03d.xml";
-							int i = 1;
-							File trackmateFile;
-							do
-							{
-								trackmateFile = new File( savePath,
-										String.format( nameGen,
-												settings.detectorFactory.getKey(),
-												settings.trackerFactory.getKey(),
-												i++ ) );
-							}
-							while ( trackmateFile.exists() );
+			if ( job.wasAlreadyRun( i ) )
+			{
+				batchLogger.log( "Settings for detector " + dts.detectorFactory.getKey() + " with parameters:\n" );
+				batchLogger.log( TMUtils.echoMap( dts.detectorSettings, 2 ) );
+				batchLogger.log( "and tracker " + dts.trackerFactory.getKey() + " with parameters:\n" );
+				batchLogger.log( TMUtils.echoMap( dts.trackerSettings, 2 ) );
+				batchLogger.log( "were already tested. Skipping.\n" );
+				continue;
+			}
 
-							final TmXmlWriter writer = new TmXmlWriter( trackmateFile, Logger.VOID_LOGGER );
-							writer.appendModel( trackmate.getModel() );
-							writer.appendSettings( trackmate.getSettings() );
-							writer.appendGUIState( "ConfigureViews" );
-							try
-							{
-								writer.writeToFile();
-								batchLogger.log( "Saved results to TrackMate file: " + trackmateFile + "\n" );
-							}
-							catch ( final IOException e )
-							{
-								batchLogger.error( e.getMessage() );
-								e.printStackTrace();
-							}
-						}
+			if ( !detectionDone )
+			{
+				batchLogger.log( "\n________________________________________\n" );
+				batchLogger.log( TMUtils.getCurrentTimeString() + "\n" );
+				batchLogger.setStatus( ds.detectorFactory.getName() );
+
+				// Outcome predicted by the detections already run?
+				final SweepPruner.Reason dominated = pruner.dominated( ds );
+				if ( dominated != null )
+				{
+					batchLogger.log( "Settings for detector " + ds.detectorFactory.getKey() + " with parameters:\n" );
+					batchLogger.log( TMUtils.echoMap( ds.detectorSettings, 2 ) );
+					for ( int j = i; j < configs.size(); j++ )
+					{
+						if ( job.wasAlreadyRun( j ) )
+							continue;
+						if ( dominated == SweepPruner.Reason.NO_SPOT )
+							runner.writeMetrics( configs.get( j ), null, Double.NaN, Double.NaN );
+						else
+							runner.writeTimeout( configs.get( j ), Double.POSITIVE_INFINITY, Double.NaN );
 					}
+					batchLogger.log( ( dominated == SweepPruner.Reason.NO_SPOT )
+							? "are predicted to result in 0 spots. Skipping.\n"
+							: "are predicted to exceed the spot budget. Skipping.\n" );
+					schedule.skip( job );
+					batchLogger.setProgress( schedule.progress() );
+					return;
+				}
+
+				final ValuePair< TrackMate, Double > detectionResult = runner.execDetection( dts, lease.getThreads() );
+				detectionDone = true;
+
+				// Detection failed?
+				if ( null == detectionResult )
+				{
+					batchLogger.error( "Error running TrackMate with these parameters.\nSkipping.\n" );
+					schedule.skip( job );
+					batchLogger.setProgress( schedule.progress() );
+					return;
+				}
+				detection = detectionResult.getA();
+				detectionTiming = detectionResult.getB();
+
+				/*
+				 * A detection canceled for its time budget may have found
+				 * only part of the spots, so it predicts nothing unless it
+				 * already found too many.
+				 */
+				final int nVisibleSpots = detection.getModel().getSpots().getNSpots( true );
+				final int nSpots = detection.getModel().getSpots().getNSpots( false );
+				if ( !Double.isInfinite( detectionTiming ) || nSpots > maxSpots )
+					pruner.record( ds, nVisibleSpots, nSpots );
+
+				// Over budget? Record all the configurations as timed out.
+				if ( Double.isInfinite( detectionTiming ) )
+				{
+					for ( int j = i; j < configs.size(); j++ )
+						if ( !job.wasAlreadyRun( j ) )
+							runner.writeTimeout( configs.get( j ), detectionTiming, Double.NaN );
+					batchLogger.log( "Skipping.\n" );
+					schedule.skip( job );
+					batchLogger.setProgress( schedule.progress() );
+					return;
+				}
+				budget.record( detectionStage( ds ), lease.getThreads(), detectionTiming );
+				schedule.done( job, 0 );
+				batchLogger.setProgress( schedule.progress() );
+
+				/*
+				 * Got 0 spots to track? The detection recorded the first
+				 * configuration as failed. Record the others too, as when the
+				 * outcome is predicted, so that they are not run again.
+				 */
+				if ( nVisibleSpots == 0 )
+				{
+					for ( int j = i + 1; j < configs.size(); j++ )
+						if ( !job.wasAlreadyRun( j ) )
+							runner.writeMetrics( configs.get( j ), null, Double.NaN, Double.NaN );
+					batchLogger.log( "Settings result in having 0 spots to track.\nSkipping.\n" );
+					costModel.add( dts, detectionTiming, Double.NaN );
+					schedule.skip( job );
+					batchLogger.setProgress( schedule.progress() );
+					return;
 				}
 			}
+
+			final TrackMate trackmate = trackingInstance( detection, dts, lease.getThreads() );
+			final Settings settings = trackmate.getSettings();
+			batchLogger.setStatus( settings.detectorFactory.getName() + " + " + settings.trackerFactory.getName() );
+
+			// Exec tracking.
+			final double trackingTiming = runner.execTracking( trackmate );
+			if ( Double.isInfinite( trackingTiming ) )
+			{
+				runner.writeTimeout( dts, detectionTiming, trackingTiming );
+				schedule.done( job, i + 1 );
+				batchLogger.setProgress( schedule.progress() );
+				continue;
+			}
+			budget.record( trackingStage( dts ), lease.getThreads(), trackingTiming );
+			costModel.add( dts, detectionTiming, trackingTiming );
+			schedule.done( job, i + 1 );
+			batchLogger.setProgress( schedule.progress() );
+
+			// Measure and save metrics, and save TrackMate file if required.
+			pipeline.submit( trackmate, detectionTiming, trackingTiming );
 		}
 	}
 
+	private void logRemainingTime( final SweepSchedule schedule )
+	{
+		final double remaining = schedule.remainingTime();
+		if ( Double.isNaN( remaining ) )
+			return;
+
+		final long seconds = Math.round( remaining );
+		batchLogger.log( String.format( "Estimated remaining time: %dh %02dm %02ds.\n",
+				seconds / 3600, ( seconds / 60 ) % 60, seconds % 60 ) );
+	}
+
+	/**
+	 * Returns a new TrackMate instance to run a tracker configuration on the
+	 * results of a detection. Its model shares the spot collection of the
+	 * detection, which is not modified by tracking.
+	 */
+	private TrackMate trackingInstance( final TrackMate detection, final Settings trackerSettings, final int numThreads )
+	{
+		final Model detectionModel = detection.getModel();
+		final Model model = new Model();
+		model.setLogger( trackmateLogger );
+		model.setPhysicalUnits( detectionModel.getSpaceUnits(), detectionModel.getTimeUnits() );
+		final FeatureModel fm = detectionModel.getFeatureModel();
+		model.getFeatureModel().declareSpotFeatures(
+				fm.getSpotFeatures(),
+				fm.getSpotFeatureNames(),
+				fm.getSpotFeatureShortNames(),
+				fm.getSpotFeatureDimensions(),
+				fm.getSpotFeatureIsInt() );
+		model.setSpots( detectionModel.getSpots(), false );
+
+		final Settings settings = detection.getSettings().copyOn( imp );
+		settings.trackerFactory = trackerSettings.trackerFactory;
+		settings.trackerSettings = trackerSettings.trackerSettings;
+		final TrackMate trackmate = new TrackMate( model, settings );
+		trackmate.setNumThreads( numThreads );
+		return trackmate;
+	}
+
+	private static String detectionStage( final Settings settings )
+	{
+		return "detector:" + settings.detectorFactory.getKey();
+	}
+
+	private static String trackingStage( final Settings settings )
+	{
+		return "tracker:" + settings.trackerFactory.getKey();
+	}
+
 	@Override
 	public void cancel( final String cancelReason )
 	{
@@ -398,6 +706,18 @@ public class HelperRunner implements Runnable, Cancelable
 
 		private double maxDist = Double.NaN;
 
+		private double[] extraGates = new double[ 0 ];
+
+		private int numThreads = Runtime.getRuntime().availableProcessors();
+
+		private int maxConcurrentDetections = DEFAULT_MAX_CONCURRENT_DETECTIONS;
+
+		private double maxDetectionTime = Double.POSITIVE_INFINITY;
+
+		private double maxTrackingTime = Double.POSITIVE_INFINITY;
+
+		private int maxSpots = Integer.MAX_VALUE;
+
 		/**
 		 * Sets the tracking metrics type to use.
 		 * 
@@ -599,6 +919,108 @@ public class HelperRunner implements Runnable, Cancelable
 			return this;
 		}
 
+		/**
+		 * Sets additional max pairing distances to use with the SPT metrics.
+		 * The SPT metrics are computed for the main max pairing distance and
+		 * for each of these distances, in the same pass over the tracks. They
+		 * are saved in additional columns of the result files. The distances
+		 * must be finite and strictly positive. Duplicates, and distances
+		 * equal to the main max pairing distance, are ignored.
+		 * <p>
+		 * Only affect the SPT metrics type, if it is specified via the string
+		 * method {@link #trackingMetricsType(String)} of this builder.
+		 * 
+		 * @param gates
+		 *            the additional max pairing distances.
+		 * @return this builder.
+		 */
+		public Builder sptMetricsExtraPairingDistances( final double... gates )
+		{
+			this.extraGates = gates.clone();
+			return this;
+		}
+
+		/**
+		 * Sets the total number of threads the runner can use. Some are set
+		 * aside to score the results, and the others are split between the
+		 * detection configurations run concurrently and the threads of their
+		 * TrackMate instance. By default, all the available processors are
+		 * used.
+		 * 
+		 * @param numThreads
+		 *            the number of threads.
+		 * @return this builder.
+		 */
+		public Builder numThreads( final int numThreads )
+		{
+			this.numThreads = numThreads;
+			return this;
+		}
+
+		/**
+		 * Sets the max number of detection configurations that can be run
+		 * concurrently. The runner picks how many actually run from the
+		 * measured scalability of the detectors and trackers, within this
+		 * limit. Use 1 for detectors that cannot run concurrently, or to limit
+		 * the memory used by the run. By default, at most
+		 * {@value HelperRunner#DEFAULT_MAX_CONCURRENT_DETECTIONS} detection
+		 * configurations are run concurrently.
+		 * 
+		 * @param maxConcurrentDetections
+		 *            the max number of concurrent detection configurations.
+		 * @return this builder.
+		 */
+		public Builder maxConcurrentDetections( final int maxConcurrentDetections )
+		{
+			this.maxConcurrentDetections = maxConcurrentDetections;
+			return this;
+		}
+
+		/**
+		 * Sets the max time the detection of a configuration can take. A
+		 * detection that takes longer is canceled and recorded as timed out.
+		 * By default, there is no limit.
+		 * 
+		 * @param seconds
+		 *            the max detection time in seconds.
+		 * @return this builder.
+		 */
+		public Builder maxDetectionTime( final double seconds )
+		{
+			this.maxDetectionTime = seconds;
+			return this;
+		}
+
+		/**
+		 * Sets the max time the tracking of a configuration can take. A
+		 * tracking that takes longer is canceled and recorded as timed out. By
+		 * default, there is no limit.
+		 * 
+		 * @param seconds
+		 *            the max tracking time in seconds.
+		 * @return this builder.
+		 */
+		public Builder maxTrackingTime( final double seconds )
+		{
+			this.maxTrackingTime = seconds;
+			return this;
+		}
+
+		/**
+		 * Sets the max number of spots a detection can yield. Detection
+		 * configurations that yield more spots are not tracked, and are
+		 * recorded as timed out. By default, there is no limit.
+		 * 
+		 * @param maxSpots
+		 *            the max number of spots.
+		 * @return this builder.
+		 */
+		public Builder maxSpots( final int maxSpots )
+		{
+			this.maxSpots = maxSpots;
+			return this;
+		}
+
 		public HelperRunner get()
 		{
 			boolean ok = true;
@@ -625,7 +1047,20 @@ public class HelperRunner implements Runnable, Cancelable
 							str.append( "Max pairing distance for SPT metrics has not been set.\n" );
 							ok = false;
 						}
-						this.type = new SPTTrackingMetricsType( maxDist );
+						for ( final double gate : extraGates )
+						{
+							if ( !( gate > 0. ) || Double.isInfinite( gate ) )
+							{
+								str.append( "Invalid additional max pairing distance for SPT metrics: " + gate + ".\n" );
+								ok = false;
+							}
+						}
+						// Each gate is scored once.
+						final double[] gates = Arrays.stream( extraGates )
+								.distinct()
+								.filter( gate -> gate != maxDist )
+								.toArray();
+						this.type = new SPTTrackingMetricsType( maxDist, gates );
 					}
 					else
 					{
@@ -727,7 +1162,12 @@ public class HelperRunner implements Runnable, Cancelable
 					savePath,
 					batchLogger,
 					trackmateLogger,
-					saveTrackMateFiles );
+					saveTrackMateFiles,
+					numThreads,
+					maxConcurrentDetections,
+					maxDetectionTime,
+					maxTrackingTime,
+					maxSpots );
 		}
 
 		public String getErrorMessage()
@@ -68,6 +68,11 @@ public abstract class MetricsRunner
 	 */
 	private final BiFunction< String, Integer, String > nameGenWithID;
 
+	/**
+	 * Budgets of the configurations run.
+	 */
+	private SweepWatchdog watchdog = new SweepWatchdog();
+
 	public MetricsRunner( final Path resultsRootPath, final TrackingMetricsType type )
 	{
 		this.resultsRootPath = resultsRootPath;
@@ -75,9 +80,123 @@ public abstract class MetricsRunner
 		this.nameGenWithID = ( imName, i ) -> String.format( "%s_" + type.csvSuffix() + "_%02d.csv", imName, i );
 	}
 
-	public abstract void performMetricsMeasurements( TrackMate trackmate, double detectionTiming, double trackingTiming );
+	/**
+	 * Measures the tracking metrics of the results of the specified TrackMate
+	 * instance, without writing them.
+	 * <p>
+	 * This method may be called concurrently for different TrackMate
+	 * instances.
+	 * 
+	 * @param trackmate
+	 *            the TrackMate instance, after tracking.
+	 * @return the metrics, or <code>null</code> if they could not be measured.
+	 */
+	public abstract TrackingMetrics measure( TrackMate trackmate );
+
+	/**
+	 * Measures the tracking metrics of the results of the specified TrackMate
+	 * instance, and appends them to the results file.
+	 * 
+	 * @param trackmate
+	 *            the TrackMate instance, after tracking.
+	 * @param detectionTiming
+	 *            the detection time in seconds.
+	 * @param trackingTiming
+	 *            the tracking time in seconds.
+	 */
+	public void performMetricsMeasurements( final TrackMate trackmate, final double detectionTiming, final double trackingTiming )
+	{
+		writeMetrics( trackmate.getSettings(), measure( trackmate ), detectionTiming, trackingTiming );
+	}
+
+	/**
+	 * Appends metrics measured with {@link #measure(TrackMate)} to the results
+	 * file suitable for the specified settings.
+	 * 
+	 * @param settings
+	 *            the settings used to generate the tracking results.
+	 * @param metrics
+	 *            the metrics. If <code>null</code>, the settings are recorded
+	 *            as failed.
+	 * @param detectionTiming
+	 *            the detection time in seconds.
+	 * @param trackingTiming
+	 *            the tracking time in seconds.
+	 */
+	public synchronized void writeMetrics( final Settings settings, final TrackingMetrics metrics, final double detectionTiming, final double trackingTiming )
+	{
+		final File csvFile = findSuitableCSVFile( settings );
+		final String[] csvHeader1 = toCSVHeader( settings );
+		if ( metrics == null )
+			writeFailedResults( csvFile, settings, csvHeader1 );
+		else
+			writeResults( csvFile, metrics, detectionTiming, trackingTiming, settings, csvHeader1 );
+	}
+
+	/**
+	 * Records the specified settings as having exceeded their time or spot
+	 * budget. They are written as failed results, with infinite timings as a
+	 * timeout marker, so that they are not run again.
+	 * 
+	 * @param settings
+	 *            the settings that exceeded their budget.
+	 * @param detectionTiming
+	 *            the detection time in seconds, infinite if the detection
+	 *            exceeded its budget.
+	 * @param trackingTiming
+	 *            the tracking time in seconds, infinite if the tracking
+	 *            exceeded its budget, <code>NaN</code> if it was not run.
+	 */
+	public synchronized void writeTimeout( final Settings settings, final double detectionTiming, final double trackingTiming )
+	{
+		final File csvFile = findSuitableCSVFile( settings );
+		final String[] csvHeader1 = toCSVHeader( settings );
+		final TrackingMetrics metrics = new TrackingMetrics( type );
+		metrics.set( TrackingMetricsType.TIM, Double.POSITIVE_INFINITY );
+		metrics.set( TrackingMetricsType.DETECTION_TIME, detectionTiming );
+		metrics.set( TrackingMetricsType.TRACKING_TIME, trackingTiming );
+		writeFailedResults( csvFile, settings, csvHeader1, metrics );
+	}
+
+	/**
+	 * Sets the max number of calls to {@link #measure(TrackMate)} that will run
+	 * concurrently, so that runners can size the resources they hold for
+	 * them. Does nothing by default.
+	 * 
+	 * @param maxConcurrentMeasurements
+	 *            the max number of concurrent measurements.
+	 */
+	public void setMaxConcurrentMeasurements( final int maxConcurrentMeasurements )
+	{}
+
+	/**
+	 * Releases the resources held by this runner, and waits for background
+	 * tasks to complete. Must be called once the runner is not used anymore.
+	 * Does nothing by default.
+	 */
+	public void close()
+	{}
 
 	public ValuePair< TrackMate, Double > execDetection( final Settings settings )
+	{
+		return execDetection( settings, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Executes the detection step with the specified settings, on a new
+	 * TrackMate instance configured to use the specified number of threads.
+	 * 
+	 * @param settings
+	 *            the settings to run detection with.
+	 * @param numThreads
+	 *            the number of threads the TrackMate instance will use.
+	 * @return the TrackMate instance and the detection time in seconds, or
+	 *         <code>null</code> if the detection failed. The detection time is
+	 *         {@link Double#POSITIVE_INFINITY} if the detection exceeded its
+	 *         time or spot budget.
+	 * @see #setWatchdog(SweepWatchdog)
+	 */
+	public ValuePair< TrackMate, Double > execDetection( final Settings settings, final int numThreads )
 	{
 		batchLogger.log( "Executing detection.\n" );
 		batchLogger.log( "Configured detector: " );
@@ -87,14 +206,31 @@ public abstract class MetricsRunner
 	
 		final long start = System.currentTimeMillis();
 		final TrackMate trackmate = new TrackMate( settings );
+		trackmate.setNumThreads( numThreads );
 		trackmate.getModel().setLogger( trackmateLogger );
-		if ( !trackmate.execDetection()
-				|| !trackmate.execInitialSpotFiltering()
-				|| !trackmate.computeSpotFeatures( true )
-				|| !trackmate.execSpotFiltering( true ) )
+		final SweepWatchdog.Watch watch = watchdog.watchDetection( trackmate );
+		try
 		{
-			batchLogger.error( "Error in the detection step:\n" + trackmate.getErrorMessage() );
-			return null;
+			if ( !trackmate.execDetection()
+					|| !trackmate.execInitialSpotFiltering() )
+				return detectionFailed( trackmate, watch );
+
+			// Too many spots to compute features and track them?
+			final int nSpots = trackmate.getModel().getSpots().getNSpots( false );
+			if ( nSpots > watchdog.getMaxSpots() )
+			{
+				batchLogger.log( String.format( "Detection found %d spots, more than the budget of %d spots.\n",
+						nSpots, watchdog.getMaxSpots() ) );
+				return new ValuePair<>( trackmate, Double.POSITIVE_INFINITY );
+			}
+
+			if ( !trackmate.computeSpotFeatures( true )
+					|| !trackmate.execSpotFiltering( true ) )
+				return detectionFailed( trackmate, watch );
+		}
+		finally
+		{
+			watch.stop();
 		}
 		final long end = System.currentTimeMillis();
 		final double detectionTiming = ( end - start ) / 1000.;
@@ -106,15 +242,32 @@ public abstract class MetricsRunner
 				nVisibleSpots, nTotalSpots ) );
 
 		if ( nVisibleSpots == 0 )
-		{
-			final File csvFile = findSuitableCSVFile( settings );
-			final String[] csvHeader1 = toCSVHeader( settings );
-			writeFailedResults( csvFile, settings, csvHeader1 );
-		}
+			writeMetrics( settings, null, Double.NaN, Double.NaN );
 	
 		return new ValuePair<>( trackmate, detectionTiming );
 	}
 
+	private ValuePair< TrackMate, Double > detectionFailed( final TrackMate trackmate, final SweepWatchdog.Watch watch )
+	{
+		if ( watch.isExpired() )
+		{
+			batchLogger.log( String.format( "Detection exceeded its time budget of %.1f s.\n", watch.getMaxTime() ) );
+			return new ValuePair<>( trackmate, Double.POSITIVE_INFINITY );
+		}
+		batchLogger.error( "Error in the detection step:\n" + trackmate.getErrorMessage() );
+		return null;
+	}
+
+	/**
+	 * Executes the tracking step on the specified TrackMate instance.
+	 * 
+	 * @param trackmate
+	 *            the TrackMate instance, after detection.
+	 * @return the tracking time in seconds, <code>NaN</code> if the tracking
+	 *         failed, or {@link Double#POSITIVE_INFINITY} if it exceeded its
+	 *         time budget.
+	 * @see #setWatchdog(SweepWatchdog)
+	 */
 	public double execTracking( final TrackMate trackmate )
 	{
 		batchLogger.log( "Executing tracking.\n" );
@@ -128,14 +281,27 @@ public abstract class MetricsRunner
 		batchLogger.log( TMUtils.echoMap( trackmate.getSettings().trackerSettings, 2 ) );
 	
 		final long start = System.currentTimeMillis();
-		if ( !trackmate.checkInput()
-				|| !trackmate.execTracking()
-				|| !trackmate.computeEdgeFeatures( true )
-				|| !trackmate.computeTrackFeatures( true )
-				|| !trackmate.execTrackFiltering( true ) )
+		final SweepWatchdog.Watch watch = watchdog.watchTracking( trackmate );
+		try
+		{
+			if ( !trackmate.checkInput()
+					|| !trackmate.execTracking()
+					|| !trackmate.computeEdgeFeatures( true )
+					|| !trackmate.computeTrackFeatures( true )
+					|| !trackmate.execTrackFiltering( true ) )
+			{
+				if ( watch.isExpired() )
+				{
+					batchLogger.log( String.format( "Tracking exceeded its time budget of %.1f s.\n", watch.getMaxTime() ) );
+					return Double.POSITIVE_INFINITY;
+				}
+				System.err.println( "Error in tracking step:\n" + trackmate.getErrorMessage() );
+				return Double.NaN;
+			}
+		}
+		finally
 		{
-			System.err.println( "Error in tracking step:\n" + trackmate.getErrorMessage() );
-			return Double.NaN;
+			watch.stop();
 		}
 		final long end = System.currentTimeMillis();
 		final double trackingTiming = ( end - start ) / 1000.;
@@ -154,7 +320,7 @@ public abstract class MetricsRunner
 		return trackingTiming;
 	}
 
-	protected File findSuitableCSVFile( final Settings settings )
+	protected synchronized File findSuitableCSVFile( final Settings settings )
 	{
 		final String imFileName = settings.imp.getShortTitle();
 		// Prepare CSV headers.
@@ -220,7 +386,7 @@ public abstract class MetricsRunner
 	 * @param csvHeader
 	 *            the header name for each setting value.
 	 */
-	protected void writeResults(
+	protected synchronized void writeResults(
 			final File csvFile,
 			final TrackingMetrics metrics,
 			final double detectionTiming, 
@@ -259,6 +425,28 @@ public abstract class MetricsRunner
 	 * <p>
 	 * This signals that the settings values result in a failed tracking
 	 * results. As the settings values are logged, they won't be retried.
+	 * <p>
+	 * Like the other methods writing to the results files, this method is
+	 * synchronized, so that concurrent sweep jobs can share this runner.
+	 * 
+	 * @param csvFile
+	 *            the CSV file to append the line to.
+	 * @param settings
+	 *            the {@link Settings} that led to the failed tracking.
+	 * @param csvHeader
+	 *            the header name for each setting value.
+	 */
+	protected synchronized void writeFailedResults( final File csvFile, final Settings settings, final String[] csvHeader )
+	{
+		// all NaNs.
+		writeFailedResults( csvFile, settings, csvHeader, new TrackingMetrics( type ) );
+	}
+
+	/**
+	 * Appends a line in the results file for settings that did not yield
+	 * valid tracking results, with the specified metrics values. This is used
+	 * to record the settings with a marker, for instance infinite timings for
+	 * settings that exceeded their budget.
 	 * 
 	 * @param csvFile
 	 *            the CSV file to append the line to.
@@ -266,13 +454,13 @@ public abstract class MetricsRunner
 	 *            the {@link Settings} that led to the failed tracking.
 	 * @param csvHeader
 	 *            the header name for each setting value.
+	 * @param metrics
+	 *            the metrics values to write.
 	 */
-	protected void writeFailedResults( final File csvFile, final Settings settings, final String[] csvHeader )
+	protected synchronized void writeFailedResults( final File csvFile, final Settings settings, final String[] csvHeader, final TrackingMetrics metrics )
 	{
 		// Write default values to CSV.
 		final String[] settingsValueColumns = toCSVLine( settings, csvHeader );
-		// all NaNs.
-		final TrackingMetrics metrics = new TrackingMetrics( type );
 		final String[] line = metrics.concatWithCSVLine( settingsValueColumns );
 		try (CSVWriter csvWriter = new CSVWriter( new FileWriter( csvFile, true ),
 				CSVWriter.DEFAULT_SEPARATOR,
@@ -318,6 +506,18 @@ public abstract class MetricsRunner
 		this.trackmateLogger = trackmateLogger;
 	}
 
+	/**
+	 * Sets the watchdog that enforces the time and spot budgets of the
+	 * detection and tracking steps. By default, there is no budget.
+	 * 
+	 * @param watchdog
+	 *            the watchdog.
+	 */
+	public void setWatchdog( final SweepWatchdog watchdog )
+	{
+		this.watchdog = watchdog;
+	}
+
 	private final File getCSVFile( final String resultsRootPath, final String imageName, final int id )
 	{
 		final Path csvFilePath = Paths.get( resultsRootPath, nameGenWithID.apply( imageName, id ) );
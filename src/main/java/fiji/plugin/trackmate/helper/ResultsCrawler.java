@@ -162,6 +162,16 @@ public class ResultsCrawler
 		return tables.get( csvFile );
 	}
 
+	/**
+	 * Returns the result tables discovered by this crawler.
+	 * 
+	 * @return a new list of the tables.
+	 */
+	public List< TrackingMetricsTable > getTables()
+	{
+		return new ArrayList<>( tables.values() );
+	}
+
 	public synchronized void crawl( final String resultsFolder ) throws IOException
 	{
 		final List< String > csvFiles = findFiles( resultsFolder, "csv" );
@@ -325,7 +335,8 @@ public class ResultsCrawler
 	/**
 	 * Returns how many parameter combinations were discovered by this crawler.
 	 * The boolean flag discriminates between counting only combinations that
-	 * return a valid metrics (non-NaN results) or all combinations.
+	 * return a valid metrics (non-NaN results, and not timed out) or all
+	 * combinations.
 	 * 
 	 * @param validOnly
 	 *            if <code>true</code> will only count combinations that return
@@ -340,7 +351,7 @@ public class ResultsCrawler
 		int count = 0;
 		for ( final TrackingMetricsTable results : tables.values() )
 			for ( int i = 0; i < results.size(); i++ )
-				if ( !results.getMetrics( i ).isNaN() )
+				if ( !results.getMetrics( i ).isNaN() && !results.getMetrics( i ).isTimeout() )
 					count++;
 
 		return count;
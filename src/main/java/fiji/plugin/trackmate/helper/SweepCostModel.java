@@ -0,0 +1,393 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import fiji.plugin.trackmate.Settings;
+
+/**
+ * Predicts the detection and tracking time of the configurations of a
+ * parameter sweep, from the times of configurations already run.
+ * <p>
+ * Detection times of different detectors, or of the same detector with
+ * different parameter values, can differ by orders of magnitude. The times
+ * are therefore predicted per detector (for detection) and per tracker (for
+ * tracking), from the configurations of this detector or tracker that have
+ * the closest parameter values. Numerical parameters are compared relative
+ * to the range of values seen so far, other parameters are equal or not.
+ * Tracking times also depend on the detection, so the detector and its
+ * parameters are included in the comparison. The prediction is the
+ * inverse-distance weighted geometric mean of the times of the
+ * {@value #N_NEIGHBORS} nearest configurations. Predictions are cached until
+ * a configuration of the same detector or tracker is added.
+ * <p>
+ * The model is fitted from the <code>DETECTION_TIME</code> and
+ * <code>TRACKING_TIME</code> columns of the crawled result tables, and
+ * updated online as configurations are run. Adding the same configuration
+ * again replaces its times, so tables can be added again after they are
+ * re-crawled. Instances are thread-safe.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class SweepCostModel
+{
+
+	/**
+	 * Number of configurations a prediction is based on.
+	 */
+	private static final int N_NEIGHBORS = 4;
+
+	/**
+	 * Time predicted when there is no record at all, in seconds.
+	 */
+	private static final double DEFAULT_TIME = 1.;
+
+	/**
+	 * Shortest time recorded, in seconds. The CSV files round times to the
+	 * millisecond, and some configurations are faster than that.
+	 */
+	private static final double MIN_TIME = 1e-3;
+
+	private static final String DETECTOR_KEY = "DETECTOR";
+
+	private final Map< String, Stage > detectionStages = new HashMap<>();
+
+	private final Map< String, Stage > trackingStages = new HashMap<>();
+
+	private int version = 0;
+
+	/**
+	 * Adds the times of all the configurations of the specified tables.
+	 * Configurations that failed have <code>NaN</code> times and are ignored.
+	 * 
+	 * @param tables
+	 *            the result tables, for instance those of a
+	 *            {@link ResultsCrawler}.
+	 */
+	public synchronized void addAll( final Iterable< TrackingMetricsTable > tables )
+	{
+		for ( final TrackingMetricsTable table : tables )
+		{
+			for ( int i = 0; i < table.size(); i++ )
+			{
+				final TrackingMetrics metrics = table.getMetrics( i );
+				add( table.getDetector( i ), table.getDetectorParams( i ),
+						table.getTracker( i ), table.getTrackerParams( i ),
+						metrics.get( TrackingMetricsType.DETECTION_TIME ),
+						metrics.get( TrackingMetricsType.TRACKING_TIME ) );
+			}
+		}
+	}
+
+	/**
+	 * Adds the times of a configuration that was just run.
+	 * 
+	 * @param settings
+	 *            the settings of the configuration, with detector and tracker.
+	 * @param detectionTime
+	 *            the detection time, in seconds.
+	 * @param trackingTime
+	 *            the tracking time, in seconds.
+	 */
+	public synchronized void add( final Settings settings, final double detectionTime, final double trackingTime )
+	{
+		add( settings.detectorFactory.getKey(), toStrings( settings.detectorSettings ),
+				settings.trackerFactory.getKey(), toStrings( settings.trackerSettings ),
+				detectionTime, trackingTime );
+	}
+
+	/**
+	 * Returns the predicted detection time of a configuration.
+	 * 
+	 * @param settings
+	 *            the settings of the configuration.
+	 * @return the predicted time, in seconds.
+	 */
+	public synchronized double detectionTime( final Settings settings )
+	{
+		return predict( detectionStages, settings.detectorFactory.getKey(), detectionFeatures( toStrings( settings.detectorSettings ) ) );
+	}
+
+	/**
+	 * Returns the predicted tracking time of a configuration.
+	 * 
+	 * @param settings
+	 *            the settings of the configuration, with detector and tracker.
+	 * @return the predicted time, in seconds.
+	 */
+	public synchronized double trackingTime( final Settings settings )
+	{
+		return predict( trackingStages, settings.trackerFactory.getKey(),
+				trackingFeatures( settings.detectorFactory.getKey(), toStrings( settings.detectorSettings ), toStrings( settings.trackerSettings ) ) );
+	}
+
+	/**
+	 * Returns a number that changes every time the model changes, so that
+	 * predictions can be cached.
+	 * 
+	 * @return the version of the model.
+	 */
+	public synchronized int version()
+	{
+		return version;
+	}
+
+	private void add(
+			final String detector,
+			final Map< String, String > detectorParams,
+			final String tracker,
+			final Map< String, String > trackerParams,
+			final double detectionTime,
+			final double trackingTime )
+	{
+		if ( isValid( detectionTime ) )
+		{
+			detectionStages.computeIfAbsent( detector, k -> new Stage() )
+					.add( detectionFeatures( detectorParams ), detectionTime );
+			version++;
+		}
+		if ( isValid( trackingTime ) )
+		{
+			trackingStages.computeIfAbsent( tracker, k -> new Stage() )
+					.add( trackingFeatures( detector, detectorParams, trackerParams ), trackingTime );
+			version++;
+		}
+	}
+
+	private static double predict( final Map< String, Stage > stages, final String key, final Map< String, String > features )
+	{
+		final Stage stage = stages.get( key );
+		if ( stage != null && !stage.records.isEmpty() )
+			return stage.predict( features );
+
+		// Unknown detector or tracker: geometric mean of all the others.
+		double sum = 0.;
+		int n = 0;
+		for ( final Stage other : stages.values() )
+		{
+			for ( final Record record : other.records.values() )
+			{
+				sum += record.logTime;
+				n++;
+			}
+		}
+		return ( n == 0 ) ? DEFAULT_TIME : Math.exp( sum / n );
+	}
+
+	private static boolean isValid( final double time )
+	{
+		return !Double.isNaN( time ) && !Double.isInfinite( time ) && time >= 0.;
+	}
+
+	private static Map< String, String > detectionFeatures( final Map< String, String > detectorParams )
+	{
+		return new TreeMap<>( detectorParams );
+	}
+
+	private static Map< String, String > trackingFeatures( final String detector, final Map< String, String > detectorParams, final Map< String, String > trackerParams )
+	{
+		final Map< String, String > features = new TreeMap<>();
+		for ( final Map.Entry< String, String > e : detectorParams.entrySet() )
+			features.put( "detector." + e.getKey(), e.getValue() );
+		for ( final Map.Entry< String, String > e : trackerParams.entrySet() )
+			features.put( "tracker." + e.getKey(), e.getValue() );
+		features.put( DETECTOR_KEY, detector );
+		return features;
+	}
+
+	private static Map< String, String > toStrings( final Map< String, Object > params )
+	{
+		final Map< String, String > out = new LinkedHashMap<>( params.size() );
+		for ( final Map.Entry< String, Object > e : params.entrySet() )
+			out.put( e.getKey(), String.valueOf( e.getValue() ) );
+		return out;
+	}
+
+	/**
+	 * Returns the numerical value of a parameter value, or <code>NaN</code> if
+	 * it is not a number.
+	 */
+	private static double toNumber( final String value )
+	{
+		if ( "true".equalsIgnoreCase( value ) )
+			return 1.;
+		if ( "false".equalsIgnoreCase( value ) )
+			return 0.;
+		try
+		{
+			return Double.parseDouble( value );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * The times recorded for one detector or tracker.
+	 */
+	private static final class Stage
+	{
+
+		/** Records, by configuration. */
+		private final Map< Map< String, String >, Record > records = new HashMap<>();
+
+		/** Min and max of the numerical features. */
+		private final Map< String, double[] > ranges = new HashMap<>();
+
+		/**
+		 * Predictions made since the last record was added, by configuration.
+		 */
+		private final Map< Map< String, String >, Double > predictions = new HashMap<>();
+
+		private void add( final Map< String, String > features, final double time )
+		{
+			final Record record = new Record( features, Math.log( Math.max( MIN_TIME, time ) ) );
+			records.put( features, record );
+			predictions.clear();
+			for ( int i = 0; i < record.keys.length; i++ )
+			{
+				final double v = record.values[ i ];
+				if ( Double.isNaN( v ) )
+					continue;
+				final double[] range = ranges.computeIfAbsent( record.keys[ i ], k -> new double[] { v, v } );
+				range[ 0 ] = Math.min( range[ 0 ], v );
+				range[ 1 ] = Math.max( range[ 1 ], v );
+			}
+		}
+
+		private double predict( final Map< String, String > features )
+		{
+			final Record exact = records.get( features );
+			if ( exact != null )
+				return Math.exp( exact.logTime );
+
+			final Double cached = predictions.get( features );
+			if ( cached != null )
+				return cached.doubleValue();
+
+			// Nearest records, sorted by distance.
+			final Record query = new Record( features, Double.NaN );
+			final Record[] nearest = new Record[ N_NEIGHBORS ];
+			final double[] distances = new double[ N_NEIGHBORS ];
+			int n = 0;
+			for ( final Record record : records.values() )
+			{
+				final double d = distance( query, record );
+				if ( n == N_NEIGHBORS && d >= distances[ n - 1 ] )
+					continue;
+				int k = ( n < N_NEIGHBORS ) ? n++ : n - 1;
+				while ( k > 0 && distances[ k - 1 ] > d )
+				{
+					distances[ k ] = distances[ k - 1 ];
+					nearest[ k ] = nearest[ k - 1 ];
+					k--;
+				}
+				distances[ k ] = d;
+				nearest[ k ] = record;
+			}
+
+			double sum = 0.;
+			double weights = 0.;
+			for ( int k = 0; k < n; k++ )
+			{
+				final double w = 1. / Math.max( 1e-6, distances[ k ] );
+				sum += w * nearest[ k ].logTime;
+				weights += w;
+			}
+			final double prediction = Math.exp( sum / weights );
+			predictions.put( features, prediction );
+			return prediction;
+		}
+
+		private double distance( final Record a, final Record b )
+		{
+			double d2 = 0.;
+			int i = 0;
+			int j = 0;
+			// Keys are sorted in both records.
+			while ( i < a.keys.length || j < b.keys.length )
+			{
+				final int c = ( i == a.keys.length ) ? 1
+						: ( j == b.keys.length ) ? -1
+								: a.keys[ i ].compareTo( b.keys[ j ] );
+				if ( c != 0 )
+				{
+					// Parameter missing in one of the records.
+					d2 += 1.;
+					if ( c < 0 )
+						i++;
+					else
+						j++;
+					continue;
+				}
+
+				final double va = a.values[ i ];
+				final double vb = b.values[ j ];
+				if ( Double.isNaN( va ) || Double.isNaN( vb ) )
+				{
+					d2 += a.strings[ i ].equals( b.strings[ j ] ) ? 0. : 1.;
+				}
+				else
+				{
+					final double[] range = ranges.get( a.keys[ i ] );
+					final double width = ( range == null || range[ 1 ] <= range[ 0 ] ) ? 1. : range[ 1 ] - range[ 0 ];
+					final double d = ( va - vb ) / width;
+					d2 += d * d;
+				}
+				i++;
+				j++;
+			}
+			return Math.sqrt( d2 );
+		}
+	}
+
+	/**
+	 * The time of one configuration, with its parameters sorted by key.
+	 */
+	private static final class Record
+	{
+
+		private final String[] keys;
+
+		private final String[] strings;
+
+		private final double[] values;
+
+		private final double logTime;
+
+		private Record( final Map< String, String > features, final double logTime )
+		{
+			final Map< String, String > sorted = ( features instanceof TreeMap ) ? features : new TreeMap<>( features );
+			this.keys = sorted.keySet().toArray( new String[ 0 ] );
+			this.strings = sorted.values().toArray( new String[ 0 ] );
+			this.values = new double[ keys.length ];
+			for ( int i = 0; i < keys.length; i++ )
+				values[ i ] = toNumber( strings[ i ] );
+			this.logTime = logTime;
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.io.TmXmlWriter;
+
+/**
+ * The stages of a parameter sweep that follow tracking: scoring and
+ * persistence.
+ * <p>
+ * The sweep jobs run detection and tracking, then hand each tracked TrackMate
+ * instance to this pipeline with {@link #submit(TrackMate, double, double)}
+ * and go on with the next configuration. The scoring stage measures the
+ * tracking metrics (this includes the CTC export for the CTC metrics) with
+ * {@link MetricsRunner#measure(TrackMate)}, and hands the metrics to the
+ * persistence stage. This one appends them to the results files and saves
+ * the TrackMate XML files if required. Writing files thus overlaps with
+ * detection and tracking.
+ * <p>
+ * Scoring runs in a fork-join pool with as many threads as configurations
+ * scored concurrently. The parallel sections of the scoring, for instance the
+ * parallel streams of the SPT metrics, therefore run in this pool and not in
+ * the common pool, so that scoring does not use more threads than set aside
+ * for it. If no thread is set aside for scoring, the configurations are scored
+ * in the thread that submits them.
+ * <p>
+ * The stages are connected with bounded queues. Submitting blocks when the
+ * scoring queue is full, so the number of tracked TrackMate instances held
+ * in memory stays bounded even if scoring or writing lag behind.
+ * <p>
+ * If the sweep is canceled, the configurations waiting to be scored are
+ * dropped, and will be run again when the sweep is resumed. The metrics
+ * already measured are still written.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class SweepPipeline
+{
+
+	/**
+	 * Marks the end of the items in a queue.
+	 */
+	private static final Item END = new Item( null, Double.NaN, Double.NaN );
+
+	private final MetricsRunner runner;
+
+	private final String savePath;
+
+	private final boolean saveTrackMateFiles;
+
+	private final Logger batchLogger;
+
+	private final Cancelable cancelable;
+
+	private final int nScoringThreads;
+
+	private final BlockingQueue< Item > toScore;
+
+	private final BlockingQueue< Item > toPersist;
+
+	private final ExecutorService scoringExecutor;
+
+	private final ForkJoinPool scoringPool;
+
+	private final ExecutorService persistenceExecutor;
+
+	/**
+	 * Creates and starts a pipeline.
+	 * 
+	 * @param runner
+	 *            the runner used to measure and write metrics.
+	 * @param savePath
+	 *            the folder in which to save the TrackMate XML files.
+	 * @param saveTrackMateFiles
+	 *            whether to save a TrackMate XML file for every
+	 *            configuration.
+	 * @param nScoringThreads
+	 *            the number of threads used for scoring, which is also the
+	 *            number of configurations scored concurrently. If 0, the
+	 *            configurations are scored in the thread that submits them.
+	 * @param capacity
+	 *            the capacity of the queues between stages.
+	 * @param batchLogger
+	 *            the logger to report errors.
+	 * @param cancelable
+	 *            the sweep, checked for cancellation.
+	 */
+	public SweepPipeline(
+			final MetricsRunner runner,
+			final String savePath,
+			final boolean saveTrackMateFiles,
+			final int nScoringThreads,
+			final int capacity,
+			final Logger batchLogger,
+			final Cancelable cancelable )
+	{
+		this.runner = runner;
+		this.savePath = savePath;
+		this.saveTrackMateFiles = saveTrackMateFiles;
+		this.batchLogger = batchLogger;
+		this.cancelable = cancelable;
+		this.nScoringThreads = Math.max( 0, nScoringThreads );
+		runner.setMaxConcurrentMeasurements( Math.max( 1, this.nScoringThreads ) );
+		this.toScore = new ArrayBlockingQueue<>( Math.max( 1, capacity ) );
+		this.toPersist = new ArrayBlockingQueue<>( Math.max( 1, capacity ) );
+		this.scoringExecutor = ( this.nScoringThreads == 0 ) ? null : Executors.newFixedThreadPool( this.nScoringThreads );
+		this.scoringPool = new ForkJoinPool( Math.max( 1, this.nScoringThreads ) );
+		this.persistenceExecutor = Executors.newSingleThreadExecutor();
+		for ( int i = 0; i < this.nScoringThreads; i++ )
+			scoringExecutor.execute( this::score );
+		persistenceExecutor.execute( this::persist );
+	}
+
+	/**
+	 * Hands a tracked TrackMate instance to the scoring stage. Blocks while the
+	 * scoring queue is full.
+	 * 
+	 * @param trackmate
+	 *            the TrackMate instance, after tracking. It must not be
+	 *            modified after this call.
+	 * @param detectionTiming
+	 *            the detection time in seconds.
+	 * @param trackingTiming
+	 *            the tracking time in seconds.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for space in the queue.
+	 */
+	public void submit( final TrackMate trackmate, final double detectionTiming, final double trackingTiming ) throws InterruptedException
+	{
+		final Item item = new Item( trackmate, detectionTiming, trackingTiming );
+		if ( scoringExecutor != null )
+		{
+			toScore.put( item );
+			return;
+		}
+
+		// No scoring thread.
+		if ( cancelable.isCanceled() )
+			return;
+		measure( item );
+		toPersist.put( item );
+	}
+
+	/**
+	 * Waits for all the submitted configurations to be scored and written,
+	 * then stops the stages.
+	 * 
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public void close() throws InterruptedException
+	{
+		try
+		{
+			if ( scoringExecutor != null )
+			{
+				for ( int i = 0; i < nScoringThreads; i++ )
+					toScore.put( END );
+				scoringExecutor.shutdown();
+				scoringExecutor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+			}
+			scoringPool.shutdown();
+			toPersist.put( END );
+			persistenceExecutor.shutdown();
+			persistenceExecutor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+		}
+		finally
+		{
+			if ( scoringExecutor != null )
+				scoringExecutor.shutdownNow();
+			scoringPool.shutdownNow();
+			persistenceExecutor.shutdownNow();
+		}
+	}
+
+	private void score()
+	{
+		try
+		{
+			while ( true )
+			{
+				final Item item = toScore.take();
+				if ( item == END )
+					return;
+				if ( cancelable.isCanceled() )
+					continue;
+
+				measure( item );
+				toPersist.put( item );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void measure( final Item item ) throws InterruptedException
+	{
+		try
+		{
+			item.metrics = scoringPool.submit( () -> runner.measure( item.trackmate ) ).get();
+		}
+		catch ( final ExecutionException e )
+		{
+			batchLogger.error( "Error measuring tracking metrics:\n" + e.getCause().getMessage() + '\n' );
+			e.getCause().printStackTrace();
+		}
+	}
+
+	private void persist()
+	{
+		try
+		{
+			while ( true )
+			{
+				final Item item = toPersist.take();
+				if ( item == END )
+					return;
+
+				try
+				{
+					runner.writeMetrics( item.trackmate.getSettings(), item.metrics, item.detectionTiming, item.trackingTiming );
+					if ( saveTrackMateFiles )
+						saveTrackMateFile( item.trackmate );
+				}
+				catch ( final RuntimeException e )
+				{
+					batchLogger.error( "Error writing results:\n" + e.getMessage() + '\n' );
+					e.printStackTrace();
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void saveTrackMateFile( final TrackMate trackmate )
+	{
+		final Settings settings = trackmate.getSettings();
+		final String nameGen = "TrackMate_%s_%s_%03d.xml";
+		int i = 1;
+		File trackmateFile;
+		do
+		{
+			trackmateFile = new File( savePath,
+					String.format( nameGen,
+							settings.detectorFactory.getKey(),
+							settings.trackerFactory.getKey(),
+							i++ ) );
+		}
+		while ( trackmateFile.exists() );
+
+		final TmXmlWriter writer = new TmXmlWriter( trackmateFile, Logger.VOID_LOGGER );
+		writer.appendModel( trackmate.getModel() );
+		writer.appendSettings( trackmate.getSettings() );
+		writer.appendGUIState( "ConfigureViews" );
+		try
+		{
+			writer.writeToFile();
+			batchLogger.log( "Saved results to TrackMate file: " + trackmateFile + "\n" );
+		}
+		catch ( final IOException e )
+		{
+			batchLogger.error( e.getMessage() );
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A tracked configuration moving through the stages.
+	 */
+	private static final class Item
+	{
+
+		private final TrackMate trackmate;
+
+		private final double detectionTiming;
+
+		private final double trackingTiming;
+
+		private TrackingMetrics metrics;
+
+		private Item( final TrackMate trackmate, final double detectionTiming, final double trackingTiming )
+		{
+			this.trackmate = trackmate;
+			this.detectionTiming = detectionTiming;
+			this.trackingTiming = trackingTiming;
+		}
+	}
+}
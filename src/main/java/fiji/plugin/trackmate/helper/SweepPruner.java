@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.helper.model.detector.DetectorSweepModel;
+import fiji.plugin.trackmate.helper.model.detector.DetectorSweepModel.Monotonicity;
+
+/**
+ * Skips the detection configurations of a parameter sweep whose outcome is
+ * predicted by the configurations already run, using the parameters declared
+ * monotone by the detector models.
+ * <p>
+ * If a detection configuration yields no spot, the configurations of the
+ * same detector with the same parameters, except for higher values of its
+ * monotone parameters, yield no spot either. If a detection yields more
+ * spots than the spot budget, and all the monotone parameters of the
+ * detector are {@link Monotonicity#DECREASING}, lower values yield even
+ * more. Such configurations are dominated, and need not be run.
+ * <p>
+ * Which configurations are dominated depends on the order they are run in.
+ * Along a monotone parameter, running the middle value first, like in a
+ * bisection, prunes the higher or the lower values whatever its outcome.
+ * {@link #splits(List)} gives how many configurations the outcome of each
+ * one can prune, so that a schedule can run these first.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Jean-Yves Tinevez
+ * @see DetectorSweepModel#getMonotoneParameters()
+ */
+public class SweepPruner
+{
+
+	/**
+	 * Why a configuration is dominated.
+	 */
+	public enum Reason
+	{
+		/**
+		 * A configuration with lower values yielded no spot.
+		 */
+		NO_SPOT,
+		/**
+		 * A configuration with higher values yielded more spots than the
+		 * budget.
+		 */
+		TOO_MANY_SPOTS;
+	}
+
+	private final int maxSpots;
+
+	/** Monotone parameters, by detector key. */
+	private final Map< String, Map< String, Monotonicity > > declarations = new HashMap<>();
+
+	/** Detector settings that yielded no spot. */
+	private final List< Settings > empty = new ArrayList<>();
+
+	/** Detector settings that yielded too many spots. */
+	private final List< Settings > exploded = new ArrayList<>();
+
+	/**
+	 * Creates a pruner.
+	 * 
+	 * @param maxSpots
+	 *            the max number of spots a detection can yield.
+	 */
+	public SweepPruner( final int maxSpots )
+	{
+		this.maxSpots = maxSpots;
+	}
+
+	/**
+	 * Declares the monotone parameters of a detector.
+	 * 
+	 * @param detectorKey
+	 *            the key of the detector factory.
+	 * @param parameters
+	 *            the monotone parameters of the detector.
+	 */
+	public synchronized void declare( final String detectorKey, final Map< String, Monotonicity > parameters )
+	{
+		if ( !parameters.isEmpty() )
+			declarations.put( detectorKey, parameters );
+	}
+
+	/**
+	 * Records the outcome of a detection.
+	 * 
+	 * @param settings
+	 *            the detection settings.
+	 * @param nVisibleSpots
+	 *            the number of spots after spot filtering.
+	 * @param nSpots
+	 *            the number of spots before spot filtering.
+	 */
+	public synchronized void record( final Settings settings, final int nVisibleSpots, final int nSpots )
+	{
+		final Map< String, Monotonicity > parameters = declarations.get( settings.detectorFactory.getKey() );
+		if ( parameters == null )
+			return;
+
+		/*
+		 * Spot filters can keep spots that split when a VANISHING parameter
+		 * increases, so only the absence of any spot can be extrapolated for
+		 * these.
+		 */
+		final boolean decreasing = !parameters.containsValue( Monotonicity.VANISHING );
+		if ( nSpots == 0 || ( nVisibleSpots == 0 && decreasing ) )
+			empty.add( settings );
+		else if ( nSpots > maxSpots && decreasing )
+			exploded.add( settings );
+	}
+
+	/**
+	 * Returns whether the specified detection settings are dominated by the
+	 * outcome of a detection already recorded.
+	 * 
+	 * @param settings
+	 *            the detection settings.
+	 * @return the reason why the settings are dominated, or <code>null</code>
+	 *         if they are not.
+	 */
+	public synchronized Reason dominated( final Settings settings )
+	{
+		final Map< String, Monotonicity > parameters = declarations.get( settings.detectorFactory.getKey() );
+		if ( parameters == null )
+			return null;
+
+		for ( final Settings other : empty )
+			if ( dominates( other, settings, parameters.keySet(), 1 ) )
+				return Reason.NO_SPOT;
+		for ( final Settings other : exploded )
+			if ( dominates( other, settings, parameters.keySet(), -1 ) )
+				return Reason.TOO_MANY_SPOTS;
+		return null;
+	}
+
+	/**
+	 * Returns, for each of the specified detection settings, how many of the
+	 * others its outcome can prune in the worst case. This is the smaller of
+	 * the numbers of settings with higher and with lower values of the
+	 * monotone parameters, all other parameters being equal.
+	 * 
+	 * @param settings
+	 *            the detection settings, for instance of the detection jobs
+	 *            not run yet.
+	 * @return a new array, with one value per settings, in the same order.
+	 */
+	public synchronized int[] splits( final List< Settings > settings )
+	{
+		final int[] splits = new int[ settings.size() ];
+
+		// Only the settings with the same other parameters can dominate.
+		final Map< String, List< Integer > > chains = new HashMap<>();
+		for ( int i = 0; i < settings.size(); i++ )
+		{
+			final Settings s = settings.get( i );
+			final Map< String, Monotonicity > parameters = declarations.get( s.detectorFactory.getKey() );
+			if ( parameters != null )
+				chains.computeIfAbsent( chainKey( s, parameters.keySet() ), k -> new ArrayList<>() ).add( i );
+		}
+
+		for ( final List< Integer > chain : chains.values() )
+		{
+			final Set< String > monotone = declarations.get( settings.get( chain.get( 0 ) ).detectorFactory.getKey() ).keySet();
+			for ( final int i : chain )
+			{
+				int higher = 0;
+				int lower = 0;
+				for ( final int j : chain )
+				{
+					if ( j == i )
+						continue;
+					if ( dominates( settings.get( i ), settings.get( j ), monotone, 1 ) )
+						higher++;
+					else if ( dominates( settings.get( i ), settings.get( j ), monotone, -1 ) )
+						lower++;
+				}
+				splits[ i ] = Math.min( higher, lower );
+			}
+		}
+		return splits;
+	}
+
+	/**
+	 * Returns a key that is the same for detection settings that differ only
+	 * by their monotone parameters.
+	 */
+	private static String chainKey( final Settings settings, final Set< String > monotone )
+	{
+		final StringBuilder str = new StringBuilder( settings.detectorFactory.getKey() );
+		for ( final Map.Entry< String, Object > entry : new TreeMap<>( settings.detectorSettings ).entrySet() )
+			if ( !monotone.contains( entry.getKey() ) )
+				str.append( '\n' ).append( entry.getKey() ).append( '=' ).append( entry.getValue() );
+		return str.toString();
+	}
+
+	/**
+	 * Returns <code>true</code> if the settings <code>b</code> have the same
+	 * detector and parameters as the settings <code>a</code>, except for the
+	 * monotone parameters, which vary in the specified direction from
+	 * <code>a</code> to <code>b</code>.
+	 */
+	private static boolean dominates( final Settings a, final Settings b, final Set< String > monotone, final int direction )
+	{
+		if ( !a.detectorFactory.getKey().equals( b.detectorFactory.getKey() ) )
+			return false;
+
+		final Set< String > keys = new HashSet<>( a.detectorSettings.keySet() );
+		keys.addAll( b.detectorSettings.keySet() );
+		for ( final String key : keys )
+		{
+			final Object va = a.detectorSettings.get( key );
+			final Object vb = b.detectorSettings.get( key );
+			if ( !monotone.contains( key ) )
+			{
+				if ( !Objects.equals( String.valueOf( va ), String.valueOf( vb ) ) )
+					return false;
+				continue;
+			}
+
+			if ( !( va instanceof Number ) || !( vb instanceof Number ) )
+				return false;
+			final double delta = ( ( Number ) vb ).doubleValue() - ( ( Number ) va ).doubleValue();
+			if ( delta * direction < 0. )
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,443 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fiji.plugin.trackmate.Settings;
+
+/**
+ * Orders the detection jobs of a parameter sweep cheapest first, and
+ * estimates the progress and remaining time of the sweep, from the times
+ * predicted by a {@link SweepCostModel}.
+ * <p>
+ * A job is a detection configuration and the tracker configurations run on
+ * its results. Its parts (the detection and each tracking) have a predicted
+ * cost. Running the cheapest jobs first brings useful results early in long
+ * sweeps, and lets the cost model learn from many configurations before the
+ * expensive ones are predicted. The predictions are updated as the model
+ * learns.
+ * <p>
+ * Running the cheapest jobs first runs the highest detection thresholds
+ * first, which defeats pruning the configurations that give no spot: a
+ * threshold that gives no spot only dominates higher ones, already run. If a
+ * {@link SweepPruner} is given, the jobs that are about as cheap as the
+ * cheapest one are ordered by bisection along the monotone parameters
+ * instead, so that their outcomes can prune the others. The expensive jobs
+ * are still run last, and it is mostly among them that configurations giving
+ * too many spots are pruned.
+ * <p>
+ * The progress is the fraction of the predicted cost of the sweep that is
+ * done. The remaining time is the predicted cost that remains, scaled by the
+ * ratio of the elapsed time to the predicted cost of the parts done so far.
+ * This ratio corrects the prediction bias and accounts for jobs running
+ * concurrently. Parts that are skipped, for instance when the detection
+ * gives no spot, are removed from the remaining cost.
+ * <p>
+ * The predictions are updated at most every few seconds, by the thread that
+ * asks for the next job or for the progress, without holding the lock of the
+ * schedule, so that the other threads are not blocked while it does so.
+ * Instances are thread-safe.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class SweepSchedule
+{
+
+	/**
+	 * Min time between two updates of the predictions, in nanoseconds.
+	 */
+	private static final long UPDATE_INTERVAL = 5_000_000_000L;
+
+	/**
+	 * Relative cost above the cheapest job within which jobs are ordered by
+	 * bisection along the monotone parameters.
+	 */
+	private static final double NEAR_TIE = 0.25;
+
+	private final SweepCostModel costModel;
+
+	private final SweepPruner pruner;
+
+	private final List< Job > pending;
+
+	private final List< Job > running = new ArrayList<>();
+
+	private final long start = System.nanoTime();
+
+	private int predictedVersion = -1;
+
+	private long lastUpdate;
+
+	private boolean updating = false;
+
+	private double doneCost = 0.;
+
+	/**
+	 * Creates a schedule.
+	 * 
+	 * @param jobs
+	 *            the jobs to run.
+	 * @param costModel
+	 *            the cost model to predict part costs with. It can be updated
+	 *            while the schedule is used.
+	 */
+	public SweepSchedule( final List< Job > jobs, final SweepCostModel costModel )
+	{
+		this( jobs, costModel, null );
+	}
+
+	/**
+	 * Creates a schedule that orders the jobs about as cheap as the cheapest
+	 * one so that their outcomes prune the others.
+	 * 
+	 * @param jobs
+	 *            the jobs to run.
+	 * @param costModel
+	 *            the cost model to predict part costs with. It can be updated
+	 *            while the schedule is used.
+	 * @param pruner
+	 *            the pruner the outcomes of the jobs are recorded in. Can be
+	 *            <code>null</code>, in which case the jobs are run cheapest
+	 *            first.
+	 */
+	public SweepSchedule( final List< Job > jobs, final SweepCostModel costModel, final SweepPruner pruner )
+	{
+		this.pending = new ArrayList<>( jobs );
+		this.costModel = costModel;
+		this.pruner = pruner;
+		updatePredictions();
+	}
+
+	/**
+	 * Returns the next job to run, and marks it as running. This is the
+	 * cheapest job that has not been started yet or, among the jobs about as
+	 * cheap, the one whose outcome can prune the most others.
+	 * 
+	 * @return the job, or <code>null</code> if all the jobs were started.
+	 */
+	public Job next()
+	{
+		updatePredictions();
+		synchronized ( this )
+		{
+			return nextPending();
+		}
+	}
+
+	private Job nextPending()
+	{
+		if ( pending.isEmpty() )
+			return null;
+
+		Job cheapest = null;
+		for ( final Job job : pending )
+			if ( cheapest == null || job.remainingCost() < cheapest.remainingCost() )
+				cheapest = job;
+
+		Job next = cheapest;
+		if ( pruner != null )
+		{
+			final List< Settings > detections = new ArrayList<>( pending.size() );
+			for ( final Job job : pending )
+				detections.add( job.detectionSettings );
+			final int[] splits = pruner.splits( detections );
+
+			final double bound = ( 1. + NEAR_TIE ) * cheapest.remainingCost();
+			int best = 0;
+			for ( int i = 0; i < pending.size(); i++ )
+			{
+				final Job job = pending.get( i );
+				if ( job.remainingCost() > bound || splits[ i ] < best )
+					continue;
+				if ( splits[ i ] > best || job.remainingCost() < next.remainingCost() )
+				{
+					next = job;
+					best = splits[ i ];
+				}
+			}
+		}
+		pending.remove( next );
+		running.add( next );
+		return next;
+	}
+
+	/**
+	 * Returns the number of jobs that have not been started yet.
+	 * 
+	 * @return the number of pending jobs.
+	 */
+	public synchronized int numPending()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * Marks a part of a job as done.
+	 * 
+	 * @param job
+	 *            the job.
+	 * @param part
+	 *            the part: 0 for the detection, <code>i + 1</code> for the
+	 *            tracker configuration <code>i</code>.
+	 */
+	public synchronized void done( final Job job, final int part )
+	{
+		if ( job.finished[ part ] )
+			return;
+		job.finished[ part ] = true;
+		doneCost += job.costs[ part ];
+		if ( job.isFinished() )
+			running.remove( job );
+	}
+
+	/**
+	 * Marks all the parts of a job that are not done as skipped.
+	 * 
+	 * @param job
+	 *            the job.
+	 */
+	public synchronized void skip( final Job job )
+	{
+		for ( int part = 0; part < job.finished.length; part++ )
+			job.finished[ part ] = true;
+		running.remove( job );
+	}
+
+	/**
+	 * Returns the fraction of the predicted cost of the sweep that is done.
+	 * 
+	 * @return the progress, from 0 to 1.
+	 */
+	public double progress()
+	{
+		updatePredictions();
+		synchronized ( this )
+		{
+			final double remaining = remainingCost();
+			return ( doneCost + remaining > 0. ) ? doneCost / ( doneCost + remaining ) : 1.;
+		}
+	}
+
+	/**
+	 * Returns the estimated time before the end of the sweep.
+	 * 
+	 * @return the time in seconds, or <code>NaN</code> if no part of a job is
+	 *         done yet.
+	 */
+	public double remainingTime()
+	{
+		updatePredictions();
+		synchronized ( this )
+		{
+			if ( doneCost <= 0. )
+				return Double.NaN;
+
+			final double elapsed = ( System.nanoTime() - start ) / 1e9;
+			return remainingCost() * elapsed / doneCost;
+		}
+	}
+
+	private double remainingCost()
+	{
+		double remaining = 0.;
+		for ( final Job job : pending )
+			remaining += job.remainingCost();
+		for ( final Job job : running )
+			remaining += job.remainingCost();
+		return remaining;
+	}
+
+	/**
+	 * Predicts the costs of the parts not done yet, if the model changed
+	 * since the last update and this update is not too recent. The
+	 * predictions are made without holding the lock of the schedule. If
+	 * another thread is already updating them, returns immediately and the
+	 * previous predictions are used meanwhile.
+	 */
+	private void updatePredictions()
+	{
+		final int version = costModel.version();
+		final long now = System.nanoTime();
+		final List< Job > jobs;
+		final List< boolean[] > toPredict;
+		synchronized ( this )
+		{
+			if ( updating || version == predictedVersion || ( predictedVersion >= 0 && now - lastUpdate < UPDATE_INTERVAL ) )
+				return;
+
+			updating = true;
+			jobs = new ArrayList<>( pending.size() + running.size() );
+			jobs.addAll( pending );
+			jobs.addAll( running );
+			toPredict = new ArrayList<>( jobs.size() );
+			for ( final Job job : jobs )
+				toPredict.add( job.finished.clone() );
+		}
+
+		final List< double[] > costs = new ArrayList<>( jobs.size() );
+		try
+		{
+			for ( int i = 0; i < jobs.size(); i++ )
+				costs.add( jobs.get( i ).predict( costModel, toPredict.get( i ) ) );
+		}
+		finally
+		{
+			synchronized ( this )
+			{
+				for ( int i = 0; i < costs.size(); i++ )
+					jobs.get( i ).setCosts( costs.get( i ) );
+				if ( costs.size() == jobs.size() )
+				{
+					predictedVersion = version;
+					lastUpdate = now;
+				}
+				updating = false;
+			}
+		}
+	}
+
+	/**
+	 * A detection configuration and the tracker configurations to run on its
+	 * results.
+	 */
+	public static final class Job
+	{
+
+		private final Settings detectionSettings;
+
+		private final List< Settings > configs;
+
+		private final boolean[] alreadyRun;
+
+		/** Predicted cost of each part. */
+		private final double[] costs;
+
+		/** Whether each part is done or skipped. */
+		private final boolean[] finished;
+
+		/**
+		 * Creates a job.
+		 * 
+		 * @param detectionSettings
+		 *            the detection configuration.
+		 * @param configs
+		 *            the configurations of the job, with the detector and the
+		 *            tracker settings.
+		 * @param alreadyRun
+		 *            for each configuration, whether it was already run, in
+		 *            which case it does not contribute to the cost of the job.
+		 *            If they all were, the detection does not either.
+		 */
+		public Job( final Settings detectionSettings, final List< Settings > configs, final boolean[] alreadyRun )
+		{
+			this.detectionSettings = detectionSettings;
+			this.configs = configs;
+			this.alreadyRun = alreadyRun.clone();
+			this.costs = new double[ configs.size() + 1 ];
+			this.finished = new boolean[ configs.size() + 1 ];
+			boolean allRun = true;
+			for ( int i = 0; i < configs.size(); i++ )
+			{
+				finished[ i + 1 ] = alreadyRun[ i ];
+				allRun &= alreadyRun[ i ];
+			}
+			finished[ 0 ] = allRun;
+		}
+
+		/**
+		 * Returns the detection configuration of this job.
+		 * 
+		 * @return the detection settings.
+		 */
+		public Settings getDetectionSettings()
+		{
+			return detectionSettings;
+		}
+
+		/**
+		 * Returns the configurations of this job, with the detector and the
+		 * tracker settings.
+		 * 
+		 * @return the configurations.
+		 */
+		public List< Settings > getConfigs()
+		{
+			return configs;
+		}
+
+		/**
+		 * Returns whether a configuration of this job was already run before
+		 * the sweep started.
+		 * 
+		 * @param i
+		 *            the index of the configuration.
+		 * @return <code>true</code> if the configuration was already run.
+		 */
+		public boolean wasAlreadyRun( final int i )
+		{
+			return alreadyRun[ i ];
+		}
+
+		private boolean isFinished()
+		{
+			for ( final boolean f : finished )
+				if ( !f )
+					return false;
+			return true;
+		}
+
+		private double remainingCost()
+		{
+			double cost = 0.;
+			for ( int part = 0; part < costs.length; part++ )
+				if ( !finished[ part ] )
+					cost += costs[ part ];
+			return cost;
+		}
+
+		/**
+		 * Predicts the costs of the parts of this job. Parts that are
+		 * finished are not predicted, and have a <code>NaN</code> cost.
+		 */
+		private double[] predict( final SweepCostModel costModel, final boolean[] finished )
+		{
+			final double[] predicted = new double[ costs.length ];
+			predicted[ 0 ] = finished[ 0 ] ? Double.NaN : costModel.detectionTime( detectionSettings );
+			for ( int i = 0; i < configs.size(); i++ )
+				predicted[ i + 1 ] = finished[ i + 1 ] ? Double.NaN : costModel.trackingTime( configs.get( i ) );
+			return predicted;
+		}
+
+		/**
+		 * Sets the predicted costs of the parts of this job that are not
+		 * finished.
+		 */
+		private void setCosts( final double[] predicted )
+		{
+			for ( int part = 0; part < costs.length; part++ )
+				if ( !finished[ part ] && !Double.isNaN( predicted[ part ] ) )
+					costs[ part ] = predicted[ part ];
+		}
+	}
+}
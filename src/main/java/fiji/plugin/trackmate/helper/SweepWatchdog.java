@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import fiji.plugin.trackmate.TrackMate;
+
+/**
+ * Enforces per-configuration budgets during a parameter sweep.
+ * <p>
+ * A single configuration can take hours, for instance a tracker with a huge
+ * linking distance on dense frames, or a detector with a tiny radius that
+ * finds millions of spots. The rest of the sweep would stall behind it. This
+ * watchdog bounds the wall-clock time of the detection and of the tracking
+ * of each configuration, and the number of spots a detection can hand to the
+ * next steps.
+ * <p>
+ * A stage is watched with {@link #watchDetection(TrackMate)} or
+ * {@link #watchTracking(TrackMate)}. If it is still running when its budget
+ * is exceeded, the watchdog calls {@link TrackMate#cancel(String)} on the
+ * TrackMate instance, which stops the detector or tracker if it supports
+ * cancellation. The configuration is then recorded with a timeout marker
+ * and is not run again when the sweep is resumed.
+ * <p>
+ * The timer thread is only started if a time budget is set. Instances are
+ * thread-safe.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class SweepWatchdog
+{
+
+	private final double maxDetectionTime;
+
+	private final double maxTrackingTime;
+
+	private final int maxSpots;
+
+	private ScheduledExecutorService timer;
+
+	/**
+	 * Creates a watchdog without any budget.
+	 */
+	public SweepWatchdog()
+	{
+		this( Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * Creates a watchdog.
+	 * 
+	 * @param maxDetectionTime
+	 *            the max time of the detection of a configuration, in
+	 *            seconds. Use {@link Double#POSITIVE_INFINITY} for no limit.
+	 * @param maxTrackingTime
+	 *            the max time of the tracking of a configuration, in seconds.
+	 *            Use {@link Double#POSITIVE_INFINITY} for no limit.
+	 * @param maxSpots
+	 *            the max number of spots a detection can yield. Use
+	 *            {@link Integer#MAX_VALUE} for no limit.
+	 */
+	public SweepWatchdog( final double maxDetectionTime, final double maxTrackingTime, final int maxSpots )
+	{
+		this.maxDetectionTime = maxDetectionTime;
+		this.maxTrackingTime = maxTrackingTime;
+		this.maxSpots = maxSpots;
+	}
+
+	/**
+	 * Starts watching the detection of a TrackMate instance.
+	 * 
+	 * @param trackmate
+	 *            the TrackMate instance.
+	 * @return the watch, to stop when the detection is done.
+	 */
+	public Watch watchDetection( final TrackMate trackmate )
+	{
+		return watch( trackmate, "Detection", maxDetectionTime );
+	}
+
+	/**
+	 * Starts watching the tracking of a TrackMate instance.
+	 * 
+	 * @param trackmate
+	 *            the TrackMate instance.
+	 * @return the watch, to stop when the tracking is done.
+	 */
+	public Watch watchTracking( final TrackMate trackmate )
+	{
+		return watch( trackmate, "Tracking", maxTrackingTime );
+	}
+
+	/**
+	 * Returns the max number of spots a detection can yield.
+	 * 
+	 * @return the max number of spots.
+	 */
+	public int getMaxSpots()
+	{
+		return maxSpots;
+	}
+
+	/**
+	 * Stops the timer thread. Watches that are running will not expire.
+	 */
+	public synchronized void close()
+	{
+		if ( timer != null )
+			timer.shutdownNow();
+		timer = null;
+	}
+
+	private Watch watch( final TrackMate trackmate, final String stage, final double maxTime )
+	{
+		final Watch watch = new Watch( maxTime );
+		if ( !( maxTime > 0. ) || Double.isInfinite( maxTime ) )
+			return watch;
+
+		final String reason = String.format( "%s exceeded its time budget of %.1f s.", stage, maxTime );
+		synchronized ( this )
+		{
+			if ( timer == null )
+				timer = Executors.newSingleThreadScheduledExecutor( r -> {
+					final Thread thread = new Thread( r, "TrackMate-Helper-Watchdog" );
+					thread.setDaemon( true );
+					return thread;
+				} );
+			watch.future = timer.schedule( () -> watch.expire( trackmate, reason ), ( long ) ( maxTime * 1e6 ), TimeUnit.MICROSECONDS );
+		}
+		return watch;
+	}
+
+	/**
+	 * The watch of a stage of one configuration.
+	 */
+	public static final class Watch
+	{
+
+		private final double maxTime;
+
+		private ScheduledFuture< ? > future;
+
+		private boolean stopped;
+
+		private boolean expired;
+
+		private Watch( final double maxTime )
+		{
+			this.maxTime = maxTime;
+		}
+
+		/**
+		 * Stops watching. Must be called when the stage is done, whether it
+		 * succeeded or not.
+		 */
+		public synchronized void stop()
+		{
+			stopped = true;
+			if ( future != null )
+				future.cancel( false );
+		}
+
+		/**
+		 * Returns whether the stage exceeded its time budget and was
+		 * canceled.
+		 * 
+		 * @return <code>true</code> if the stage was canceled.
+		 */
+		public synchronized boolean isExpired()
+		{
+			return expired;
+		}
+
+		/**
+		 * Returns the time budget of the stage.
+		 * 
+		 * @return the max time in seconds.
+		 */
+		public double getMaxTime()
+		{
+			return maxTime;
+		}
+
+		private synchronized void expire( final TrackMate trackmate, final String reason )
+		{
+			if ( stopped )
+				return;
+			expired = true;
+			trackmate.cancel( reason );
+		}
+	}
+}
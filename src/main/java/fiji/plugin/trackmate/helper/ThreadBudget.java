@@ -0,0 +1,345 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits a global budget of threads between concurrent detection
+ * configurations and the threads each of them gives to its TrackMate
+ * instance.
+ * <p>
+ * A sweep job (a detector configuration and all the tracker configurations
+ * run on its detection) gets a lease of threads with
+ * {@link #acquire(Map, int)} and gives it back with {@link #release(Lease)}.
+ * The sum of the leased threads never exceeds the budget.
+ * <p>
+ * How many jobs should run concurrently depends on how well each stage
+ * scales with the number of threads. The time of each stage is modeled with
+ * Amdahl's law, <code>T(n) = a + b / n</code>, where <code>a</code> is the
+ * serial time and <code>b</code> the parallel time of the stage run on one
+ * thread. The two are fitted by least-squares on the timings recorded with
+ * {@link #record(String, int, double)}, per stage key (for instance per
+ * detector). Until a stage has been timed with two different numbers of
+ * threads, a default serial fraction is used, and one job running it gets
+ * another number of threads than planned to probe its scalability.
+ * <p>
+ * From the fitted models, the concurrency is the smallest number of jobs
+ * whose expected throughput is within 10% of the best one. Stages that
+ * scale well run with many threads and few jobs in memory, and stages that
+ * do not scale run as many concurrent jobs as allowed.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class ThreadBudget
+{
+
+	/**
+	 * Serial fraction used for stages that have not been timed with two
+	 * different numbers of threads.
+	 */
+	private static final double DEFAULT_SERIAL_FRACTION = 0.1;
+
+	/**
+	 * Relative throughput loss accepted to run less concurrent jobs.
+	 */
+	private static final double THROUGHPUT_TOLERANCE = 0.1;
+
+	private final int numThreads;
+
+	private final int maxConcurrentJobs;
+
+	private final Map< String, AmdahlFit > fits = new HashMap<>();
+
+	private int leasedThreads = 0;
+
+	private int activeJobs = 0;
+
+	/**
+	 * Creates a new budget.
+	 * 
+	 * @param numThreads
+	 *            the total number of threads to split between jobs.
+	 * @param maxConcurrentJobs
+	 *            the max number of jobs that can run concurrently, for
+	 *            instance to bound the memory used by the sweep.
+	 */
+	public ThreadBudget( final int numThreads, final int maxConcurrentJobs )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+		this.maxConcurrentJobs = Math.max( 1, Math.min( this.numThreads, maxConcurrentJobs ) );
+	}
+
+	/**
+	 * Returns the total number of threads of this budget.
+	 * 
+	 * @return the number of threads.
+	 */
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * Returns the max number of jobs that can run concurrently.
+	 * 
+	 * @return the max number of jobs.
+	 */
+	public int getMaxConcurrentJobs()
+	{
+		return maxConcurrentJobs;
+	}
+
+	/**
+	 * Leases threads for a job. Blocks until the job can start without
+	 * exceeding the budget or the planned concurrency.
+	 * 
+	 * @param stages
+	 *            the stages the job will run, as stage keys mapped to the
+	 *            number of times they will be run.
+	 * @param remainingJobs
+	 *            the number of jobs that remain to be run, including this
+	 *            one.
+	 * @return the lease, to give back with {@link #release(Lease)}.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for threads.
+	 */
+	public synchronized Lease acquire( final Map< String, Integer > stages, final int remainingJobs ) throws InterruptedException
+	{
+		while ( true )
+		{
+			final int concurrency = concurrency( stages, remainingJobs );
+			final int free = numThreads - leasedThreads;
+			if ( free > 0 && activeJobs < concurrency )
+			{
+				final int planned = Math.min( free, Math.max( 1, numThreads / concurrency ) );
+
+				// Probe a stage that was always timed with this many threads.
+				AmdahlFit probe = null;
+				for ( final String stage : stages.keySet() )
+				{
+					final AmdahlFit fit = fits.get( stage );
+					if ( fit != null && !fit.varied && !fit.probing && fit.firstThreads == planned && ( planned > 1 || free > 1 ) )
+					{
+						probe = fit;
+						break;
+					}
+				}
+				final int threads = ( probe == null ) ? planned : ( planned > 1 ) ? planned / 2 : 2;
+				if ( probe != null )
+					probe.probing = true;
+
+				leasedThreads += threads;
+				activeJobs++;
+				return new Lease( threads, probe );
+			}
+			wait();
+		}
+	}
+
+	/**
+	 * Gives back the threads of a lease.
+	 * 
+	 * @param lease
+	 *            the lease, acquired with {@link #acquire(Map, int)}. Can be
+	 *            <code>null</code>, in which case this call does nothing.
+	 */
+	public synchronized void release( final Lease lease )
+	{
+		if ( lease == null || lease.released )
+			return;
+
+		lease.released = true;
+		if ( lease.probe != null )
+			lease.probe.probing = false;
+		leasedThreads -= lease.threads;
+		activeJobs--;
+		notifyAll();
+	}
+
+	/**
+	 * Records the time taken by a stage.
+	 * 
+	 * @param stage
+	 *            the stage key.
+	 * @param threads
+	 *            the number of threads the stage was run with.
+	 * @param seconds
+	 *            the time taken, in seconds. Ignored if not a positive
+	 *            number.
+	 */
+	public synchronized void record( final String stage, final int threads, final double seconds )
+	{
+		if ( !( seconds > 0. ) || Double.isInfinite( seconds ) || threads < 1 )
+			return;
+
+		fits.computeIfAbsent( stage, k -> new AmdahlFit() ).add( threads, seconds );
+		notifyAll();
+	}
+
+	/**
+	 * Returns the serial fraction fitted for a stage, or the default one if it
+	 * cannot be fitted yet.
+	 * 
+	 * @param stage
+	 *            the stage key.
+	 * @return the serial fraction, between 0 and 1.
+	 */
+	public synchronized double serialFraction( final String stage )
+	{
+		final AmdahlFit fit = fits.get( stage );
+		return ( fit == null ) ? DEFAULT_SERIAL_FRACTION : fit.serialFraction();
+	}
+
+	/**
+	 * Returns the number of jobs to run concurrently.
+	 */
+	private int concurrency( final Map< String, Integer > stages, final int remainingJobs )
+	{
+		// Job model: sum of the stage models.
+		double serial = 0.;
+		double parallel = 0.;
+		for ( final Map.Entry< String, Integer > stage : stages.entrySet() )
+		{
+			final AmdahlFit fit = fits.get( stage.getKey() );
+			final double f = ( fit == null ) ? DEFAULT_SERIAL_FRACTION : fit.serialFraction();
+			final double t1 = ( fit == null ) ? 1. : fit.singleThreadTime( f );
+			serial += stage.getValue() * f * t1;
+			parallel += stage.getValue() * ( 1. - f ) * t1;
+		}
+		final double f = ( serial + parallel > 0. ) ? serial / ( serial + parallel ) : DEFAULT_SERIAL_FRACTION;
+
+		final int maxJobs = Math.max( 1, Math.min( maxConcurrentJobs, remainingJobs ) );
+		final double[] throughputs = new double[ maxJobs + 1 ];
+		double best = 0.;
+		for ( int k = 1; k <= maxJobs; k++ )
+		{
+			final int n = Math.max( 1, numThreads / k );
+			throughputs[ k ] = k / ( f + ( 1. - f ) / n );
+			best = Math.max( best, throughputs[ k ] );
+		}
+		for ( int k = 1; k < maxJobs; k++ )
+			if ( throughputs[ k ] >= ( 1. - THROUGHPUT_TOLERANCE ) * best )
+				return k;
+		return maxJobs;
+	}
+
+	/**
+	 * Threads leased to a job.
+	 */
+	public static final class Lease
+	{
+
+		private final int threads;
+
+		/**
+		 * The stage this lease probes with an unusual number of threads, or
+		 * <code>null</code>.
+		 */
+		private final AmdahlFit probe;
+
+		private boolean released = false;
+
+		private Lease( final int threads, final AmdahlFit probe )
+		{
+			this.threads = threads;
+			this.probe = probe;
+		}
+
+		/**
+		 * Returns the number of threads the job can use.
+		 * 
+		 * @return the number of threads.
+		 */
+		public int getThreads()
+		{
+			return threads;
+		}
+	}
+
+	/**
+	 * Least-squares fit of <code>T = a + b x</code>, with
+	 * <code>x = 1 / n</code>.
+	 */
+	private static final class AmdahlFit
+	{
+
+		private int count;
+
+		private double sx;
+
+		private double sxx;
+
+		private double st;
+
+		private double sxt;
+
+		/** Number of threads of the first record. */
+		private int firstThreads;
+
+		/** Whether the stage was timed with different numbers of threads. */
+		private boolean varied;
+
+		/** Whether a job is currently probing another number of threads. */
+		private boolean probing;
+
+		private void add( final int threads, final double seconds )
+		{
+			if ( count == 0 )
+				firstThreads = threads;
+			else if ( threads != firstThreads )
+				varied = true;
+			final double x = 1. / threads;
+			count++;
+			sx += x;
+			sxx += x * x;
+			st += seconds;
+			sxt += x * seconds;
+		}
+
+		private double serialFraction()
+		{
+			final double det = count * sxx - sx * sx;
+			// Only one number of threads so far?
+			if ( count < 2 || det <= 1e-12 * count * sxx )
+				return DEFAULT_SERIAL_FRACTION;
+
+			final double b = Math.max( 0., ( count * sxt - sx * st ) / det );
+			final double a = Math.max( 0., ( st - b * sx ) / count );
+			return ( a + b > 0. ) ? a / ( a + b ) : DEFAULT_SERIAL_FRACTION;
+		}
+
+		/**
+		 * Mean time the stage would take on one thread, given its serial
+		 * fraction.
+		 */
+		private double singleThreadTime( final double f )
+		{
+			// T(n) = T1 ( f + ( 1 - f ) x ), averaged over the records.
+			final double mean = f + ( 1. - f ) * sx / count;
+			return ( st / count ) / mean;
+		}
+	}
+}
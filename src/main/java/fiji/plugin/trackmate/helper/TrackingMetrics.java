@@ -49,6 +49,17 @@ public class TrackingMetrics
 		return true;
 	}
 
+	/**
+	 * Returns <code>true</code> if these metrics mark settings that exceeded
+	 * their time or spot budget, and were canceled.
+	 * 
+	 * @return <code>true</code> if the settings timed out.
+	 */
+	public boolean isTimeout()
+	{
+		return Double.isInfinite( get( TrackingMetricsType.TIM ) );
+	}
+
 	public double get( final MetricValue key )
 	{
 		return arr[ type.id( key ) ];
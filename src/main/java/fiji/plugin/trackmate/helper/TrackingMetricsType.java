@@ -115,12 +115,29 @@ public abstract class TrackingMetricsType
 	private final TObjectIntHashMap< MetricValue > idMap;
 
 	protected TrackingMetricsType( final List< MetricValue > metrics )
+	{
+		this( metrics, Collections.emptyList() );
+	}
+
+	/**
+	 * Creates a metrics type with additional metrics, that are placed after
+	 * the timing metrics. Because the header of a results file is validated
+	 * on its first columns, results files with additional metrics can still
+	 * be read by a metrics type without them.
+	 * 
+	 * @param metrics
+	 *            the metrics of this type.
+	 * @param extraMetrics
+	 *            the additional metrics.
+	 */
+	protected TrackingMetricsType( final List< MetricValue > metrics, final List< MetricValue > extraMetrics )
 	{
 		final List< MetricValue > ml = new ArrayList<>();
 		ml.addAll( metrics );
 		ml.add( TIM );
 		ml.add( DETECTION_TIME );
 		ml.add( TRACKING_TIME );
+		ml.addAll( extraMetrics );
 		this.metrics = Collections.unmodifiableList( ml );
 		// id map.
 		this.idMap = new TObjectIntHashMap<>( ml.size(), 0.5f, -1 );
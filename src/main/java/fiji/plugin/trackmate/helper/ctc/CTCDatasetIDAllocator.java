@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.ctc;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+/**
+ * Allocates CTC dataset IDs in a folder, so that concurrent exports to the
+ * same folder never use the same ID.
+ * <p>
+ * Within a JVM, IDs are taken from an atomic counter, and IDs that are
+ * released are reused. To protect against other processes sharing the same
+ * folder, each ID is also reserved with an OS-level lock on a
+ * <code>NN_RES.lock</code> file in the folder, held until the ID is released.
+ * Lock files left by a process that died are taken over, since the OS drops
+ * their lock.
+ * <p>
+ * Lock files are never deleted. Deleting a lock file while holding its lock
+ * would let another process lock a new file with the same name while a third
+ * one still holds the lock on the deleted file, and both would get the same
+ * ID.
+ * <p>
+ * There is one allocator per folder, obtained with {@link #forFolder(Path)}.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class CTCDatasetIDAllocator
+{
+
+	private static final Map< Path, CTCDatasetIDAllocator > ALLOCATORS = new ConcurrentHashMap<>();
+
+	private final Path root;
+
+	private final AtomicInteger next = new AtomicInteger( 1 );
+
+	private final ConcurrentSkipListSet< Integer > released = new ConcurrentSkipListSet<>();
+
+	private CTCDatasetIDAllocator( final Path root )
+	{
+		this.root = root;
+	}
+
+	/**
+	 * Returns the ID allocator for the specified folder.
+	 * 
+	 * @param root
+	 *            the folder in which CTC datasets are exported.
+	 * @return the allocator for this folder.
+	 */
+	public static CTCDatasetIDAllocator forFolder( final Path root )
+	{
+		final Path key = root.toAbsolutePath().normalize();
+		return ALLOCATORS.computeIfAbsent( key, CTCDatasetIDAllocator::new );
+	}
+
+	/**
+	 * Reserves a new dataset ID. The ID is guaranteed not to be reserved by
+	 * another thread or another process, until it is released.
+	 * 
+	 * @param isFree
+	 *            a test on the ID, that returns <code>false</code> if the
+	 *            dataset with this ID cannot be used, for instance because its
+	 *            folder already exists.
+	 * @return a reservation for the new ID.
+	 * @throws IOException
+	 *             if the lock file cannot be created.
+	 */
+	public Reservation reserve( final IntPredicate isFree ) throws IOException
+	{
+		while ( true )
+		{
+			final Integer recycled = released.pollFirst();
+			final int id = ( recycled != null ) ? recycled.intValue() : next.getAndIncrement();
+			if ( !isFree.test( id ) )
+				continue;
+
+			final Path lockFile = root.resolve( String.format( "%02d_RES.lock", id ) );
+			final FileChannel channel = FileChannel.open( lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+			FileLock lock;
+			try
+			{
+				lock = channel.tryLock();
+			}
+			catch ( final OverlappingFileLockException e )
+			{
+				lock = null;
+			}
+			if ( lock == null )
+			{
+				// Reserved by another process.
+				channel.close();
+				continue;
+			}
+
+			// Test again: the ID might have been used while we were locking.
+			if ( !isFree.test( id ) )
+			{
+				lock.release();
+				channel.close();
+				continue;
+			}
+			return new Reservation( id, channel, lock );
+		}
+	}
+
+	/**
+	 * A dataset ID reserved with {@link CTCDatasetIDAllocator#reserve}.
+	 */
+	public final class Reservation
+	{
+
+		private final int id;
+
+		private final FileChannel channel;
+
+		private final FileLock lock;
+
+		private boolean released = false;
+
+		private Reservation( final int id, final FileChannel channel, final FileLock lock )
+		{
+			this.id = id;
+			this.channel = channel;
+			this.lock = lock;
+		}
+
+		/**
+		 * Returns the reserved ID.
+		 * 
+		 * @return the ID.
+		 */
+		public int getID()
+		{
+			return id;
+		}
+
+		/**
+		 * Releases this ID so that it can be reserved again. Calling this
+		 * method several times has no effect after the first call.
+		 */
+		public synchronized void release()
+		{
+			if ( released )
+				return;
+			released = true;
+
+			try
+			{
+				lock.release();
+				channel.close();
+			}
+			catch ( final IOException e )
+			{
+				// Nothing we can do.
+			}
+			CTCDatasetIDAllocator.this.released.add( Integer.valueOf( id ) );
+		}
+	}
+}
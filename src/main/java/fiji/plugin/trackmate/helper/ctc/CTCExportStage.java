@@ -0,0 +1,393 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.ctc;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.action.CTCExporter;
+import fiji.plugin.trackmate.action.CTCExporter.ExportType;
+import fiji.plugin.trackmate.helper.ctc.CTCDatasetIDAllocator.Reservation;
+
+/**
+ * Exports TrackMate results to CTC files in a scratch folder, and deletes them
+ * in the background once the CTC metrics have been measured.
+ * <p>
+ * The scratch folder can be on a RAM disk (<code>/dev/shm</code> is used by
+ * default when it exists) so that the label images written for every tested
+ * configuration never hit the disk. The number of export folders that exist at
+ * the same time is bounded, so that the scratch space used stays limited even
+ * if the deletion lags behind the export.
+ * <p>
+ * The label images of one export are written one frame after the other, by the
+ * TrackMate CTC exporter, which has no entry point to write a single frame.
+ * Writing the frames of one export in parallel is left for later. Exports of
+ * different configurations run concurrently.
+ * <p>
+ * Instances are thread-safe: several workers can export at the same time.
+ * Dataset IDs are reserved with a {@link CTCDatasetIDAllocator}, so several
+ * processes can also share the same scratch folder.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class CTCExportStage
+{
+
+	/**
+	 * System property that can be used to specify the scratch folder.
+	 */
+	public static final String SCRATCH_FOLDER_PROPERTY = "trackmate.helper.ctc.scratch";
+
+	/**
+	 * System property that can be used to specify the max number of export
+	 * folders that can exist at the same time.
+	 */
+	public static final String MAX_IN_FLIGHT_PROPERTY = "trackmate.helper.ctc.maxInFlight";
+
+	private static final String RAM_DISK = "/dev/shm";
+
+	private static final String RAM_DISK_SUBFOLDER = "TrackMate-Helper";
+
+	private final Path scratchRoot;
+
+	private final InFlightLimit inFlight;
+
+	private final CTCDatasetIDAllocator ids;
+
+	private final ExecutorService deleter;
+
+	/**
+	 * Creates a new export stage.
+	 * 
+	 * @param scratchRoot
+	 *            the folder in which CTC export folders will be created.
+	 * @param maxInFlight
+	 *            the max number of export folders that can exist at the same
+	 *            time. Exports will block until older folders are deleted.
+	 */
+	public CTCExportStage( final Path scratchRoot, final int maxInFlight )
+	{
+		this.scratchRoot = scratchRoot;
+		this.inFlight = new InFlightLimit( Math.max( 1, maxInFlight ) );
+		this.ids = CTCDatasetIDAllocator.forFolder( scratchRoot );
+		this.deleter = Executors.newSingleThreadExecutor( r -> {
+			final Thread thread = new Thread( r, "TrackMate-Helper CTC cleanup thread" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Returns the folder in which CTC export folders are created.
+	 * 
+	 * @return the scratch folder.
+	 */
+	public Path getScratchRoot()
+	{
+		return scratchRoot;
+	}
+
+	/**
+	 * Changes the max number of export folders that can exist at the same
+	 * time. If it is lowered below the number of folders that exist now,
+	 * exports block until enough of them are deleted.
+	 * 
+	 * @param maxInFlight
+	 *            the max number of export folders.
+	 */
+	public void setMaxInFlight( final int maxInFlight )
+	{
+		inFlight.setMax( Math.max( 1, maxInFlight ) );
+	}
+
+	/**
+	 * Exports the tracking results of the specified TrackMate instance to a
+	 * new CTC results folder in the scratch folder. This call blocks if too
+	 * many export folders exist already.
+	 * <p>
+	 * The folder must be discarded with {@link #discard(Export, Logger)} after
+	 * use, even if this method throws an exception.
+	 * 
+	 * @param trackmate
+	 *            the TrackMate instance to export.
+	 * @param logger
+	 *            a logger to pass to the CTC exporter.
+	 * @return the export handle.
+	 * @throws IOException
+	 *             if the export fails.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for scratch space.
+	 */
+	public Export export( final TrackMate trackmate, final Logger logger ) throws IOException, InterruptedException
+	{
+		inFlight.acquire();
+		final String root = scratchRoot.toString();
+		final Reservation reservation;
+		try
+		{
+			reservation = ids.reserve( id -> !Files.exists(
+					Paths.get( CTCExporter.getExportTrackingDataPath( root, id, ExportType.RESULTS, trackmate ) ) ) );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			inFlight.release();
+			throw e;
+		}
+		final int id = reservation.getID();
+		final Export export = new Export( reservation, CTCExporter.getExportTrackingDataPath( root, id, ExportType.RESULTS, trackmate ) );
+		try
+		{
+			CTCExporter.exportTrackingData( root, id, ExportType.RESULTS, trackmate, logger );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			discard( export, Logger.VOID_LOGGER );
+			throw e;
+		}
+		return export;
+	}
+
+	/**
+	 * Deletes the specified export folder in the background. The scratch space
+	 * it used is made available again once the deletion is done.
+	 * 
+	 * @param export
+	 *            the export to discard. Calling this method several times
+	 *            with the same export has no effect after the first call.
+	 * @param errorLogger
+	 *            a logger to report deletion failures.
+	 */
+	public void discard( final Export export, final Logger errorLogger )
+	{
+		if ( export == null || export.discarded )
+			return;
+		export.discarded = true;
+
+		final Runnable deletion = () -> {
+			try
+			{
+				deleteFolder( export.folder );
+			}
+			catch ( final RuntimeException e )
+			{
+				errorLogger.error( "Failed to delete CTC export folder: " + export.folder + "\n"
+						+ "Please delete it manually later.\n" );
+			}
+			finally
+			{
+				export.reservation.release();
+				inFlight.release();
+			}
+		};
+
+		if ( deleter.isShutdown() )
+			deletion.run();
+		else
+			deleter.execute( deletion );
+	}
+
+	/**
+	 * Waits for all the pending deletions to complete and stops the cleanup
+	 * thread.
+	 */
+	public void close()
+	{
+		deleter.shutdown();
+		try
+		{
+			deleter.awaitTermination( 1, TimeUnit.HOURS );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the scratch folder to use by default. This is the folder
+	 * specified by the {@value #SCRATCH_FOLDER_PROPERTY} system property if it
+	 * is set, a subfolder of <code>/dev/shm</code> if it exists and is
+	 * writable, and the specified fallback folder otherwise.
+	 * 
+	 * @param fallback
+	 *            the folder to use if no other scratch folder is available.
+	 * @return the scratch folder.
+	 */
+	public static Path defaultScratchRoot( final Path fallback )
+	{
+		final String property = System.getProperty( SCRATCH_FOLDER_PROPERTY );
+		final boolean userSpecified = property != null && !property.trim().isEmpty();
+		final Path candidate = userSpecified ? Paths.get( property.trim() ) : Paths.get( RAM_DISK );
+		if ( !Files.isDirectory( candidate ) || !Files.isWritable( candidate ) )
+			return fallback;
+
+		final Path scratch = userSpecified ? candidate : candidate.resolve( RAM_DISK_SUBFOLDER );
+		try
+		{
+			Files.createDirectories( scratch );
+			return scratch;
+		}
+		catch ( final IOException e )
+		{
+			return fallback;
+		}
+	}
+
+	/**
+	 * Returns the max number of export folders that can exist at the same
+	 * time, as specified by the {@value #MAX_IN_FLIGHT_PROPERTY} system
+	 * property. If it is not set, this is one folder per export measured
+	 * concurrently, plus one being deleted, so that the measurements do not
+	 * wait for the deletions.
+	 * 
+	 * @param nConcurrentExports
+	 *            the number of exports measured concurrently.
+	 * @return the max number of export folders.
+	 */
+	public static int defaultMaxInFlight( final int nConcurrentExports )
+	{
+		final int defaultValue = Math.max( 1, nConcurrentExports ) + 1;
+		final String property = System.getProperty( MAX_IN_FLIGHT_PROPERTY );
+		if ( property == null )
+			return defaultValue;
+		try
+		{
+			return Math.max( 1, Integer.parseInt( property.trim() ) );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return defaultValue;
+		}
+	}
+
+	private static final void deleteFolder( final String folder )
+	{
+		final Path path = Paths.get( folder );
+		if ( !Files.exists( path ) )
+			return;
+
+		try
+		{
+			Files.walkFileTree( path, new SimpleFileVisitor< Path >()
+			{
+				@Override
+				public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs ) throws IOException
+				{
+					Files.delete( file );
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory( final Path dir, final IOException e ) throws IOException
+				{
+					if ( e == null )
+					{
+						Files.delete( dir );
+						return FileVisitResult.CONTINUE;
+					}
+					throw e;
+				}
+			} );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Failed to delete " + path, e );
+		}
+	}
+
+	/**
+	 * Semaphore bounding the number of export folders, whose number of
+	 * permits can be changed.
+	 */
+	private static final class InFlightLimit extends Semaphore
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		private int max;
+
+		private InFlightLimit( final int max )
+		{
+			super( max );
+			this.max = max;
+		}
+
+		private synchronized void setMax( final int newMax )
+		{
+			if ( newMax > max )
+				release( newMax - max );
+			else if ( newMax < max )
+				reducePermits( max - newMax );
+			max = newMax;
+		}
+	}
+
+	/**
+	 * Handle on a CTC export folder.
+	 */
+	public static final class Export
+	{
+
+		private final Reservation reservation;
+
+		private final String folder;
+
+		private volatile boolean discarded = false;
+
+		private Export( final Reservation reservation, final String folder )
+		{
+			this.reservation = reservation;
+			this.folder = folder;
+		}
+
+		/**
+		 * Returns the path to the CTC results folder.
+		 * 
+		 * @return the folder path.
+		 */
+		public String getFolder()
+		{
+			return folder;
+		}
+
+		/**
+		 * Returns the dataset ID of this export.
+		 * 
+		 * @return the ID.
+		 */
+		public int getID()
+		{
+			return reservation.getID();
+		}
+	}
+}
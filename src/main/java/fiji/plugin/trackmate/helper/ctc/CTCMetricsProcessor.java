@@ -41,6 +41,9 @@ import net.celltrackingchallenge.measures.TrackDataCache;
 /**
  * Performs all the CTC metrics measurements from paths to the ground-truth and
  * to the candidate data files.
+ * <p>
+ * Instances hold stateful measure objects and cannot be shared between
+ * threads. Use a {@link CTCMetricsProcessorPool} to measure concurrently.
  * 
  * @author Jean-Yves Tinevez
  */
@@ -65,11 +68,19 @@ public class CTCMetricsProcessor
 
 	public CTCMetricsProcessor( final Context context, final int logLevel )
 	{
-		this.type = new CTCTrackingMetricsType();
+		this( getLogService( context, logLevel ) );
+	}
 
-		// LogService
-		final LogService logService = context.getService( LogService.class );
-		logService.setLevel( logLevel );
+	/**
+	 * Creates a new processor that will log to the specified log service.
+	 * 
+	 * @param logService
+	 *            the log service, already configured with the desired log
+	 *            level.
+	 */
+	public CTCMetricsProcessor( final LogService logService )
+	{
+		this.type = new CTCTrackingMetricsType();
 
 		// Segmentation accuracy.
 		this.seg = new SEG( logService );
@@ -147,4 +158,11 @@ public class CTCMetricsProcessor
 		out.set( CTCTrackingMetricsType.BC, bciValue );
 		return out;
 	}
+
+	static final LogService getLogService( final Context context, final int logLevel )
+	{
+		final LogService logService = context.getService( LogService.class );
+		logService.setLevel( logLevel );
+		return logService;
+	}
 }
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.ctc;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.scijava.Context;
+import org.scijava.log.LogService;
+
+/**
+ * A pool of {@link CTCMetricsProcessor}s, so that several workers can measure
+ * CTC metrics concurrently.
+ * <p>
+ * A processor is used by one worker at a time: it must be acquired with
+ * {@link #acquire()} and given back with {@link #release(CTCMetricsProcessor)}
+ * when the measurement is done. Processors are created lazily, up to the max
+ * size of the pool, and all share the same log service, looked up once when
+ * the pool is created.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class CTCMetricsProcessorPool
+{
+
+	private final LogService logService;
+
+	private final int maxSize;
+
+	private final BlockingQueue< CTCMetricsProcessor > idle;
+
+	private int created = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Creates a new pool.
+	 * 
+	 * @param context
+	 *            the context to get the log service from.
+	 * @param logLevel
+	 *            the log level for the CTC measures.
+	 * @param maxSize
+	 *            the max number of processors in the pool. This is the max
+	 *            number of workers that can measure concurrently.
+	 */
+	public CTCMetricsProcessorPool( final Context context, final int logLevel, final int maxSize )
+	{
+		this.logService = CTCMetricsProcessor.getLogService( context, logLevel );
+		this.maxSize = Math.max( 1, maxSize );
+		this.idle = new LinkedBlockingQueue<>();
+	}
+
+	/**
+	 * Returns a processor for exclusive use by the caller. Blocks until one is
+	 * available if all the processors of the pool are in use.
+	 * 
+	 * @return a processor.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a processor.
+	 * @throws IllegalStateException
+	 *             if the pool has been closed.
+	 */
+	public CTCMetricsProcessor acquire() throws InterruptedException
+	{
+		CTCMetricsProcessor processor = idle.poll();
+		while ( processor == null )
+		{
+			synchronized ( this )
+			{
+				if ( closed )
+					throw new IllegalStateException( "The CTC processor pool is closed." );
+				if ( created < maxSize )
+				{
+					created++;
+					return new CTCMetricsProcessor( logService );
+				}
+			}
+			processor = idle.poll( 100, TimeUnit.MILLISECONDS );
+		}
+		return processor;
+	}
+
+	/**
+	 * Gives back a processor to the pool, after use.
+	 * 
+	 * @param processor
+	 *            the processor, acquired with {@link #acquire()}. Can be
+	 *            <code>null</code>, in which case this call does nothing.
+	 */
+	public void release( final CTCMetricsProcessor processor )
+	{
+		if ( processor == null )
+			return;
+
+		synchronized ( this )
+		{
+			if ( closed )
+				return;
+		}
+		idle.offer( processor );
+	}
+
+	/**
+	 * Returns the max number of processors in this pool.
+	 * 
+	 * @return the max size.
+	 */
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Discards all the processors of this pool. Processors acquired after this
+	 * call will fail.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		idle.clear();
+	}
+}
@@ -21,23 +21,15 @@
  */
 package fiji.plugin.trackmate.helper.ctc;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 
 import org.scijava.Context;
 
-import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.TrackMate;
-import fiji.plugin.trackmate.action.CTCExporter;
-import fiji.plugin.trackmate.action.CTCExporter.ExportType;
 import fiji.plugin.trackmate.helper.MetricsRunner;
 import fiji.plugin.trackmate.helper.TrackingMetrics;
+import fiji.plugin.trackmate.helper.ctc.CTCExportStage.Export;
 
 /**
  * Performs tracking and all the CTC metrics measurements with a TrackMate
@@ -49,93 +41,76 @@ public class CTCMetricsRunner extends MetricsRunner
 {
 
 	/**
-	 * CTC processor instance.
+	 * Pool of CTC processors, one per concurrent worker.
 	 */
-	private final CTCMetricsProcessor ctc;
+	private final CTCMetricsProcessorPool processors;
 
 	/**
 	 * Path to ground truth folder.
 	 */
 	private final String gtPath;
 
+	/**
+	 * Exports CTC files to a scratch folder and cleans them up.
+	 */
+	private final CTCExportStage exportStage;
+
 	public CTCMetricsRunner( final String gtPath, final String saveFolder, final Context context )
 	{
 		super( Paths.get( saveFolder ), new CTCTrackingMetricsType() );
 		this.gtPath = gtPath;
 		final int logLevel = 0; // silence CTC logging.
-		this.ctc = new CTCMetricsProcessor( context, logLevel );
+		this.processors = new CTCMetricsProcessorPool( context, logLevel, Runtime.getRuntime().availableProcessors() );
+		this.exportStage = new CTCExportStage(
+				CTCExportStage.defaultScratchRoot( resultsRootPath ),
+				CTCExportStage.defaultMaxInFlight( 1 ) );
 	}
 
 	@Override
-	public void performMetricsMeasurements( final TrackMate trackmate, final double detectionTiming, final double trackingTiming )
+	public void setMaxConcurrentMeasurements( final int maxConcurrentMeasurements )
 	{
-		batchLogger.log( "Exporting as CTC results.\n" );
-		final Settings settings = trackmate.getSettings();
-		final File csvFile = findSuitableCSVFile( settings );
-		final String[] csvHeader1 = toCSVHeader( settings );
+		exportStage.setMaxInFlight( CTCExportStage.defaultMaxInFlight( maxConcurrentMeasurements ) );
+	}
 
-		final int id = CTCExporter.getAvailableDatasetID( resultsRootPath.toString() );
-		final String resultsFolder = CTCExporter.getExportTrackingDataPath( resultsRootPath.toString(), id, ExportType.RESULTS, trackmate );
+	@Override
+	public TrackingMetrics measure( final TrackMate trackmate )
+	{
+		batchLogger.log( "Exporting as CTC results.\n" );
+		Export export = null;
+		CTCMetricsProcessor ctc = null;
 		try
 		{
 			// Export to CTC files.
-			CTCExporter.exportTrackingData( resultsRootPath.toString(), id, ExportType.RESULTS, trackmate, trackmateLogger );
+			export = exportStage.export( trackmate, trackmateLogger );
 
 			// Perform CTC measurements.
 			batchLogger.log( "Performing CTC metrics measurements.\n" );
-			final TrackingMetrics metrics = ctc.process( gtPath, resultsFolder );
-
-			writeResults( csvFile, metrics, detectionTiming, trackingTiming, settings, csvHeader1 );
+			ctc = processors.acquire();
+			return ctc.process( gtPath, export.getFolder() );
 		}
 		catch ( final IOException | IllegalArgumentException e )
 		{
 			batchLogger.error( "Could not export tracking data to CTC files:\n" + e.getMessage() + '\n' );
-			writeFailedResults( csvFile, settings, csvHeader1 );
+			return null;
+		}
+		catch ( final InterruptedException e )
+		{
+			batchLogger.error( "Interrupted while waiting for CTC export.\n" );
+			Thread.currentThread().interrupt();
+			return null;
 		}
 		finally
 		{
-			try
-			{
-				// Delete CTC export folder.
-				deleteFolder( resultsFolder );
-			}
-			catch ( final RuntimeException e )
-			{
-				batchLogger.error( "Failed to delete CTC export folder: " + resultsFolder + "\n"
-						+ "Please delete it manually later.\n" );
-			}
+			processors.release( ctc );
+			// Delete CTC export folder in the background.
+			exportStage.discard( export, batchLogger );
 		}
 	}
 
-	private static final void deleteFolder( final String folder )
+	@Override
+	public void close()
 	{
-		final Path path = Paths.get( folder );
-		try
-		{
-			Files.walkFileTree( path, new SimpleFileVisitor< Path >()
-			{
-				@Override
-				public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs ) throws IOException
-				{
-					Files.delete( file );
-					return FileVisitResult.CONTINUE;
-				}
-
-				@Override
-				public FileVisitResult postVisitDirectory( final Path dir, final IOException e ) throws IOException
-				{
-					if ( e == null )
-					{
-						Files.delete( dir );
-						return FileVisitResult.CONTINUE;
-					}
-					throw e;
-				}
-			} );
-		}
-		catch ( final IOException e )
-		{
-			throw new RuntimeException( "Failed to delete " + path, e );
-		}
+		exportStage.close();
+		processors.close();
 	}
 }
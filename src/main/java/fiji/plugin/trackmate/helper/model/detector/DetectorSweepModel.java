@@ -38,6 +38,30 @@ import fiji.plugin.trackmate.helper.model.parameter.Combinations;
 public class DetectorSweepModel extends AbstractSweepModel< SpotDetectorFactoryBase< ? > >
 {
 
+	/**
+	 * How the spots detected vary with a detector parameter. Parameters
+	 * declared monotone let a parameter sweep skip the values whose result is
+	 * predicted by the values already run.
+	 */
+	public enum Monotonicity
+	{
+		/**
+		 * The spots detected with a value are a subset of the spots detected
+		 * with any lower value, for instance with a quality threshold on the
+		 * local maxima of a filtered image. If a value yields no spot, higher
+		 * values yield none. If a value yields too many spots, lower values
+		 * yield even more.
+		 */
+		DECREASING,
+		/**
+		 * A value yields no spot if a lower value yields none, for instance
+		 * with a threshold on an intensity or probability image. Objects can
+		 * split when the value increases, so the number of spots is not
+		 * monotone otherwise.
+		 */
+		VANISHING;
+	}
+
 	protected DetectorSweepModel( final String name, final Map< String, AbstractParamSweepModel< ? > > models, final SpotDetectorFactoryBase< ? > factory )
 	{
 		super( name, models, factory );
@@ -59,6 +83,17 @@ public class DetectorSweepModel extends AbstractSweepModel< SpotDetectorFactoryB
 		return new ModelsIterator( s, models );
 	}
 
+	/**
+	 * Returns the parameters of this detector that are monotone, and how. By
+	 * default, no parameter is declared monotone.
+	 * 
+	 * @return a map from parameter keys to their monotonicity.
+	 */
+	public Map< String, Monotonicity > getMonotoneParameters()
+	{
+		return Collections.emptyMap();
+	}
+
 	protected static class ModelsIterator implements Iterator< Settings >
 	{
 
@@ -21,6 +21,7 @@
  */
 package fiji.plugin.trackmate.helper.model.detector;
 
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -43,6 +44,12 @@ public class HessianDetectorModel extends DetectorSweepModel
 		super( HessianDetectorFactory.NAME, createModels(), new HessianDetectorFactory<>() );
 	}
 
+	@Override
+	public Map< String, Monotonicity > getMonotoneParameters()
+	{
+		return Collections.singletonMap( DetectorKeys.KEY_THRESHOLD, Monotonicity.DECREASING );
+	}
+
 	private static Map< String, AbstractParamSweepModel< ? > > createModels()
 	{
 		final DoubleParamSweepModel estimatedXYRadius = new DoubleParamSweepModel()
@@ -21,6 +21,7 @@
  */
 package fiji.plugin.trackmate.helper.model.detector;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -40,6 +41,14 @@ public class IlastikDetectorModel extends DetectorSweepModel
 		super( "ilastik detector", createModels(), createFactory() );
 	}
 
+	@Override
+	public Map< String, Monotonicity > getMonotoneParameters()
+	{
+		if ( factory == null )
+			return Collections.emptyMap();
+		return IlastikOpt.monotoneParameters();
+	}
+
 	private static SpotDetectorFactoryBase< ? > createFactory()
 	{
 		if ( null == new DetectorProvider().getFactory( "ILASTIK_DETECTOR" ) )
@@ -21,6 +21,7 @@
  */
 package fiji.plugin.trackmate.helper.model.detector;
 
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -43,6 +44,12 @@ public class LogDetectorModel extends DetectorSweepModel
 		super( LogDetectorFactory.NAME, createModels(), new LogDetectorFactory<>() );
 	}
 
+	@Override
+	public Map< String, Monotonicity > getMonotoneParameters()
+	{
+		return Collections.singletonMap( DetectorKeys.KEY_THRESHOLD, Monotonicity.DECREASING );
+	}
+
 	private static Map< String, AbstractParamSweepModel< ? > > createModels()
 	{
 		final DoubleParamSweepModel estimatedRadius = new DoubleParamSweepModel()
@@ -21,11 +21,13 @@
  */
 package fiji.plugin.trackmate.helper.model.detector;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 import fiji.plugin.trackmate.detection.SpotDetectorFactoryBase;
+import fiji.plugin.trackmate.helper.model.detector.DetectorSweepModel.Monotonicity;
 import fiji.plugin.trackmate.helper.model.parameter.AbstractParamSweepModel;
 import fiji.plugin.trackmate.helper.model.parameter.DoubleParamSweepModel;
 import fiji.plugin.trackmate.helper.model.parameter.InfoParamSweepModel;
@@ -82,4 +84,9 @@ public class StadDistOpt
 		models.put( StarDistCustomDetectorFactory.KEY_OVERLAP_THRESHOLD, overlapThreshold );
 		return models;
 	}
+
+	public static Map< String, Monotonicity > monotoneParameters()
+	{
+		return Collections.singletonMap( StarDistCustomDetectorFactory.KEY_SCORE_THRESHOLD, Monotonicity.DECREASING );
+	}
 }
@@ -21,6 +21,7 @@
  */
 package fiji.plugin.trackmate.helper.model.detector;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -40,6 +41,14 @@ public class StarDistCustomDetectorModel extends DetectorSweepModel
 		super( "StarDist detector custom", createModels(), createFactory() );
 	}
 
+	@Override
+	public Map< String, Monotonicity > getMonotoneParameters()
+	{
+		if ( factory == null )
+			return Collections.emptyMap();
+		return StadDistOpt.monotoneParameters();
+	}
+
 	private static SpotDetectorFactoryBase< ? > createFactory()
 	{
 		if ( null == new DetectorProvider().getFactory( "STARDIST_DETECTOR" ) )
@@ -21,6 +21,7 @@
  */
 package fiji.plugin.trackmate.helper.model.detector;
 
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -41,6 +42,12 @@ public class ThresholdDetectorModel extends DetectorSweepModel
 		super( ThresholdDetectorFactory.NAME, createModels(), new ThresholdDetectorFactory<>() );
 	}
 
+	@Override
+	public Map< String, Monotonicity > getMonotoneParameters()
+	{
+		return Collections.singletonMap( ThresholdDetectorFactory.KEY_INTENSITY_THRESHOLD, Monotonicity.VANISHING );
+	}
+
 	private static Map< String, AbstractParamSweepModel< ? > > createModels()
 	{
 		final BooleanParamSweepModel simplifyContours = new BooleanParamSweepModel()
@@ -21,10 +21,12 @@
  */
 package fiji.plugin.trackmate.helper.model.detector;
 
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 import fiji.plugin.trackmate.detection.SpotDetectorFactoryBase;
+import fiji.plugin.trackmate.helper.model.detector.DetectorSweepModel.Monotonicity;
 import fiji.plugin.trackmate.helper.model.parameter.AbstractParamSweepModel;
 import fiji.plugin.trackmate.helper.model.parameter.DoubleParamSweepModel;
 import fiji.plugin.trackmate.helper.model.parameter.IntParamSweepModel;
@@ -66,4 +68,9 @@ public class WekaOpt
 		models.put( WekaDetectorFactory.KEY_PROBA_THRESHOLD, probaThreshold );
 		return models;
 	}
+
+	public static Map< String, Monotonicity > monotoneParameters()
+	{
+		return Collections.singletonMap( WekaDetectorFactory.KEY_PROBA_THRESHOLD, Monotonicity.VANISHING );
+	}
 }
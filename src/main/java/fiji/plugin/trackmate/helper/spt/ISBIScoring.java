@@ -22,33 +22,37 @@
 package fiji.plugin.trackmate.helper.spt;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import fiji.plugin.trackmate.helper.spt.importer.SPTFormatImporter;
+import fiji.plugin.trackmate.helper.spt.importer.SPTBinaryCache;
+import fiji.plugin.trackmate.helper.spt.measure.DetectionDistanceCache;
 import fiji.plugin.trackmate.helper.spt.measure.DistanceTypes;
-import fiji.plugin.trackmate.helper.spt.measure.PerformanceAnalyzer;
+import fiji.plugin.trackmate.helper.spt.measure.SPTTrackStore;
 import fiji.plugin.trackmate.helper.spt.measure.TrackProcessorPerformance;
 import fiji.plugin.trackmate.helper.spt.measure.TrackSegment;
+import fiji.plugin.trackmate.helper.spt.measure.TrackStoreAnalyzer;
 
 public class ISBIScoring
 {
 
 	public static final double[] score( final String referenceTrackPath, final String candidateTrackPath, final double maxDist, final DistanceTypes distType )
 	{
-		final List< TrackSegment > references = SPTFormatImporter.fromXML( new File( referenceTrackPath ) );
-		final List< TrackSegment > candidates = SPTFormatImporter.fromXML( new File( candidateTrackPath ) );
+		final SPTTrackStore references = SPTBinaryCache.load( new File( referenceTrackPath ) );
+		final SPTTrackStore candidates = SPTBinaryCache.load( new File( candidateTrackPath ) );
 		return score( references, candidates, maxDist, distType );
 	}
 
@@ -64,119 +68,216 @@ public class ISBIScoring
 	 */
 	public static final double[] score( final List< TrackSegment > references, final List< TrackSegment > candidates, final double maxDist, final DistanceTypes distType )
 	{
-		/*
-		 * Alpha, beta and RMSE.
-		 */
+		return score( SPTTrackStore.fromTrackSegments( references ), SPTTrackStore.fromTrackSegments( candidates ), maxDist, distType );
+	}
+
+	/**
+	 * Returns a <code>double[]</code> array with alpha, beta, JSC, JSCtheta and
+	 * RMSE.
+	 * 
+	 * @param references
+	 *            the store of reference tracks.
+	 * @param candidates
+	 *            the store of candidate tracks.
+	 * @return the ISBI SPT scores.
+	 */
+	public static final double[] score( final SPTTrackStore references, final SPTTrackStore candidates, final double maxDist, final DistanceTypes distType )
+	{
+		final TrackProcessorPerformance processor = new TrackProcessorPerformance();
+		final TrackStoreAnalyzer analyzer = processor.pairTracks( references, candidates, maxDist );
+		return analyzer.getScores( distType, maxDist );
+	}
+
+	/**
+	 * Returns a <code>double[]</code> array with alpha, beta, JSC, JSCtheta and
+	 * RMSE, pairing the tracks with the detection distances of a cache. The
+	 * max pairing distance is the gate of the cache.
+	 * 
+	 * @param cache
+	 *            the detection distances between the reference tracks and the
+	 *            candidate detections.
+	 * @param candidates
+	 *            the store of candidate tracks, with the ids of their
+	 *            detections.
+	 * @return the ISBI SPT scores.
+	 */
+	public static final double[] score( final DetectionDistanceCache cache, final SPTTrackStore candidates, final DistanceTypes distType )
+	{
 		final TrackProcessorPerformance processor = new TrackProcessorPerformance();
-		final PerformanceAnalyzer analyzer = processor.pairTracks( references, candidates, maxDist );
-		final double alpha = analyzer.getPairedTracksNormalizedDistance( distType, maxDist );
-		final double beta = analyzer.getFullTrackingScore( distType, maxDist );
-		final double rmse = analyzer.getDistanceDetectionData( maxDist )[ 0 ];
-
-		/*
-		 * Detection and track Jaccard indices.
-		 */
-		final int numSpuriousTracks = analyzer.getNumSpuriousTracks();
-		final int numMissedTracks = analyzer.getNumMissedTracks();
-		final int numCorrectTracks = analyzer.getNumPairedTracks();
-		final int numRecoveredDetections = analyzer.getNumPairedDetections( maxDist );
-		final int numMissedDetections = analyzer.getNumMissedDetections( maxDist );
-		final int numWrongDetections = analyzer.getNumWrongDetections( maxDist );
-
-		final double detectionsSimilarity = numRecoveredDetections / ( ( double ) numRecoveredDetections + ( double ) numMissedDetections + numWrongDetections );
-		final double tracksSimilarity = numCorrectTracks / ( ( double ) numCorrectTracks + ( double ) numMissedTracks + numSpuriousTracks );
-
-		return new double[] { alpha, beta, detectionsSimilarity, tracksSimilarity, rmse };
+		final TrackStoreAnalyzer analyzer = processor.pairTracks( cache.getReferences(), candidates, cache );
+		return analyzer.getScores( distType, cache.getGate() );
 	}
 
+	/**
+	 * Scores all the candidate XML files of a folder against a reference XML
+	 * file, in parallel on the common fork-join pool. Results are appended to
+	 * a CSV file next to the candidate folder, named after the reference
+	 * file. Candidate files already present in this CSV file are skipped.
+	 * 
+	 * @param referenceTrackPath
+	 *            the path to the reference XML file.
+	 * @param candidatesFolder
+	 *            the path to the folder of candidate XML files.
+	 */
 	public static final void batch( final String referenceTrackPath, final String candidatesFolder, final double maxDist, final DistanceTypes distType )
 	{
-		System.out.println( "Processing " + candidatesFolder );
-		final File folder = new File( candidatesFolder );
-		final String parent = folder.getParent();
-		final String outputFileName = new File( referenceTrackPath ).getName().replace( ".xml", ".csv" );
-		final File outputFile = new File( parent, outputFileName );
-
-		/*
-		 * Check whether the output files exist if parse it to know what is
-		 * already done.
-		 */
-
-		final Set< String > alreadyComputed = new HashSet<>();
-		if ( outputFile.isFile() )
+		ForkJoinPool.commonPool().invoke( folderTask( referenceTrackPath, candidatesFolder, maxDist, distType ) );
+	}
+
+	/**
+	 * Scores several reference - candidate folder pairs, like
+	 * {@link #batch(String, String, double, DistanceTypes)}. Each candidate
+	 * file is scored in its own task, on a work-stealing pool with the
+	 * specified number of threads, so that all the threads are busy until the
+	 * last file is scored. This method returns when all the files are scored.
+	 * 
+	 * @param refToFolders
+	 *            a map from reference XML file paths to candidate folder
+	 *            paths.
+	 * @param nThreads
+	 *            the number of threads to use.
+	 */
+	public static final void parallelise( final Map< String, String > refToFolders, final int nThreads, final double maxDist, final DistanceTypes distType )
+	{
+		final ForkJoinPool pool = new ForkJoinPool( nThreads );
+		try
 		{
-			try (final BufferedReader reader = new BufferedReader( new FileReader( outputFile ) ))
+			final List< ForkJoinTask< ? > > tasks = new ArrayList<>( refToFolders.size() );
+			refToFolders.forEach( ( ref, folder ) -> tasks.add( folderTask( ref, folder, maxDist, distType ) ) );
+			pool.invoke( ForkJoinTask.adapt( () -> ForkJoinTask.invokeAll( tasks ) ) );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Returns a task that scores all the candidate files of a folder. It
+	 * forks one task per candidate file, which all write their results to
+	 * the same CSV writer.
+	 */
+	private static ForkJoinTask< ? > folderTask( final String referenceTrackPath, final String candidatesFolder, final double maxDist, final DistanceTypes distType )
+	{
+		return ForkJoinTask.adapt( () -> {
+			System.out.println( "Processing " + candidatesFolder );
+			final File folder = new File( candidatesFolder );
+			final String parent = folder.getParent();
+			final String outputFileName = new File( referenceTrackPath ).getName().replace( ".xml", ".csv" );
+			final File outputFile = new File( parent, outputFileName );
+
+			/*
+			 * Check whether the output files exist if parse it to know what is
+			 * already done.
+			 */
+
+			final Set< String > alreadyComputed = new HashSet<>();
+			final boolean exists = outputFile.isFile();
+			if ( exists )
 			{
-				String line = reader.readLine();
-				while ( line != null )
+				try (final BufferedReader reader = new BufferedReader( new FileReader( outputFile ) ))
 				{
-					final int idx = line.indexOf( ',' );
-					alreadyComputed.add( line.substring( 0, idx ) );
-					line = reader.readLine();
+					String line = reader.readLine();
+					while ( line != null )
+					{
+						final int idx = line.indexOf( ',' );
+						alreadyComputed.add( line.substring( 0, idx ) );
+						line = reader.readLine();
+					}
+				}
+				catch ( final FileNotFoundException e2 )
+				{
+					System.out.println( "Cannot find target file " + outputFile );
+					e2.printStackTrace();
+				}
+				catch ( final IOException e2 )
+				{
+					System.out.println( "Problem reading target file " + outputFile );
+					e2.printStackTrace();
 				}
 			}
-			catch ( final FileNotFoundException e2 )
+
+			final File[] files = folder.listFiles( ( d, name ) -> name.endsWith( ".xml" ) );
+			if ( files == null )
 			{
-				System.out.println( "Cannot find target file " + outputFile );
-				e2.printStackTrace();
+				System.out.println( "Cannot list candidate folder " + candidatesFolder );
+				return;
 			}
-			catch ( final IOException e2 )
+
+			final List< File > toProcess = new ArrayList<>( files.length );
+			for ( final File file : files )
 			{
-				System.out.println( "Problem reading target file " + outputFile );
-				e2.printStackTrace();
+				// Test whether we already processed the file.
+				if ( alreadyComputed.contains( file.getName() ) )
+					System.out.println( " - Found results in target file for " + file.getName() + ". Skipping." );
+				else
+					toProcess.add( file );
 			}
-		}
-		else
-		{
-			try (FileWriter fw = new FileWriter( outputFile, false ))
+			if ( toProcess.isEmpty() )
 			{
-				fw.write( String.format( "%s, %s, %s, %s, %s, %s\n", "name", "alpha", "beta", "detectionsJaccard", "tracksJaccard", "rmse" ) );
+				System.out.println( "Finished processing " + candidatesFolder );
+				return;
 			}
-			catch ( final IOException e1 )
+
+			final SPTTrackStore references;
+			try
 			{
-				System.out.println( "Cannot write to target file " + outputFile );
-				e1.printStackTrace();
+				references = SPTBinaryCache.load( new File( referenceTrackPath ) );
 			}
-		}
-
-		final File[] files = folder.listFiles( ( d, name ) -> name.endsWith( ".xml" ) );
-		for ( final File file : files )
-		{
-			// Test whether we already processed the file.
-			if ( alreadyComputed.contains( file.getName() ) )
+			catch ( final IllegalArgumentException e )
 			{
-				System.out.println( " - Found results in target file for " + file.getName() + ". Skipping." );
-				continue;
+				System.out.println( "Trouble reading reference file " + referenceTrackPath + "\nSkipping " + candidatesFolder + "." );
+				e.printStackTrace();
+				return;
 			}
-			System.out.println( " - Processing " + file.getName() );
 
-			try
+			try (final BufferedWriter writer = new BufferedWriter( new FileWriter( outputFile, true ) ))
 			{
-				final long start = System.currentTimeMillis();
-				final double[] score = score( referenceTrackPath, file.getAbsolutePath(), maxDist, distType );
-				try (FileWriter fw = new FileWriter( outputFile, true ))
-				{
-					fw.write( String.format( "%s, %f, %f, %f, %f, %f\n", file.getName(), score[ 0 ], score[ 1 ], score[ 2 ], score[ 3 ], score[ 4 ] ) );
-				}
-				final long end = System.currentTimeMillis();
-				System.out.println( String.format( " - Processed %s in %.1f minutes.", file.getName(), ( end - start ) / 1000. / 60. ) );
+				if ( !exists )
+					writer.write( String.format( "%s, %s, %s, %s, %s, %s\n", "name", "alpha", "beta", "detectionsJaccard", "tracksJaccard", "rmse" ) );
+
+				final List< ForkJoinTask< ? > > tasks = new ArrayList<>( toProcess.size() );
+				for ( final File file : toProcess )
+					tasks.add( ForkJoinTask.adapt( () -> scoreFile( references, file, maxDist, distType, writer ) ) );
+				ForkJoinTask.invokeAll( tasks );
 			}
-			catch ( final Exception e )
+			catch ( final IOException e1 )
 			{
-				System.out.println( "Trouble dealing with file " + file + "\nSkipping." );
-				e.printStackTrace();
-				continue;
+				System.out.println( "Cannot write to target file " + outputFile );
+				e1.printStackTrace();
+				return;
 			}
-		}
-		System.out.println( "Finished processing " + candidatesFolder );
+			System.out.println( "Finished processing " + candidatesFolder );
+		} );
 	}
 
-	public static final void parallelise( final Map< String, String > refToFolders, final int nThreads, final double maxDist, final DistanceTypes distType )
+	/**
+	 * Scores one candidate file and writes its row to the CSV writer. Rows
+	 * are flushed as they are written, so that an interrupted batch can be
+	 * resumed.
+	 */
+	private static void scoreFile( final SPTTrackStore references, final File file, final double maxDist, final DistanceTypes distType, final BufferedWriter writer )
 	{
-		final ExecutorService service = Executors.newFixedThreadPool( nThreads );
-
-		refToFolders.forEach( ( ref, folder ) -> service.submit( () -> batch( ref, folder, maxDist, distType ) ) );
-		service.shutdown();
+		System.out.println( " - Processing " + file.getName() );
+		try
+		{
+			final long start = System.currentTimeMillis();
+			final SPTTrackStore candidates = SPTBinaryCache.load( file );
+			final double[] score = score( references, candidates, maxDist, distType );
+			final String row = String.format( "%s, %f, %f, %f, %f, %f\n", file.getName(), score[ 0 ], score[ 1 ], score[ 2 ], score[ 3 ], score[ 4 ] );
+			synchronized ( writer )
+			{
+				writer.write( row );
+				writer.flush();
+			}
+			final long end = System.currentTimeMillis();
+			System.out.println( String.format( " - Processed %s in %.1f minutes.", file.getName(), ( end - start ) / 1000. / 60. ) );
+		}
+		catch ( final Exception e )
+		{
+			System.out.println( "Trouble dealing with file " + file + "\nSkipping." );
+			e.printStackTrace();
+		}
 	}
 
 	public static void main( final String[] args, final double maxDist, final DistanceTypes distType )
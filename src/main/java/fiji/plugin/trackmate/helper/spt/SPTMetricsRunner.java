@@ -23,50 +23,133 @@ package fiji.plugin.trackmate.helper.spt;
 
 import java.io.File;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.helper.MetricsRunner;
 import fiji.plugin.trackmate.helper.TrackingMetrics;
+import fiji.plugin.trackmate.helper.TrackingMetricsType.MetricValue;
+import fiji.plugin.trackmate.helper.spt.importer.SPTBinaryCache;
 import fiji.plugin.trackmate.helper.spt.importer.SPTFormatImporter;
+import fiji.plugin.trackmate.helper.spt.measure.DetectionDistanceCache;
 import fiji.plugin.trackmate.helper.spt.measure.DistanceTypes;
-import fiji.plugin.trackmate.helper.spt.measure.TrackSegment;
+import fiji.plugin.trackmate.helper.spt.measure.MultiGateScorer;
+import fiji.plugin.trackmate.helper.spt.measure.SPTTrackStore;
 
 public class SPTMetricsRunner extends MetricsRunner
 {
 
-	private final List< TrackSegment > referenceTracks;
+	private final SPTTrackStore referenceTracks;
 
 	private final double maxDist;
 
+	private final double[] extraGates;
+
+	/**
+	 * The gate of the distance caches: the largest of the main gate and the
+	 * extra gates.
+	 */
+	private final double cacheGate;
+
+	private final SPTTrackingMetricsType sptType;
+
+	/**
+	 * Reference to detection distances, per detection result. All the tracker
+	 * configurations run on a detection result share its spot collection.
+	 */
+	private final Map< SpotCollection, DetectionDistanceCache > distanceCaches = Collections.synchronizedMap( new WeakHashMap<>() );
+
 	public SPTMetricsRunner( final String gtPath, final String saveFolder, final double maxDist )
 	{
-		super( Paths.get( saveFolder ), new SPTTrackingMetricsType( maxDist ) );
-		this.maxDist = maxDist;
-		this.referenceTracks = SPTFormatImporter.fromXML( new File( gtPath ) );
+		this( gtPath, saveFolder, new SPTTrackingMetricsType( maxDist ) );
+	}
+
+	public SPTMetricsRunner( final String gtPath, final String saveFolder, final SPTTrackingMetricsType type )
+	{
+		super( Paths.get( saveFolder ), type );
+		this.maxDist = type.maxDist();
+		this.extraGates = type.extraGates();
+		double largest = maxDist;
+		for ( final double gate : extraGates )
+			largest = Math.max( largest, gate );
+		this.cacheGate = largest;
+		this.sptType = type;
+		this.referenceTracks = SPTBinaryCache.load( new File( gtPath ), batchLogger );
 	}
 
 	@Override
-	public void performMetricsMeasurements( final TrackMate trackmate, final double detectionTiming, final double trackingTiming )
+	public TrackingMetrics measure( final TrackMate trackmate )
 	{
 		final Settings settings = trackmate.getSettings();
 		final Model model = trackmate.getModel();
-		final File csvFile = findSuitableCSVFile( settings );
-		final String[] csvHeader1 = toCSVHeader( settings );
 
-		final List< TrackSegment > candidateTracks = SPTFormatImporter.fromTrackMate( model );
+		final SPTTrackStore candidateTracks = SPTFormatImporter.storeFromTrackMate( model );
 
 		// Perform SPT measurements.
 		batchLogger.log( String.format( "Performing SPT metrics measurements with max pairing dist = %.2f %s\n",
 				maxDist, settings.imp.getCalibration().getUnits() ) );
-		final double[] score = ISBIScoring.score( referenceTracks, candidateTracks, maxDist, DistanceTypes.DISTANCE_EUCLIDIAN );
-
 		final TrackingMetrics metrics = new TrackingMetrics( type );
-		for ( int i = 0; i < score.length; i++ )
-			metrics.set( i, score[ i ] );
+		if ( extraGates.length == 0 )
+		{
+			final double[] score = ISBIScoring.score( distanceCache( model.getSpots() ), candidateTracks, DistanceTypes.DISTANCE_EUCLIDIAN );
+			for ( int i = 0; i < score.length; i++ )
+				metrics.set( i, score[ i ] );
+		}
+		else
+		{
+			// All the gates in one pass, the main one first.
+			final double[] gates = new double[ 1 + extraGates.length ];
+			gates[ 0 ] = maxDist;
+			System.arraycopy( extraGates, 0, gates, 1, extraGates.length );
+			final double[][] scores;
+			try
+			{
+				scores = new MultiGateScorer( distanceCache( model.getSpots() ), candidateTracks, gates )
+						.getScores( DistanceTypes.DISTANCE_EUCLIDIAN );
+			}
+			catch ( final Exception e )
+			{
+				batchLogger.error( "Could not pair the SPT tracks:\n" + e.getMessage() + '\n' );
+				return null;
+			}
+			for ( int i = 0; i < scores[ 0 ].length; i++ )
+				metrics.set( i, scores[ 0 ][ i ] );
+
+			final MetricValue[] keys = new MetricValue[] { SPTTrackingMetricsType.ALPHA, SPTTrackingMetricsType.BETA,
+					SPTTrackingMetricsType.JSC, SPTTrackingMetricsType.JSCTHETA, SPTTrackingMetricsType.RMSE };
+			for ( int g = 1; g < gates.length; g++ )
+				for ( int i = 0; i < keys.length; i++ )
+					metrics.set( sptType.gateMetric( keys[ i ], g - 1 ), scores[ g ][ i ] );
+		}
+
+		return metrics;
+	}
+
+	private DetectionDistanceCache distanceCache( final SpotCollection spots )
+	{
+		final int nSpots = spots.getNSpots( false );
+		final DetectionDistanceCache cached = distanceCaches.get( spots );
+		if ( cached != null && cached.numCandidateDetections() == nSpots )
+			return cached;
 
-		writeResults( csvFile, metrics, detectionTiming, trackingTiming, settings, csvHeader1 );
+		/*
+		 * Build outside of the lock, so that the configurations of other
+		 * detections are not blocked. If another thread built it meanwhile,
+		 * use its cache.
+		 */
+		final DetectionDistanceCache cache = SPTFormatImporter.distanceCache( referenceTracks, spots, cacheGate );
+		synchronized ( distanceCaches )
+		{
+			final DetectionDistanceCache other = distanceCaches.get( spots );
+			if ( other != null && other.numCandidateDetections() == nSpots )
+				return other;
+			distanceCaches.put( spots, cache );
+			return cache;
+		}
 	}
 }
@@ -21,6 +21,7 @@
  */
 package fiji.plugin.trackmate.helper.spt;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -60,6 +61,10 @@ public class SPTTrackingMetricsType extends TrackingMetricsType
 
 	private final double maxDist;
 
+	private final double[] extraGates;
+
+	private final MetricValue[][] gateMetrics;
+
 	/**
 	 * Builds a new metrics type based on the SPT challenge, with the specified
 	 * max pairing distance <b>given in physical units</b>.
@@ -69,20 +74,99 @@ public class SPTTrackingMetricsType extends TrackingMetricsType
 	 * challenge, it was set to 5 pixels everywhere, but for practical usages
 	 * here it can be varied. It must be specifed in the same units that of the
 	 * physical units in the image used.
+	 * <p>
+	 * Additional max pairing distances can be specified. The SPT metrics are
+	 * then also computed for each of them, in the same pass, and stored in
+	 * metrics named after the metric and the distance, for instance
+	 * <code>alpha@2.5</code>. They are written after the timing metrics.
 	 * 
 	 * @param maxDist
 	 *            the max pairing distance.
+	 * @param extraGates
+	 *            the additional max pairing distances, if any.
 	 */
-	public SPTTrackingMetricsType( final double maxDist )
+	public SPTTrackingMetricsType( final double maxDist, final double... extraGates )
+	{
+		this( maxDist, extraGates, gateMetrics( extraGates ) );
+	}
+
+	private SPTTrackingMetricsType( final double maxDist, final double[] extraGates, final MetricValue[][] gateMetrics )
 	{
-		super( KEYS );
+		super( KEYS, flatten( gateMetrics ) );
 		this.maxDist = maxDist;
+		this.extraGates = extraGates.clone();
+		this.gateMetrics = gateMetrics;
+	}
+
+	/**
+	 * Returns the max pairing distance of the main SPT metrics.
+	 * 
+	 * @return the max pairing distance.
+	 */
+	public double maxDist()
+	{
+		return maxDist;
+	}
+
+	/**
+	 * Returns the additional max pairing distances.
+	 * 
+	 * @return a new array, empty if there are no additional distances.
+	 */
+	public double[] extraGates()
+	{
+		return extraGates.clone();
+	}
+
+	/**
+	 * Returns the metric computed with an additional max pairing distance.
+	 * 
+	 * @param key
+	 *            one of the main SPT metrics ({@link #ALPHA}, {@link #BETA},
+	 *            {@link #JSC}, {@link #JSCTHETA}, {@link #RMSE}).
+	 * @param gate
+	 *            the index of the additional max pairing distance.
+	 * @return the metric, or <code>null</code> if the key is not a main SPT
+	 *         metric.
+	 */
+	public MetricValue gateMetric( final MetricValue key, final int gate )
+	{
+		final int i = KEYS.indexOf( key );
+		if ( i < 0 )
+			return null;
+		return gateMetrics[ gate ][ i ];
+	}
+
+	private static MetricValue[][] gateMetrics( final double[] gates )
+	{
+		final MetricValue[][] out = new MetricValue[ gates.length ][ KEYS.size() ];
+		for ( int g = 0; g < gates.length; g++ )
+		{
+			for ( int i = 0; i < KEYS.size(); i++ )
+			{
+				final MetricValue key = KEYS.get( i );
+				out[ g ][ i ] = new MetricValue(
+						key.key + "@" + gates[ g ],
+						key.description + " (max pairing distance " + gates[ g ] + ")",
+						key.optimumType,
+						key.boundType );
+			}
+		}
+		return out;
+	}
+
+	private static List< MetricValue > flatten( final MetricValue[][] metrics )
+	{
+		final List< MetricValue > out = new ArrayList<>();
+		for ( final MetricValue[] m : metrics )
+			out.addAll( Arrays.asList( m ) );
+		return out;
 	}
 
 	@Override
 	public MetricsRunner runner( final String gtPath, final String saveFolder )
 	{
-		return new SPTMetricsRunner( gtPath, saveFolder, maxDist );
+		return new SPTMetricsRunner( gtPath, saveFolder, this );
 	}
 
 	@Override
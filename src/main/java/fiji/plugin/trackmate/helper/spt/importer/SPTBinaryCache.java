@@ -0,0 +1,321 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.importer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.helper.spt.measure.SPTTrackStore;
+
+/**
+ * Binary sidecar cache for ISBI'2012 track XML files.
+ * <p>
+ * The first time a XML file is loaded, its tracks are parsed into a
+ * {@link SPTTrackStore}, which is written next to it in a compact binary file
+ * with the {@value #EXTENSION} extension. Later loads memory-map this file and
+ * copy the store arrays in bulk, skipping the XML parsing.
+ * <p>
+ * The cache file records the size, the modification time and the CRC32 of
+ * the XML file it was built from. It is used only if the XML file has the
+ * same size and, either the same modification time, or the same CRC32. In the
+ * latter case, the cache file is rewritten with the new modification time, so
+ * that the next loads do not compute the CRC32 of the XML file again. The
+ * store itself is protected by a CRC32 of its bytes. Invalid cache files are
+ * rebuilt from the XML file. Cache files are written to a temporary file and
+ * moved in place, so that several threads or processes loading the same XML
+ * file never see a partial cache file.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class SPTBinaryCache
+{
+
+	public static final String EXTENSION = ".sptbin";
+
+	/** "SPTB" */
+	private static final int MAGIC = 0x53505442;
+
+	private static final int VERSION = 1;
+
+	/**
+	 * Magic, version, XML size, XML modification time, XML CRC, store size
+	 * and store CRC.
+	 */
+	private static final int HEADER_SIZE = 2 * Integer.BYTES + 5 * Long.BYTES;
+
+	private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	private SPTBinaryCache()
+	{}
+
+	/**
+	 * Returns the cache file of the specified XML file. It has the same name
+	 * with the {@value #EXTENSION} extension instead of the XML one, in the
+	 * same folder.
+	 * 
+	 * @param xmlFile
+	 *            the XML file.
+	 * @return the cache file.
+	 */
+	public static File getCacheFile( final File xmlFile )
+	{
+		final String name = xmlFile.getName();
+		final int dot = name.lastIndexOf( '.' );
+		final String baseName = ( dot > 0 ) ? name.substring( 0, dot ) : name;
+		return new File( xmlFile.getAbsoluteFile().getParentFile(), baseName + EXTENSION );
+	}
+
+	/**
+	 * Loads the tracks of an ISBI'2012 track XML file, from its cache file if
+	 * it is valid, from the XML file otherwise. In the latter case, the cache
+	 * file is written for the next loads. Failing to write the cache file,
+	 * for instance because the folder is read-only, is not an error, and is
+	 * reported to the default logger.
+	 * 
+	 * @param xmlFile
+	 *            the XML file.
+	 * @return a new store.
+	 * @throws IllegalArgumentException
+	 *             if the XML file cannot be read or is not a valid ISBI'2012
+	 *             track file.
+	 * @see #load(File, Logger)
+	 */
+	public static SPTTrackStore load( final File xmlFile ) throws IllegalArgumentException
+	{
+		return load( xmlFile, Logger.DEFAULT_LOGGER );
+	}
+
+	/**
+	 * Loads the tracks of an ISBI'2012 track XML file, from its cache file if
+	 * it is valid, from the XML file otherwise. In the latter case, the cache
+	 * file is written for the next loads. Failing to write the cache file,
+	 * for instance because the folder is read-only, is not an error, and is
+	 * reported to the specified logger.
+	 * 
+	 * @param xmlFile
+	 *            the XML file.
+	 * @param logger
+	 *            the logger to report problems with the cache file to.
+	 * @return a new store.
+	 * @throws IllegalArgumentException
+	 *             if the XML file cannot be read or is not a valid ISBI'2012
+	 *             track file.
+	 */
+	public static SPTTrackStore load( final File xmlFile, final Logger logger ) throws IllegalArgumentException
+	{
+		final Path xmlPath = xmlFile.toPath();
+		final Path cachePath = getCacheFile( xmlFile ).toPath();
+		final long xmlSize;
+		final long xmlTime;
+		try
+		{
+			xmlSize = Files.size( xmlPath );
+			xmlTime = Files.getLastModifiedTime( xmlPath ).toMillis();
+		}
+		catch ( final IOException e )
+		{
+			throw new IllegalArgumentException( "could not read " + xmlFile + ": " + e.getMessage(), e );
+		}
+
+		if ( Files.isRegularFile( cachePath ) )
+		{
+			try
+			{
+				final Cached cached = read( cachePath, xmlPath, xmlSize, xmlTime );
+				if ( cached != null )
+				{
+					if ( cached.xmlTime != xmlTime )
+						tryWrite( cachePath, cached.store, xmlSize, xmlTime, cached.xmlCRC, logger );
+					return cached.store;
+				}
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				// Invalid cache file, rebuilt below.
+			}
+		}
+
+		// Parse the XML file, computing its CRC on the way.
+		final SPTTrackStore store;
+		final long xmlCRC;
+		try (final CheckedInputStream is = new CheckedInputStream( new BufferedInputStream( Files.newInputStream( xmlPath ), 1 << 16 ), new CRC32() ))
+		{
+			store = SPTFormatImporter.storeFromXML( is );
+			drain( is );
+			xmlCRC = is.getChecksum().getValue();
+		}
+		catch ( final IOException e )
+		{
+			throw new IllegalArgumentException( "could not read " + xmlFile + ": " + e.getMessage(), e );
+		}
+
+		tryWrite( cachePath, store, xmlSize, xmlTime, xmlCRC, logger );
+		return store;
+	}
+
+	private static void tryWrite( final Path cachePath, final SPTTrackStore store, final long xmlSize, final long xmlTime, final long xmlCRC, final Logger logger )
+	{
+		try
+		{
+			write( cachePath, store, xmlSize, xmlTime, xmlCRC );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			logger.log( "Could not write SPT cache file " + cachePath + ": " + e.getMessage() + '\n' );
+		}
+	}
+
+	/**
+	 * Reads a cache file, and returns <code>null</code> if it does not match
+	 * the XML file.
+	 */
+	private static Cached read( final Path cachePath, final Path xmlPath, final long xmlSize, final long xmlTime ) throws IOException
+	{
+		try (final FileChannel channel = FileChannel.open( cachePath, StandardOpenOption.READ ))
+		{
+			final long fileSize = channel.size();
+			if ( fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE )
+				return null;
+
+			final MappedByteBuffer buffer = channel.map( MapMode.READ_ONLY, 0, fileSize );
+			buffer.order( ORDER );
+			if ( buffer.getInt() != MAGIC || buffer.getInt() != VERSION )
+				return null;
+			final long cachedSize = buffer.getLong();
+			final long cachedTime = buffer.getLong();
+			final long cachedCRC = buffer.getLong();
+			final long storeSize = buffer.getLong();
+			final long storeCRC = buffer.getLong();
+			if ( cachedSize != xmlSize || storeSize != fileSize - HEADER_SIZE )
+				return null;
+			// Same size but touched: accept the cache if the content is the same.
+			if ( cachedTime != xmlTime && cachedCRC != checksum( xmlPath ) )
+				return null;
+
+			final ByteBuffer storeBuffer = buffer.slice().order( ORDER );
+			final CRC32 crc = new CRC32();
+			crc.update( storeBuffer.duplicate() );
+			if ( crc.getValue() != storeCRC )
+				return null;
+
+			return new Cached( SPTTrackStore.read( storeBuffer ), cachedTime, cachedCRC );
+		}
+	}
+
+	private static void write( final Path cachePath, final SPTTrackStore store, final long xmlSize, final long xmlTime, final long xmlCRC ) throws IOException
+	{
+		final long storeSize = store.serializedSize();
+		final long fileSize = HEADER_SIZE + storeSize;
+		if ( fileSize > Integer.MAX_VALUE )
+			throw new IOException( "store too large to be cached: " + fileSize + " bytes." );
+
+		final Path tmp = Files.createTempFile( cachePath.getParent(), cachePath.getFileName().toString(), ".tmp" );
+		try
+		{
+			try (final FileChannel channel = FileChannel.open( tmp, StandardOpenOption.READ, StandardOpenOption.WRITE ))
+			{
+				final MappedByteBuffer buffer = channel.map( MapMode.READ_WRITE, 0, fileSize );
+				buffer.order( ORDER );
+				buffer.position( HEADER_SIZE );
+				final ByteBuffer storeBuffer = buffer.slice().order( ORDER );
+				store.write( storeBuffer );
+				storeBuffer.flip();
+				final CRC32 crc = new CRC32();
+				crc.update( storeBuffer );
+
+				buffer.position( 0 );
+				buffer.putInt( MAGIC );
+				buffer.putInt( VERSION );
+				buffer.putLong( xmlSize );
+				buffer.putLong( xmlTime );
+				buffer.putLong( xmlCRC );
+				buffer.putLong( storeSize );
+				buffer.putLong( crc.getValue() );
+				buffer.force();
+			}
+			try
+			{
+				Files.move( tmp, cachePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+			}
+			catch ( final AtomicMoveNotSupportedException e )
+			{
+				Files.move( tmp, cachePath, StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists( tmp );
+		}
+	}
+
+	private static long checksum( final Path path ) throws IOException
+	{
+		try (final CheckedInputStream is = new CheckedInputStream( Files.newInputStream( path ), new CRC32() ))
+		{
+			drain( is );
+			return is.getChecksum().getValue();
+		}
+	}
+
+	private static void drain( final InputStream is ) throws IOException
+	{
+		final byte[] buffer = new byte[ 1 << 16 ];
+		while ( is.read( buffer ) >= 0 )
+		{}
+	}
+
+	/**
+	 * A store read from a cache file, with the modification time and the CRC
+	 * of the XML file recorded in the cache file.
+	 */
+	private static final class Cached
+	{
+
+		private final SPTTrackStore store;
+
+		private final long xmlTime;
+
+		private final long xmlCRC;
+
+		private Cached( final SPTTrackStore store, final long xmlTime, final long xmlCRC )
+		{
+			this.store = store;
+			this.xmlTime = xmlTime;
+			this.xmlCRC = xmlCRC;
+		}
+	}
+}
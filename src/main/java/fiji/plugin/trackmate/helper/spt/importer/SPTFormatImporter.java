@@ -21,60 +21,120 @@
  */
 package fiji.plugin.trackmate.helper.spt.importer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.TreeMap;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.helper.spt.measure.Detection;
+import fiji.plugin.trackmate.helper.spt.measure.DetectionDistanceCache;
+import fiji.plugin.trackmate.helper.spt.measure.SPTTrackStore;
 import fiji.plugin.trackmate.helper.spt.measure.TrackSegment;
 
 /**
  * Convert a TrackMate instance to the ISBI SPT data structures.
  * 
  * @author Jean-Yves Tinevez
- *
+ * 
  */
 public class SPTFormatImporter
 {
 
+	private static final String TRACKING_SET_TAG = "TrackContestISBI2012";
+
+	private static final String PARTICLE_TAG = "particle";
+
+	private static final String DETECTION_TAG = "detection";
+
+	/**
+	 * Converts the tracks of a TrackMate model to ISBI SPT tracks. Tracks with
+	 * splits or merges are decomposed in linear segments, as explained in
+	 * {@link TrackMateBranchConverter}.
+	 * 
+	 * @param model
+	 *            the model to convert.
+	 * @return a new list of tracks.
+	 */
 	public static List< TrackSegment > fromTrackMate( final Model model )
 	{
-		final Set< Integer > trackIDs = model.getTrackModel().unsortedTrackIDs( true );
-		final List< TrackSegment > tracks = new ArrayList< TrackSegment >( trackIDs.size() );
-
-		for ( final Integer trackID : trackIDs )
-		{
-			final List< Spot > spots = new ArrayList<>( model.getTrackModel().trackSpots( trackID ) );
-			spots.sort( Spot.frameComparator );
+		return storeFromTrackMate( model ).toTrackSegments();
+	}
 
-			final TreeMap< Integer, Detection > detections = new TreeMap< Integer, Detection >();
-			for ( final Spot spot : spots )
-			{
-				final int t = spot.getFeature( Spot.FRAME ).intValue();
-				if ( t < 0 )
-					throw new IllegalArgumentException( "invalid t value: " + t );
-				if ( detections.containsKey( Integer.valueOf( t ) ) )
-					throw new IllegalArgumentException( "duplicated detection for a single track at time " + t );
+	/**
+	 * Converts the tracks of a TrackMate model to a {@link SPTTrackStore},
+	 * without creating intermediate {@link Detection} and
+	 * {@link TrackSegment} objects. Tracks with splits or merges are
+	 * decomposed in linear segments, and the TrackMate track IDs are used as
+	 * source ids of their segments.
+	 * 
+	 * @param model
+	 *            the model to convert.
+	 * @return a new store.
+	 * @see TrackMateBranchConverter
+	 */
+	public static SPTTrackStore storeFromTrackMate( final Model model )
+	{
+		return TrackMateBranchConverter.convert( model );
+	}
 
-				final double x = spot.getDoublePosition( 0 );
-				final double y = spot.getDoublePosition( 1 );
-				final double z = spot.getDoublePosition( 2 );
-				final Detection detection = new Detection( x, y, z, t );
-				detection.setDetectionType( Detection.DETECTIONTYPE_REAL_DETECTION );
-				detections.put( Integer.valueOf( t ), detection );
-			}
-			tracks.add( makeTrack( detections ) );
+	/**
+	 * Computes the distances between reference tracks and the spots of a
+	 * TrackMate model, within the max pairing distance. All the spots are
+	 * used, visible or not, so that the cache can be used for any tracking
+	 * result on these spots, converted with
+	 * {@link #storeFromTrackMate(Model)}.
+	 * 
+	 * @param references
+	 *            the reference tracks.
+	 * @param spots
+	 *            the spots.
+	 * @param maxDist
+	 *            the max pairing distance.
+	 * @return a new cache.
+	 */
+	public static DetectionDistanceCache distanceCache( final SPTTrackStore references, final SpotCollection spots, final double maxDist )
+	{
+		final int n = spots.getNSpots( false );
+		final int[] ids = new int[ n ];
+		final int[] frames = new int[ n ];
+		final double[] x = new double[ n ];
+		final double[] y = new double[ n ];
+		final double[] z = new double[ n ];
+		int i = 0;
+		for ( final Spot spot : spots.iterable( false ) )
+		{
+			ids[ i ] = spot.ID();
+			frames[ i ] = spot.getFeature( Spot.FRAME ).intValue();
+			x[ i ] = spot.getDoublePosition( 0 );
+			y[ i ] = spot.getDoublePosition( 1 );
+			z[ i ] = spot.getDoublePosition( 2 );
+			i++;
 		}
-		trimTrack( tracks );
-		return tracks;
+		return new DetectionDistanceCache( references, maxDist, ids, frames, x, y, z );
 	}
 
 	public static List< TrackSegment > fromXML( final File inputFile ) throws IllegalArgumentException
@@ -152,6 +212,196 @@ public class SPTFormatImporter
 		XMLUtil.saveDocument( document, file );
 	}
 
+	/**
+	 * Reads the tracks of an ISBI'2012 Particle tracking challenge .xml file
+	 * straight into a {@link SPTTrackStore}.
+	 * <p>
+	 * The file is parsed with a streaming (StAX) reader, so that no DOM is
+	 * built and memory usage does not depend on the size of the file. Tracks
+	 * are processed like in {@link #fromXML(File)}.
+	 * 
+	 * @param inputFile
+	 *            the .xml file to read.
+	 * @return a new store.
+	 * @throws IllegalArgumentException
+	 *             if the file cannot be read or is not a valid ISBI'2012 track
+	 *             file.
+	 */
+	public static SPTTrackStore storeFromXML( final File inputFile ) throws IllegalArgumentException
+	{
+		try (final InputStream is = new BufferedInputStream( new FileInputStream( inputFile ), 1 << 16 ))
+		{
+			return storeFromXML( is );
+		}
+		catch ( final IOException e )
+		{
+			throw new IllegalArgumentException( "could not read " + inputFile + ": " + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * Reads the tracks of an ISBI'2012 Particle tracking challenge XML stream
+	 * straight into a {@link SPTTrackStore}, with a streaming (StAX) reader.
+	 * The stream is not closed.
+	 * 
+	 * @param is
+	 *            the stream to read.
+	 * @return a new store.
+	 * @throws IllegalArgumentException
+	 *             if the stream is not a valid ISBI'2012 track file.
+	 * @see #storeFromXML(File)
+	 */
+	public static SPTTrackStore storeFromXML( final InputStream is ) throws IllegalArgumentException
+	{
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE );
+		factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+
+		try
+		{
+			// Some StAX implementations close the stream at the end of the document.
+			final XMLStreamReader reader = factory.createXMLStreamReader( new FilterInputStream( is )
+			{
+				@Override
+				public void close()
+				{}
+			} );
+			try
+			{
+				final SPTTrackStore.Builder builder = new SPTTrackStore.Builder();
+				/*
+				 * Depth of the current element: 1 for the root, 2 for the
+				 * tracking set, 3 for particles and 4 for detections.
+				 */
+				int depth = 0;
+				boolean foundRoot = false;
+				boolean foundTrackingSet = false;
+				boolean inTrackingSet = false;
+				boolean inParticle = false;
+				while ( reader.hasNext() )
+				{
+					final int event = reader.next();
+					if ( event == XMLStreamConstants.START_ELEMENT )
+					{
+						depth++;
+						final String name = reader.getLocalName();
+						if ( depth == 1 )
+						{
+							foundRoot = true;
+						}
+						else if ( depth == 2 && !foundTrackingSet && TRACKING_SET_TAG.equals( name ) )
+						{
+							foundTrackingSet = true;
+							inTrackingSet = true;
+						}
+						else if ( depth == 3 && inTrackingSet && PARTICLE_TAG.equals( name ) )
+						{
+							inParticle = true;
+						}
+						else if ( depth == 4 && inParticle && DETECTION_TAG.equals( name ) )
+						{
+							final int t = getAttributeIntValue( reader, "t", -1 );
+							if ( t < 0 )
+								throw new IllegalArgumentException( "invalid t value: " + t );
+							final double x = getAttributeDoubleValue( reader, "x", 0 );
+							final double y = getAttributeDoubleValue( reader, "y", 0 );
+							final double z = getAttributeDoubleValue( reader, "z", 0 );
+							builder.addDetection( t, x, y, z );
+						}
+					}
+					else if ( event == XMLStreamConstants.END_ELEMENT )
+					{
+						if ( depth == 3 && inParticle )
+						{
+							builder.endTrack( -1 );
+							inParticle = false;
+						}
+						else if ( depth == 2 && inTrackingSet )
+						{
+							inTrackingSet = false;
+						}
+						depth--;
+					}
+				}
+				if ( !foundRoot )
+					throw new IllegalArgumentException( "can't find: <root> tag." );
+				if ( !foundTrackingSet )
+					throw new IllegalArgumentException( "can't find: <root><" + TRACKING_SET_TAG + "> tag." );
+				return builder.build();
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch ( final XMLStreamException e )
+		{
+			throw new IllegalArgumentException( "could not parse XML: " + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * Exports the tracks of a {@link SPTTrackStore} to a .xml file in the
+	 * format used for the ISBI'2012 Particle tracking challenge.
+	 * <p>
+	 * The file is written with a streaming (StAX) writer, without building a
+	 * DOM. Only the real detections are written: the virtual detections that
+	 * fill the gaps of a track are interpolated again when the file is read.
+	 * 
+	 * @param file
+	 *            output .xml file.
+	 * @param tracks
+	 *            the tracks to save.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public static void toXML( final File file, final SPTTrackStore tracks ) throws IOException
+	{
+		final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+		try (final Writer out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 ), 1 << 16 ))
+		{
+			final XMLStreamWriter writer = factory.createXMLStreamWriter( out );
+			try
+			{
+				writer.writeStartElement( XMLUtil.NODE_ROOT_NAME );
+				writer.writeCharacters( "\n" );
+				writer.writeStartElement( TRACKING_SET_TAG );
+				for ( int track = 0; track < tracks.numTracks(); track++ )
+				{
+					writer.writeCharacters( "\n" );
+					writer.writeStartElement( PARTICLE_TAG );
+					for ( int d = tracks.start( track ); d < tracks.end( track ); d++ )
+					{
+						if ( tracks.isVirtual( d ) )
+							continue;
+						writer.writeCharacters( "\n" );
+						writer.writeEmptyElement( DETECTION_TAG );
+						writer.writeAttribute( "x", StringUtil.toString( tracks.x( d ) ) );
+						writer.writeAttribute( "y", StringUtil.toString( tracks.y( d ) ) );
+						writer.writeAttribute( "z", StringUtil.toString( tracks.z( d ) ) );
+						writer.writeAttribute( "t", StringUtil.toString( tracks.frame( track, d ) ) );
+					}
+					writer.writeCharacters( "\n" );
+					writer.writeEndElement();
+				}
+				writer.writeCharacters( "\n" );
+				writer.writeEndElement();
+				writer.writeCharacters( "\n" );
+				writer.writeEndElement();
+				writer.writeCharacters( "\n" );
+				writer.flush();
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+		catch ( final XMLStreamException e )
+		{
+			throw new IOException( "could not write " + file + ": " + e.getMessage(), e );
+		}
+	}
+
 	/*
 	 * Checks if detection contain NaN position, and trim track if they exists
 	 * example ( considering only one coordinate )
@@ -245,6 +495,33 @@ public class SPTFormatImporter
 		return track;
 	}
 
+	/**
+	 * Reads an integer attribute of the current element, like
+	 * {@link XMLUtil#getAttributeIntValue(Element, String, int)} does for DOM
+	 * elements.
+	 */
+	private static int getAttributeIntValue( final XMLStreamReader reader, final String attribute, final int defaultValue )
+	{
+		final String value = reader.getAttributeValue( null, attribute );
+		if ( value == null )
+			return defaultValue;
+		return StringUtil.parseInt( value, defaultValue );
+	}
+
+	/**
+	 * Reads a double attribute of the current element, like
+	 * {@link XMLUtil#getAttributeDoubleValue(Element, String, double)} does
+	 * for DOM elements. Missing attributes, such as <code>z</code> in 2D
+	 * files, get the default value.
+	 */
+	private static double getAttributeDoubleValue( final XMLStreamReader reader, final String attribute, final double defaultValue )
+	{
+		final String value = reader.getAttributeValue( null, attribute );
+		if ( value == null )
+			return defaultValue;
+		return StringUtil.parseDouble( value, defaultValue );
+	}
+
 	private static boolean containsNaN( final Detection detection )
 	{
 		return ( Double.isNaN( detection.getX() )
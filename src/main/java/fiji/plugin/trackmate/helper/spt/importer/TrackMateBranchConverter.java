@@ -0,0 +1,166 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.importer;
+
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.helper.spt.measure.SPTTrackStore;
+
+/**
+ * Converts the tracks of a TrackMate model to a {@link SPTTrackStore},
+ * splitting tracks with branches in linear segments.
+ * <p>
+ * The ISBI SPT tracks are linear: they have at most one detection per frame.
+ * TrackMate tracks can split and merge, so they are decomposed along the
+ * track graph. A segment starts at a spot that does not have exactly one
+ * predecessor, or whose predecessor has several successors. It then follows
+ * the links forward, as long as the current spot has exactly one successor
+ * and this successor has exactly one predecessor. Every spot of a track
+ * belongs to exactly one segment, and a linear track gives exactly one
+ * segment. Links between spots of the same frame are ignored.
+ * <p>
+ * Segments are written directly in the primitive arrays of a
+ * {@link SPTTrackStore.Builder}, which fills gaps with virtual detections.
+ * The spot IDs are used as detection ids.
+ * Tracks are converted in parallel, in chunks of tracks with their own
+ * builder, and the chunks are concatenated in order.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class TrackMateBranchConverter
+{
+
+	/**
+	 * Number of chunks per thread, to balance tracks of different sizes.
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private TrackMateBranchConverter()
+	{}
+
+	/**
+	 * Converts the visible tracks of a TrackMate model. The segments of a track
+	 * all have the TrackMate track ID as source id.
+	 * 
+	 * @param model
+	 *            the model to convert.
+	 * @return a new store.
+	 */
+	public static SPTTrackStore convert( final Model model )
+	{
+		final TrackModel trackModel = model.getTrackModel();
+		final Integer[] trackIDs = trackModel.unsortedTrackIDs( true ).toArray( new Integer[ 0 ] );
+		final int nTracks = trackIDs.length;
+		final int nChunks = Math.max( 1, Math.min( nTracks, CHUNKS_PER_THREAD * ForkJoinPool.getCommonPoolParallelism() ) );
+		final int nSpotsPerChunk = model.getSpots().getNSpots( true ) / nChunks;
+
+		final SPTTrackStore[] chunks = new SPTTrackStore[ nChunks ];
+		IntStream.range( 0, nChunks ).parallel().forEach( c -> {
+			final int from = ( int ) ( ( long ) nTracks * c / nChunks );
+			final int to = ( int ) ( ( long ) nTracks * ( c + 1 ) / nChunks );
+			final SPTTrackStore.Builder builder = new SPTTrackStore.Builder( to - from, nSpotsPerChunk );
+			for ( int i = from; i < to; i++ )
+				addTrack( trackModel, trackIDs[ i ], builder );
+			chunks[ c ] = builder.build();
+		} );
+		return SPTTrackStore.concatenate( chunks );
+	}
+
+	private static void addTrack( final TrackModel trackModel, final Integer trackID, final SPTTrackStore.Builder builder )
+	{
+		final int sourceId = trackID.intValue();
+		for ( final Spot spot : trackModel.trackSpots( trackID ) )
+		{
+			if ( !isSegmentStart( trackModel, spot ) )
+				continue;
+
+			Spot current = spot;
+			while ( current != null )
+			{
+				builder.addDetection( frame( current ),
+						current.getDoublePosition( 0 ),
+						current.getDoublePosition( 1 ),
+						current.getDoublePosition( 2 ),
+						current.ID() );
+				current = next( trackModel, current );
+			}
+			builder.endTrack( sourceId );
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the spot is not the continuation of the
+	 * segment of its predecessor.
+	 */
+	private static boolean isSegmentStart( final TrackModel trackModel, final Spot spot )
+	{
+		final Spot predecessor = onlyNeighbor( trackModel, spot, false );
+		return predecessor == null || onlyNeighbor( trackModel, predecessor, true ) == null;
+	}
+
+	/**
+	 * Returns the spot that continues the segment of the specified spot, or
+	 * <code>null</code> if the segment ends at this spot.
+	 */
+	private static Spot next( final TrackModel trackModel, final Spot spot )
+	{
+		final Spot successor = onlyNeighbor( trackModel, spot, true );
+		if ( successor == null || onlyNeighbor( trackModel, successor, false ) == null )
+			return null;
+		return successor;
+	}
+
+	/**
+	 * Returns the only successor (or predecessor) of a spot, or
+	 * <code>null</code> if it has none or several.
+	 */
+	private static Spot onlyNeighbor( final TrackModel trackModel, final Spot spot, final boolean forward )
+	{
+		final int t = frame( spot );
+		final Set< DefaultWeightedEdge > edges = trackModel.edgesOf( spot );
+		Spot neighbor = null;
+		for ( final DefaultWeightedEdge edge : edges )
+		{
+			final Spot source = trackModel.getEdgeSource( edge );
+			final Spot other = ( source == spot ) ? trackModel.getEdgeTarget( edge ) : source;
+			final int ot = frame( other );
+			if ( forward ? ot <= t : ot >= t )
+				continue;
+			if ( neighbor != null )
+				return null;
+			neighbor = other;
+		}
+		return neighbor;
+	}
+
+	private static int frame( final Spot spot )
+	{
+		return spot.getFeature( Spot.FRAME ).intValue();
+	}
+}
@@ -0,0 +1,302 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spatio-temporal index of the real detections of a set of candidate tracks,
+ * used to prune the track pairs that cannot match.
+ * <p>
+ * A reference track and a candidate track can only match if, at some frame,
+ * the candidate track has a real detection closer than the gate to the
+ * reference track detection (see {@link TrackToTrackDistance}). The candidate
+ * detections are stored in a uniform grid per frame, with a cell size equal
+ * to the gate, so that the candidates of a reference track are found by
+ * looking only at the neighbor cells of its detections.
+ * <p>
+ * The index can be built from a list of {@link TrackSegment}s or from a
+ * {@link SPTTrackStore}.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+class CandidateDetectionIndex
+{
+
+	private final List< TrackSegment > candidateTracks;
+
+	private final int nCandidates;
+
+	private final double maxDist;
+
+	private final boolean prune;
+
+	private final Map< Cell, Entries > grid;
+
+	/**
+	 * Builds the index.
+	 * 
+	 * @param candidateTracks
+	 *            the candidate tracks.
+	 * @param maxDist
+	 *            the gate (maximum Euclidian distance) between detections.
+	 */
+	CandidateDetectionIndex( final List< TrackSegment > candidateTracks, final double maxDist )
+	{
+		this.candidateTracks = candidateTracks;
+		this.nCandidates = candidateTracks.size();
+		this.maxDist = maxDist;
+		// We cannot build a grid with an infinite or undefined cell size.
+		this.prune = !Double.isInfinite( maxDist ) && !Double.isNaN( maxDist );
+		this.grid = new HashMap<>();
+		if ( !prune || maxDist <= 0. )
+			return;
+
+		for ( int c = 0; c < candidateTracks.size(); c++ )
+		{
+			for ( final Detection d : candidateTracks.get( c ).getDetectionList() )
+			{
+				if ( d.getDetectionType() != Detection.DETECTIONTYPE_REAL_DETECTION )
+					continue;
+				add( c, d.getT(), d.getX(), d.getY(), d.getZ() );
+			}
+		}
+	}
+
+	/**
+	 * Builds the index from the tracks of a store.
+	 * 
+	 * @param candidates
+	 *            the store of candidate tracks.
+	 * @param maxDist
+	 *            the gate (maximum Euclidian distance) between detections.
+	 */
+	CandidateDetectionIndex( final SPTTrackStore candidates, final double maxDist )
+	{
+		this.candidateTracks = null;
+		this.nCandidates = candidates.numTracks();
+		this.maxDist = maxDist;
+		this.prune = !Double.isInfinite( maxDist ) && !Double.isNaN( maxDist );
+		this.grid = new HashMap<>();
+		if ( !prune || maxDist <= 0. )
+			return;
+
+		for ( int c = 0; c < nCandidates; c++ )
+		{
+			for ( int d = candidates.start( c ); d < candidates.end( c ); d++ )
+			{
+				if ( candidates.isVirtual( d ) )
+					continue;
+				add( c, candidates.frame( c, d ), candidates.x( d ), candidates.y( d ), candidates.z( d ) );
+			}
+		}
+	}
+
+	private void add( final int c, final int t, final double x, final double y, final double z )
+	{
+		final Cell cell = new Cell( t, cell( x ), cell( y ), cell( z ) );
+		Entries entries = grid.get( cell );
+		if ( entries == null )
+		{
+			entries = new Entries();
+			grid.put( cell, entries );
+		}
+		entries.add( c, x, y, z );
+	}
+
+	/**
+	 * Returns the candidate tracks that have at least one real detection
+	 * within the gate of a detection of the specified reference track, at the
+	 * same frame. The candidate tracks are returned in the order they were
+	 * given to the index.
+	 * 
+	 * @param ref
+	 *            the reference track.
+	 * @return a new list of candidate tracks.
+	 */
+	List< TrackSegment > getCandidates( final TrackSegment ref )
+	{
+		if ( !prune )
+			return new ArrayList<>( candidateTracks );
+		if ( maxDist <= 0. )
+			return new ArrayList<>();
+
+		final BitSet found = new BitSet( nCandidates );
+		for ( final Detection d1 : ref.getDetectionList() )
+			collect( d1.getT(), d1.getX(), d1.getY(), d1.getZ(), found );
+
+		final List< TrackSegment > candidates = new ArrayList<>( found.cardinality() );
+		for ( int c = found.nextSetBit( 0 ); c >= 0; c = found.nextSetBit( c + 1 ) )
+			candidates.add( candidateTracks.get( c ) );
+		return candidates;
+	}
+
+	/**
+	 * Returns the indices of the candidate tracks that have at least one real
+	 * detection within the gate of a detection of the specified reference
+	 * track, at the same frame, in increasing order. The index must have been
+	 * built from a {@link SPTTrackStore}.
+	 * 
+	 * @param refs
+	 *            the store of reference tracks.
+	 * @param ref
+	 *            the index of the reference track in its store.
+	 * @return a new array of candidate track indices.
+	 */
+	int[] getCandidates( final SPTTrackStore refs, final int ref )
+	{
+		if ( !prune )
+		{
+			final int[] all = new int[ nCandidates ];
+			for ( int c = 0; c < nCandidates; c++ )
+				all[ c ] = c;
+			return all;
+		}
+		if ( maxDist <= 0. )
+			return new int[ 0 ];
+
+		final BitSet found = new BitSet( nCandidates );
+		for ( int d = refs.start( ref ); d < refs.end( ref ); d++ )
+			collect( refs.frame( ref, d ), refs.x( d ), refs.y( d ), refs.z( d ), found );
+		return found.stream().toArray();
+	}
+
+	/**
+	 * Marks the candidate tracks that have a real detection within the gate
+	 * of the specified position at frame t.
+	 */
+	private void collect( final int t, final double x1, final double y1, final double z1, final BitSet found )
+	{
+		final long ix = cell( x1 );
+		final long iy = cell( y1 );
+		final long iz = cell( z1 );
+		for ( long x = ix - 1; x <= ix + 1; x++ )
+		{
+			for ( long y = iy - 1; y <= iy + 1; y++ )
+			{
+				for ( long z = iz - 1; z <= iz + 1; z++ )
+				{
+					final Entries entries = grid.get( new Cell( t, x, y, z ) );
+					if ( entries == null )
+						continue;
+
+					for ( int i = 0; i < entries.size; i++ )
+					{
+						final int c = entries.tracks[ i ];
+						if ( found.get( c ) )
+							continue;
+
+						final double dx = x1 - entries.x[ i ];
+						final double dy = y1 - entries.y[ i ];
+						final double dz = z1 - entries.z[ i ];
+						final double ed = Math.sqrt( dx * dx + dy * dy + dz * dz );
+						if ( ed < maxDist )
+							found.set( c );
+					}
+				}
+			}
+		}
+	}
+
+	private long cell( final double pos )
+	{
+		return ( long ) Math.floor( pos / maxDist );
+	}
+
+	private static final class Cell
+	{
+
+		private final int t;
+
+		private final long x;
+
+		private final long y;
+
+		private final long z;
+
+		private Cell( final int t, final long x, final long y, final long z )
+		{
+			this.t = t;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int h = t;
+			h = 31 * h + Long.hashCode( x );
+			h = 31 * h + Long.hashCode( y );
+			h = 31 * h + Long.hashCode( z );
+			return h;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Cell ) )
+				return false;
+			final Cell o = ( Cell ) obj;
+			return t == o.t && x == o.x && y == o.y && z == o.z;
+		}
+	}
+
+	/**
+	 * The positions of the candidate detections in one cell, with the index of
+	 * their track.
+	 */
+	private static final class Entries
+	{
+
+		private int[] tracks = new int[ 4 ];
+
+		private double[] x = new double[ 4 ];
+
+		private double[] y = new double[ 4 ];
+
+		private double[] z = new double[ 4 ];
+
+		private int size = 0;
+
+		private void add( final int track, final double xd, final double yd, final double zd )
+		{
+			if ( size == tracks.length )
+			{
+				tracks = Arrays.copyOf( tracks, 2 * size );
+				x = Arrays.copyOf( x, 2 * size );
+				y = Arrays.copyOf( y, 2 * size );
+				z = Arrays.copyOf( z, 2 * size );
+			}
+			tracks[ size ] = track;
+			x[ size ] = xd;
+			y[ size ] = yd;
+			z[ size ] = zd;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,312 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Distances between the reference detections and a fixed set of candidate
+ * detections, within a gate.
+ * <p>
+ * When several trackers are run on the same detection result, the candidate
+ * tracks change but the candidate detections stay the same. This cache
+ * computes once, for each reference detection, the candidate detections of
+ * the same frame closer than the gate, and their distance. They are stored
+ * as sparse primitive arrays, one row per reference detection. The track to
+ * track distances of each tracker result are then assembled from the cached
+ * values with {@link TrackStoreMatcher#pairTracks(DetectionDistanceCache)},
+ * without computing detection distances again.
+ * <p>
+ * Candidate detections are identified by an id, for instance the TrackMate
+ * spot ID, that the candidate tracks must report with
+ * {@link SPTTrackStore#detectionId(int)}.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class DetectionDistanceCache
+{
+
+	private final SPTTrackStore refs;
+
+	private final double gate;
+
+	/** Candidate detection ids, sorted. */
+	private final int[] ids;
+
+	/** Candidate detection frames, in the order of the ids. */
+	private final int[] frames;
+
+	/**
+	 * Index of the first entry of each reference detection. Has one more
+	 * element than there are reference detections.
+	 */
+	private final int[] rowStart;
+
+	/** Candidate detection of each entry, as an index in the ids. */
+	private final int[] entryCandidates;
+
+	/** Distance of each entry. */
+	private final double[] entryDistances;
+
+	/**
+	 * Computes the cache.
+	 * 
+	 * @param refs
+	 *            the reference tracks.
+	 * @param gate
+	 *            the gate (maximum Euclidian distance) between detections.
+	 * @param ids
+	 *            the ids of the candidate detections.
+	 * @param frames
+	 *            the frames of the candidate detections.
+	 * @param x
+	 *            the X positions of the candidate detections.
+	 * @param y
+	 *            the Y positions of the candidate detections.
+	 * @param z
+	 *            the Z positions of the candidate detections.
+	 * @throws IllegalArgumentException
+	 *             if two candidate detections have the same id, or if a frame
+	 *             is negative.
+	 */
+	public DetectionDistanceCache( final SPTTrackStore refs, final double gate, final int[] ids, final int[] frames, final double[] x, final double[] y, final double[] z ) throws IllegalArgumentException
+	{
+		this.refs = refs;
+		this.gate = gate;
+		final int n = ids.length;
+
+		// Candidate detections in the order of their ids.
+		final long[] keys = new long[ n ];
+		for ( int i = 0; i < n; i++ )
+			keys[ i ] = ( ( long ) ids[ i ] << 32 ) | i;
+		Arrays.sort( keys );
+		this.ids = new int[ n ];
+		this.frames = new int[ n ];
+		final double[] cx = new double[ n ];
+		final double[] cy = new double[ n ];
+		final double[] cz = new double[ n ];
+		int maxFrame = -1;
+		for ( int j = 0; j < n; j++ )
+		{
+			final int i = ( int ) keys[ j ];
+			if ( j > 0 && ids[ i ] == this.ids[ j - 1 ] )
+				throw new IllegalArgumentException( "duplicated candidate detection id: " + ids[ i ] );
+			if ( frames[ i ] < 0 )
+				throw new IllegalArgumentException( "invalid t value: " + frames[ i ] );
+			this.ids[ j ] = ids[ i ];
+			this.frames[ j ] = frames[ i ];
+			cx[ j ] = x[ i ];
+			cy[ j ] = y[ i ];
+			cz[ j ] = z[ i ];
+			maxFrame = Math.max( maxFrame, frames[ i ] );
+		}
+
+		/*
+		 * Candidate detections by frame, sorted by X cell in each frame. The
+		 * cells are at least as large as the gate, so the matches of a
+		 * reference detection are in its cell or in the neighbor cells.
+		 */
+		final int[] frameStart = new int[ maxFrame + 2 ];
+		for ( int j = 0; j < n; j++ )
+			frameStart[ this.frames[ j ] + 1 ]++;
+		for ( int t = 0; t <= maxFrame; t++ )
+			frameStart[ t + 1 ] += frameStart[ t ];
+		double minX = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		for ( int j = 0; j < n; j++ )
+		{
+			if ( cx[ j ] < minX )
+				minX = cx[ j ];
+			if ( cx[ j ] > maxX )
+				maxX = cx[ j ];
+		}
+		final double cellSize = Math.max( gate, ( maxX - minX ) / ( 1 << 30 ) );
+		final double originX = minX;
+		final long[] cellKeys = new long[ n ];
+		final int[] fill = Arrays.copyOf( frameStart, maxFrame + 1 );
+		for ( int j = 0; j < n; j++ )
+			cellKeys[ fill[ this.frames[ j ] ]++ ] = ( cell( cx[ j ], originX, cellSize ) << 32 ) | j;
+		for ( int t = 0; t <= maxFrame; t++ )
+			Arrays.sort( cellKeys, frameStart[ t ], frameStart[ t + 1 ] );
+
+		/*
+		 * Entries of each reference track, then concatenated in the order of
+		 * the reference detections.
+		 */
+		final boolean searchable = gate > 0. && n > 0;
+		final int lastFrame = maxFrame;
+		final int nRefs = refs.numTracks();
+		final int[][] trackCandidates = new int[ nRefs ][];
+		final double[][] trackDistances = new double[ nRefs ][];
+		final int[][] trackCounts = new int[ nRefs ][];
+		IntStream.range( 0, nRefs ).parallel().forEach( r -> {
+			final int[] counts = new int[ refs.length( r ) ];
+			int[] cands = new int[ 16 ];
+			double[] dists = new double[ 16 ];
+			int size = 0;
+			for ( int d = refs.start( r ); searchable && d < refs.end( r ); d++ )
+			{
+				final int t = refs.frame( r, d );
+				if ( t > lastFrame || Double.isNaN( refs.x( d ) ) )
+					continue;
+
+				// candidate cells are in [0, 2^30], clamp to avoid overflows
+				final long c = Math.max( -2L, Math.min( ( 1L << 30 ) + 2, cell( refs.x( d ), originX, cellSize ) ) );
+				final long lo = ( c - 1 ) << 32;
+				final long hi = ( c + 2 ) << 32;
+				int k = Arrays.binarySearch( cellKeys, frameStart[ t ], frameStart[ t + 1 ], lo );
+				if ( k < 0 )
+					k = -k - 1;
+				for ( ; k < frameStart[ t + 1 ] && cellKeys[ k ] < hi; k++ )
+				{
+					final int j = ( int ) cellKeys[ k ];
+					final double dx = refs.x( d ) - cx[ j ];
+					final double dy = refs.y( d ) - cy[ j ];
+					final double dz = refs.z( d ) - cz[ j ];
+					final double ed = Math.sqrt( dx * dx + dy * dy + dz * dz );
+					if ( !( ed < gate ) )
+						continue;
+
+					if ( size == cands.length )
+					{
+						cands = Arrays.copyOf( cands, 2 * size );
+						dists = Arrays.copyOf( dists, 2 * size );
+					}
+					cands[ size ] = j;
+					dists[ size ] = ed;
+					size++;
+					counts[ d - refs.start( r ) ]++;
+				}
+			}
+			trackCandidates[ r ] = Arrays.copyOf( cands, size );
+			trackDistances[ r ] = Arrays.copyOf( dists, size );
+			trackCounts[ r ] = counts;
+		} );
+
+		this.rowStart = new int[ refs.numDetections() + 1 ];
+		int nEntries = 0;
+		for ( int r = 0; r < nRefs; r++ )
+		{
+			for ( int k = 0; k < trackCounts[ r ].length; k++ )
+			{
+				rowStart[ refs.start( r ) + k ] = nEntries;
+				nEntries += trackCounts[ r ][ k ];
+			}
+		}
+		rowStart[ refs.numDetections() ] = nEntries;
+		this.entryCandidates = new int[ nEntries ];
+		this.entryDistances = new double[ nEntries ];
+		for ( int r = 0; r < nRefs; r++ )
+		{
+			final int start = rowStart[ refs.start( r ) ];
+			System.arraycopy( trackCandidates[ r ], 0, entryCandidates, start, trackCandidates[ r ].length );
+			System.arraycopy( trackDistances[ r ], 0, entryDistances, start, trackDistances[ r ].length );
+		}
+	}
+
+	/**
+	 * Returns the reference tracks this cache was computed for.
+	 * 
+	 * @return the reference tracks.
+	 */
+	public SPTTrackStore getReferences()
+	{
+		return refs;
+	}
+
+	/**
+	 * Returns the gate this cache was computed with.
+	 * 
+	 * @return the gate.
+	 */
+	public double getGate()
+	{
+		return gate;
+	}
+
+	/**
+	 * Returns the number of candidate detections in this cache.
+	 * 
+	 * @return the number of candidate detections.
+	 */
+	public int numCandidateDetections()
+	{
+		return ids.length;
+	}
+
+	/**
+	 * Returns the number of cached distances, that is the number of reference
+	 * - candidate detection pairs closer than the gate.
+	 * 
+	 * @return the number of cached distances.
+	 */
+	public int numEntries()
+	{
+		return entryCandidates.length;
+	}
+
+	/**
+	 * Returns the index in this cache of the candidate detection with the
+	 * specified id.
+	 * 
+	 * @param id
+	 *            the candidate detection id.
+	 * @return the index, or -1 if there is no candidate detection with this
+	 *         id.
+	 */
+	int indexOf( final int id )
+	{
+		final int i = Arrays.binarySearch( ids, id );
+		return ( i < 0 ) ? -1 : i;
+	}
+
+	int frame( final int candidate )
+	{
+		return frames[ candidate ];
+	}
+
+	int rowStart( final int refDetection )
+	{
+		return rowStart[ refDetection ];
+	}
+
+	int rowEnd( final int refDetection )
+	{
+		return rowStart[ refDetection + 1 ];
+	}
+
+	int candidate( final int entry )
+	{
+		return entryCandidates[ entry ];
+	}
+
+	double distance( final int entry )
+	{
+		return entryDistances[ entry ];
+	}
+
+	private static long cell( final double x, final double originX, final double cellSize )
+	{
+		return ( long ) Math.floor( ( x - originX ) / cellSize );
+	}
+}
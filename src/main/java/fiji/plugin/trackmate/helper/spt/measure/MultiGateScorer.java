@@ -0,0 +1,500 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Computes the ISBI SPT scores of a set of candidate tracks against a set of
+ * reference tracks, for several gates (max pairing distances) at once.
+ * <p>
+ * The detection to detection distances are computed only once, for the
+ * largest gate. For each track pair that can match, the distances between the
+ * reference detections and the real candidate detections are sorted, and
+ * stored with their prefix sums. For a given gate, the detections that match
+ * are then the first ones of this sorted list, found by binary search, and
+ * the track to track distance, the number of matching detections and the sum
+ * of squared distances are read from the prefix sums. The pairing of each
+ * gate is computed like in {@link TrackStoreMatcher}, with the Euclidian
+ * distance, and the scores like in {@link TrackStoreAnalyzer}.
+ * <p>
+ * The detection distances can also be read from a
+ * {@link DetectionDistanceCache} computed for the largest gate or a larger
+ * one, so that they are not computed again for each tracker configuration run
+ * on the same detection result.
+ * <p>
+ * The scores are equal to those computed one gate at a time, up to the
+ * rounding errors of the different summation order.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class MultiGateScorer
+{
+
+	private final SPTTrackStore refs;
+
+	private final SPTTrackStore candidates;
+
+	private final double[] gates;
+
+	/**
+	 * For each reference track, the candidate tracks it can match with the
+	 * largest gate, in increasing order.
+	 */
+	private final int[][] pairCandidates;
+
+	/**
+	 * For each reference track, the distances to the candidate tracks in
+	 * {@link #pairCandidates}.
+	 */
+	private final PairDistances[][] pairDistances;
+
+	/**
+	 * The number of real detections of each candidate track.
+	 */
+	private final int[] candidateRealDetections;
+
+	/**
+	 * For each gate and each reference track, the candidate track it is
+	 * paired with, or -1.
+	 */
+	private final int[][] paired;
+
+	/**
+	 * Computes the track pairings for all the gates.
+	 * 
+	 * @param refs
+	 *            the reference tracks.
+	 * @param candidates
+	 *            the candidate tracks.
+	 * @param gates
+	 *            the gates (maximum Euclidian distance between detections).
+	 *            Must be strictly positive.
+	 * @throws IllegalArgumentException
+	 *             if a gate is not strictly positive.
+	 * @throws Exception
+	 *             if the pairing of a gate cannot be solved.
+	 */
+	public MultiGateScorer( final SPTTrackStore refs, final SPTTrackStore candidates, final double[] gates ) throws Exception
+	{
+		this( refs, candidates, gates, null );
+	}
+
+	/**
+	 * Computes the track pairings for all the gates, using the detection
+	 * distances of a cache.
+	 * 
+	 * @param cache
+	 *            the detection distances between the reference tracks and the
+	 *            detections of the candidate tracks.
+	 * @param candidates
+	 *            the candidate tracks.
+	 * @param gates
+	 *            the gates (maximum Euclidian distance between detections).
+	 *            Must be strictly positive, and not larger than the gate of
+	 *            the cache.
+	 * @throws IllegalArgumentException
+	 *             if a gate is not strictly positive or is larger than the
+	 *             gate of the cache, or if the cache does not contain a real
+	 *             detection of the candidate tracks.
+	 * @throws Exception
+	 *             if the pairing of a gate cannot be solved.
+	 */
+	public MultiGateScorer( final DetectionDistanceCache cache, final SPTTrackStore candidates, final double[] gates ) throws Exception
+	{
+		this( cache.getReferences(), candidates, gates, cache );
+	}
+
+	private MultiGateScorer( final SPTTrackStore refs, final SPTTrackStore candidates, final double[] gates, final DetectionDistanceCache cache ) throws Exception
+	{
+		this.refs = refs;
+		this.candidates = candidates;
+		this.gates = gates.clone();
+		double maxGate = 0.;
+		for ( final double gate : gates )
+		{
+			if ( !( gate > 0. ) )
+				throw new IllegalArgumentException( "Gates must be strictly positive, got " + gate + "." );
+			maxGate = Math.max( maxGate, gate );
+		}
+		if ( cache != null && maxGate > cache.getGate() )
+			throw new IllegalArgumentException( "Gates must not be larger than the gate of the distance cache, "
+					+ cache.getGate() + ", got " + maxGate + "." );
+
+		final int nRefs = refs.numTracks();
+		final int nCandidates = candidates.numTracks();
+
+		this.candidateRealDetections = new int[ nCandidates ];
+		for ( int c = 0; c < nCandidates; c++ )
+			for ( int d = candidates.start( c ); d < candidates.end( c ); d++ )
+				if ( !candidates.isVirtual( d ) )
+					candidateRealDetections[ c ]++;
+
+		// Detection distances, computed once for the largest gate.
+		this.pairCandidates = new int[ nRefs ][];
+		this.pairDistances = new PairDistances[ nRefs ][];
+		if ( cache == null )
+			computeDistances( maxGate );
+		else
+			readDistances( cache, maxGate );
+
+		// Pairing for each gate.
+		this.paired = new int[ gates.length ][];
+		for ( int g = 0; g < gates.length; g++ )
+		{
+			final double gate = gates[ g ];
+			final int[][] feasible = new int[ nRefs ][];
+			final double[][] costs = new double[ nRefs ][];
+			for ( int r = 0; r < nRefs; r++ )
+			{
+				final int[] pc = pairCandidates[ r ];
+				final int[] row = new int[ pc.length + 1 ];
+				final double[] rowCosts = new double[ pc.length + 1 ];
+				int n = 0;
+				for ( int i = 0; i < pc.length; i++ )
+				{
+					final PairDistances distances = pairDistances[ r ][ i ];
+					if ( distances.numMatching( gate ) > 0 )
+					{
+						row[ n ] = pc[ i ];
+						rowCosts[ n ] = distances.euclidianDistance( gate );
+						n++;
+					}
+				}
+				row[ n ] = -1;
+				rowCosts[ n ] = gate * refs.length( r );
+				n++;
+				feasible[ r ] = Arrays.copyOf( row, n );
+				costs[ r ] = Arrays.copyOf( rowCosts, n );
+			}
+
+			paired[ g ] = TrackStoreMatcher.solve( nCandidates, feasible, costs );
+		}
+	}
+
+	/**
+	 * Computes the distances of the track pairs that can match with the
+	 * largest gate.
+	 */
+	private void computeDistances( final double largestGate )
+	{
+		final CandidateDetectionIndex index = new CandidateDetectionIndex( candidates, largestGate );
+		IntStream.range( 0, refs.numTracks() ).parallel().forEach( r -> {
+			final int[] cands = index.getCandidates( refs, r );
+			final int[] pc = new int[ cands.length ];
+			final PairDistances[] pd = new PairDistances[ cands.length ];
+			int n = 0;
+			for ( final int c : cands )
+			{
+				final PairDistances distances = new PairDistances( r, c, detectionDistances( r, c, largestGate ), largestGate );
+				if ( distances.numMatching( largestGate ) > 0 )
+				{
+					pc[ n ] = c;
+					pd[ n ] = distances;
+					n++;
+				}
+			}
+			pairCandidates[ r ] = Arrays.copyOf( pc, n );
+			pairDistances[ r ] = Arrays.copyOf( pd, n );
+		} );
+	}
+
+	/**
+	 * Assembles the distances of the track pairs that can match with the
+	 * largest gate from the detection distances of a cache.
+	 */
+	private void readDistances( final DetectionDistanceCache cache, final double largestGate )
+	{
+		final int[] trackOf = TrackStoreMatcher.trackOf( cache, candidates );
+		IntStream.range( 0, refs.numTracks() ).parallel().forEach( r -> {
+			// Matching detections of this reference track, by candidate track.
+			final int firstEntry = cache.rowStart( refs.start( r ) );
+			final int lastEntry = cache.rowStart( refs.end( r ) );
+			final long[] keys = new long[ lastEntry - firstEntry ];
+			int n = 0;
+			for ( int e = firstEntry; e < lastEntry; e++ )
+			{
+				final int c = trackOf[ cache.candidate( e ) ];
+				if ( c >= 0 )
+					keys[ n++ ] = ( ( long ) c << 32 ) | e;
+			}
+			Arrays.sort( keys, 0, n );
+
+			final int[] pc = new int[ n ];
+			final PairDistances[] pd = new PairDistances[ n ];
+			int nPairs = 0;
+			for ( int k = 0; k < n; )
+			{
+				final int c = ( int ) ( keys[ k ] >>> 32 );
+				int end = k;
+				while ( end < n && ( keys[ end ] >>> 32 ) == c )
+					end++;
+				final double[] ds = new double[ end - k ];
+				for ( int i = k; i < end; i++ )
+					ds[ i - k ] = cache.distance( ( int ) keys[ i ] );
+				k = end;
+
+				final PairDistances distances = new PairDistances( r, c, ds, largestGate );
+				if ( distances.numMatching( largestGate ) > 0 )
+				{
+					pc[ nPairs ] = c;
+					pd[ nPairs ] = distances;
+					nPairs++;
+				}
+			}
+			pairCandidates[ r ] = Arrays.copyOf( pc, nPairs );
+			pairDistances[ r ] = Arrays.copyOf( pd, nPairs );
+		} );
+	}
+
+	/**
+	 * Returns the distances from the detections of a reference track to the
+	 * real detections of a candidate track over their common frames, or
+	 * infinity if larger than the gate.
+	 */
+	private double[] detectionDistances( final int r, final int c, final double largestGate )
+	{
+		final int firstT = Math.max( refs.firstFrame( r ), candidates.firstFrame( c ) );
+		final int endT = Math.min( refs.lastFrame( r ), candidates.lastFrame( c ) );
+		if ( firstT > endT )
+			return new double[ 0 ];
+
+		final int overlap = endT - firstT + 1;
+		final double[] ds = new double[ overlap ];
+		final int d2Start = candidates.detectionAtFrame( c, firstT );
+		refs.distances( refs.detectionAtFrame( r, firstT ), candidates, d2Start, overlap, largestGate, ds );
+		int n = 0;
+		for ( int k = 0; k < overlap; k++ )
+			if ( !candidates.isVirtual( d2Start + k ) )
+				ds[ n++ ] = ds[ k ];
+		return Arrays.copyOf( ds, n );
+	}
+
+	/**
+	 * Returns the gates of this scorer.
+	 * 
+	 * @return a new array.
+	 */
+	public double[] getGates()
+	{
+		return gates.clone();
+	}
+
+	/**
+	 * Returns the ISBI SPT scores for all the gates: alpha, beta, the
+	 * detections Jaccard similarity (JSC), the tracks Jaccard similarity (JSC
+	 * theta) and the RMSE of matched detections.
+	 * 
+	 * @param distType
+	 *            type of distance that is used for alpha and beta.
+	 * @return a new <code>double[][]</code> array, with one
+	 *         <code>double[]</code> array with alpha, beta, JSC, JSCtheta and
+	 *         RMSE per gate, in the order of the gates.
+	 * @see TrackStoreAnalyzer#getScores(DistanceTypes, double)
+	 */
+	public double[][] getScores( final DistanceTypes distType )
+	{
+		final double[][] scores = new double[ gates.length ][];
+		for ( int g = 0; g < gates.length; g++ )
+			scores[ g ] = getScores( g, distType );
+		return scores;
+	}
+
+	private double[] getScores( final int g, final DistanceTypes distType )
+	{
+		final boolean euclidian = distType == DistanceTypes.DISTANCE_EUCLIDIAN;
+		final double gate = gates[ g ];
+		final int[] pairing = paired[ g ];
+		final boolean[] candidatePaired = new boolean[ candidates.numTracks() ];
+
+		double distance = 0.;
+		double bound = 0.;
+		double sumSquareDistance = 0.;
+		long numRecoveredDetections = 0;
+		long numMissedDetections = 0;
+		long numWrongDetections = 0;
+		int numCorrectTracks = 0;
+		int numMissedTracks = 0;
+		for ( int r = 0; r < pairing.length; r++ )
+		{
+			final int length = refs.length( r );
+			bound += euclidian ? gate * length : length;
+
+			final int c = pairing[ r ];
+			if ( c < 0 )
+			{
+				numMissedTracks++;
+				distance += euclidian ? gate * length : length;
+				numMissedDetections += length;
+				continue;
+			}
+
+			final PairDistances distances = pairDistances[ r ][ Arrays.binarySearch( pairCandidates[ r ], c ) ];
+			final int k = distances.numMatching( gate );
+			numCorrectTracks++;
+			candidatePaired[ c ] = true;
+			distance += euclidian ? distances.euclidianDistance( gate ) : distances.matchingDistance( gate );
+			numRecoveredDetections += k;
+			numMissedDetections += distances.refOnly + distances.overlap - k;
+			numWrongDetections += distances.candidateOnly + distances.realOverlap - k;
+			sumSquareDistance += distances.prefixSquareSum[ k ];
+		}
+
+		double penalty = 0.;
+		for ( int c = 0; c < candidatePaired.length; c++ )
+		{
+			if ( candidatePaired[ c ] )
+				continue;
+			final int length = candidates.length( c );
+			penalty += euclidian ? gate * length : length;
+			// Virtual detections are not considered as spurious detections.
+			numWrongDetections += candidateRealDetections[ c ];
+		}
+		final int numSpuriousTracks = candidatePaired.length - numCorrectTracks;
+
+		final double alpha = 1d - distance / bound;
+		final double beta = ( bound - distance ) / ( bound + penalty );
+		final double detectionsSimilarity = numRecoveredDetections / ( ( double ) numRecoveredDetections + ( double ) numMissedDetections + numWrongDetections );
+		final double tracksSimilarity = numCorrectTracks / ( ( double ) numCorrectTracks + ( double ) numMissedTracks + numSpuriousTracks );
+		final double rmse = ( numRecoveredDetections == 0 ) ? 0. : Math.sqrt( sumSquareDistance / numRecoveredDetections );
+		return new double[] { alpha, beta, detectionsSimilarity, tracksSimilarity, rmse };
+	}
+
+	/**
+	 * The distances between the detections of a reference track and of a
+	 * candidate track, for all the gates up to the largest one.
+	 */
+	private final class PairDistances
+	{
+
+		/** Number of frames of the reference track only. */
+		private final int refOnly;
+
+		/** Number of frames of the candidate track only. */
+		private final int candidateOnly;
+
+		/** Number of frames of both tracks. */
+		private final int overlap;
+
+		/** Number of real candidate detections over the common frames. */
+		private final int realOverlap;
+
+		/**
+		 * Sorted distances from the reference detections to the real
+		 * candidate detections, over the common frames, smaller than the
+		 * largest gate.
+		 */
+		private final double[] sorted;
+
+		private final double[] prefixSum;
+
+		private final double[] prefixSquareSum;
+
+		/**
+		 * Creates the distances of a track pair.
+		 * 
+		 * @param distances
+		 *            the distances from the reference detections to the real
+		 *            candidate detections over the common frames, in any
+		 *            order. Distances not smaller than the largest gate can
+		 *            be omitted.
+		 */
+		private PairDistances( final int r, final int c, final double[] distances, final double largestGate )
+		{
+			final int t0_1 = refs.firstFrame( r );
+			final int tend_1 = refs.lastFrame( r );
+			final int t0_2 = candidates.firstFrame( c );
+			final int tend_2 = candidates.lastFrame( c );
+			final int firstT = Math.max( t0_1, t0_2 );
+			final int endT = Math.min( tend_1, tend_2 );
+			if ( firstT > endT )
+			{
+				// No common frame.
+				refOnly = tend_1 - t0_1 + 1;
+				candidateOnly = tend_2 - t0_2 + 1;
+				overlap = 0;
+				realOverlap = 0;
+				sorted = new double[ 0 ];
+				prefixSum = new double[ 1 ];
+				prefixSquareSum = new double[ 1 ];
+				return;
+			}
+
+			refOnly = Math.max( 0, t0_2 - t0_1 ) + Math.max( 0, tend_1 - tend_2 );
+			candidateOnly = Math.max( 0, t0_1 - t0_2 ) + Math.max( 0, tend_2 - tend_1 );
+			overlap = endT - firstT + 1;
+
+			int nReal = 0;
+			final int d2Start = candidates.detectionAtFrame( c, firstT );
+			for ( int k = 0; k < overlap; k++ )
+				if ( !candidates.isVirtual( d2Start + k ) )
+					nReal++;
+			realOverlap = nReal;
+
+			final double[] ds = new double[ distances.length ];
+			int n = 0;
+			for ( final double d : distances )
+				if ( d < largestGate )
+					ds[ n++ ] = d;
+			sorted = Arrays.copyOf( ds, n );
+			Arrays.sort( sorted );
+			prefixSum = new double[ n + 1 ];
+			prefixSquareSum = new double[ n + 1 ];
+			for ( int i = 0; i < n; i++ )
+			{
+				prefixSum[ i + 1 ] = prefixSum[ i ] + sorted[ i ];
+				prefixSquareSum[ i + 1 ] = prefixSquareSum[ i ] + sorted[ i ] * sorted[ i ];
+			}
+		}
+
+		/**
+		 * Returns the number of detections that match for the specified gate,
+		 * that is the number of distances strictly smaller than the gate.
+		 */
+		private int numMatching( final double gate )
+		{
+			int lo = 0;
+			int hi = sorted.length;
+			while ( lo < hi )
+			{
+				final int mid = ( lo + hi ) >>> 1;
+				if ( sorted[ mid ] < gate )
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		private double euclidianDistance( final double gate )
+		{
+			final int k = numMatching( gate );
+			return gate * ( refOnly + candidateOnly + overlap - k ) + prefixSum[ k ];
+		}
+
+		private double matchingDistance( final double gate )
+		{
+			return refOnly + candidateOnly + overlap - numMatching( gate );
+		}
+	}
+}
@@ -33,9 +33,11 @@ package fiji.plugin.trackmate.helper.spt.measure;
  */
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.stream.IntStream;
 
 public class OneToOneMatcher
 {
@@ -64,7 +66,8 @@ public class OneToOneMatcher
 	}
 
 	/**
-	 * Compute the best pairing
+	 * Compute the best pairing, solving the assignment of each cluster with
+	 * one of the dense Hungarian solvers.
 	 * 
 	 * @param maxDist
 	 *            maximum Euclidian distance between two detections (gate)
@@ -80,115 +83,176 @@ public class OneToOneMatcher
 	 */
 	public List< TrackPair > pairTracks( final double maxDist, final DistanceTypes distType, final boolean useNewMethod ) throws Exception
 	{
-		// build the potential track pairs
-		this.feasiblePairs.clear();
-		for ( final TrackSegment ts : refTracks )
-			this.feasiblePairs.add( getFeasiblePairs( ts, candidateTracks, distType, maxDist ) );
-
-		// cluster track pairs
-		final List< TrackPairsCluster > clusters = new ArrayList< OneToOneMatcher.TrackPairsCluster >();
-		try
-		{
-			clusters.addAll( getTrackPairClusters() );
-		}
-		catch ( final Exception e )
-		{
-			throw e;
-		}
-
-		final List< TrackPair > assignment = new ArrayList< TrackPair >();
-		for ( final TrackPairsCluster cluster : clusters )
-		{
+		final List< TrackPairsCluster > clusters = buildClusters( maxDist, distType );
+		return solveClusters( clusters, cluster -> {
 			cluster.buildCostMatrix();
 			// use Munkres algorithm to find the best pairing
-			try
+			boolean[][] matching;
+			if ( useNewMethod )
+			{
+				final HungarianMatchingNew matcher = new HungarianMatchingNew( cluster.costs );
+				matching = matcher.compute();
+			}
+			else
 			{
-				boolean[][] matching;
-				if ( useNewMethod )
+				final HungarianMatching matcher = new HungarianMatching( cluster.costs );
+				matching = matcher.optimize();
+			}
+			return cluster.getAssignements( matching );
+		} );
+	}
+
+	/**
+	 * Compute the best pairing, solving the assignment of each cluster with
+	 * the {@link SparseLAPSolver} directly on the feasible pairs.
+	 * 
+	 * @param maxDist
+	 *            maximum Euclidian distance between two detections (gate)
+	 * @param distType
+	 *            type of distance that is used for computing the costs of
+	 *            association
+	 * @return the best pairing between tracks. All the reference tracks are
+	 *         paired (potentially to a dummy track), while some candidate
+	 *         tracks may not be in the list
+	 * @throws Exception
+	 */
+	public List< TrackPair > pairTracks( final double maxDist, final DistanceTypes distType ) throws Exception
+	{
+		final List< TrackPairsCluster > clusters = buildClusters( maxDist, distType );
+		return solveClusters( clusters, TrackPairsCluster::solveSparse );
+	}
+
+	/**
+	 * Solve the clusters in parallel. The assignments are concatenated in the
+	 * order of the clusters, so that the result does not depend on the
+	 * scheduling.
+	 */
+	private static List< TrackPair > solveClusters( final List< TrackPairsCluster > clusters, final ClusterSolver solver ) throws Exception
+	{
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final List< TrackPair >[] assignments = new List[ clusters.size() ];
+		try
+		{
+			IntStream.range( 0, clusters.size() ).parallel().forEach( i -> {
+				try
 				{
-					final HungarianMatchingNew matcher = new HungarianMatchingNew( cluster.costs );
-					matching = matcher.compute();
+					assignments[ i ] = solver.solve( clusters.get( i ) );
 				}
-				else
+				catch ( final Exception e )
 				{
-					final HungarianMatching matcher = new HungarianMatching( cluster.costs );
-					matching = matcher.optimize();
+					throw new ClusterSolverException( e );
 				}
-				assignment.addAll( cluster.getAssignements( matching ) );
-			}
-			catch ( final Exception e )
-			{
-				throw e;
-			}
+			} );
 		}
+		catch ( final ClusterSolverException e )
+		{
+			throw ( Exception ) e.getCause();
+		}
+
+		final List< TrackPair > assignment = new ArrayList< TrackPair >();
+		for ( final List< TrackPair > clusterAssignment : assignments )
+			assignment.addAll( clusterAssignment );
 		return assignment;
 	}
 
-	public List< TrackPair > pairTracks( final double maxDist, final DistanceTypes distType ) throws Exception
+	/**
+	 * Build the feasible pairs and group them in independent clusters.
+	 */
+	private List< TrackPairsCluster > buildClusters( final double maxDist, final DistanceTypes distType ) throws Exception
 	{
-		return pairTracks( maxDist, distType, false );
+		// build the potential track pairs
+		// only candidate tracks that come within the gate can be feasible
+		// reference tracks are processed in parallel, and stored in order
+		this.feasiblePairs.clear();
+		final CandidateDetectionIndex index = new CandidateDetectionIndex( candidateTracks, maxDist );
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final List< TrackPair >[] pairs = new List[ refTracks.size() ];
+		IntStream.range( 0, refTracks.size() ).parallel().forEach( i -> {
+			final TrackSegment ts = refTracks.get( i );
+			pairs[ i ] = getFeasiblePairs( ts, index.getCandidates( ts ), distType, maxDist );
+		} );
+		this.feasiblePairs.addAll( Arrays.asList( pairs ) );
+
+		// cluster track pairs
+		return getTrackPairClusters();
 	}
 
 	/**
-	 * Build the clusters of TrackPair objects
+	 * Build the clusters of TrackPair objects. Clusters are the connected
+	 * components of the bipartite graph of feasible pairs, computed with a
+	 * union-find over the reference tracks: two reference tracks are in the
+	 * same cluster if they share a candidate track, directly or not.
 	 * 
 	 * @return list of TrackPairsCluster for the current set of TrackPairs
 	 */
 	private List< TrackPairsCluster > getTrackPairClusters() throws Exception
 	{
-		List< TrackPairsCluster > clusters = new ArrayList< TrackPairsCluster >();
-		for ( final List< TrackPair > trackPairsList : feasiblePairs )
+		final int nRefs = feasiblePairs.size();
+		final int[] parent = new int[ nRefs ];
+		for ( int r = 0; r < nRefs; r++ )
+			parent[ r ] = r;
+
+		// candidate tracks are compared by identity
+		final Map< TrackSegment, Integer > firstReference = new IdentityHashMap< TrackSegment, Integer >();
+		for ( int r = 0; r < nRefs; r++ )
 		{
-			if ( !trackPairsList.isEmpty() )
+			final List< TrackPair > trackPairsList = feasiblePairs.get( r );
+			if ( trackPairsList.isEmpty() )
+				throw new Exception( "There is a track cluster empty" );
+
+			for ( final TrackPair tp : trackPairsList )
 			{
-				/*
-				 * create a cluster with tracks corresponding to the current
-				 * reference track
-				 */
-				final TrackPairsCluster currentCluster = new TrackPairsCluster();
-				final TrackSegment refTrack = trackPairsList.get( 0 ).referenceTrack;
-				currentCluster.usedReferenceTracks.add( refTrack );
-				for ( final TrackPair tp : trackPairsList )
-					currentCluster.usedCandidateTracks.add( tp.candidateTrack );
-				currentCluster.trackPairs.addAll( trackPairsList );
-				// now try to merge this cluster with others
-				final ArrayList< TrackPairsCluster > clustersCopy = new ArrayList< TrackPairsCluster >();
-				clustersCopy.add( currentCluster );
-				for ( final TrackPairsCluster cluster : clusters )
-				{
-					/*
-					 * check if cluster contains tracks that are used by the
-					 * current cluster we do not check for the reference track
-					 * as it should not be used elsewhere
-					 */
-					boolean found = false;
-					for ( final TrackPair tp : trackPairsList )
-					{
-						found = cluster.usedCandidateTracks.contains( tp.candidateTrack );
-						if ( found )
-							break;
-					}
-					if ( found )
-					{
-						// merge clusters
-						currentCluster.mergeCluster( cluster );
-					}
-					else
-					{
-						// keep the investigate cluster intact
-						clustersCopy.add( cluster );
-					}
-				}
-				clusters = clustersCopy;
+				final Integer other = firstReference.putIfAbsent( tp.candidateTrack, Integer.valueOf( r ) );
+				if ( other != null )
+					union( parent, other.intValue(), r );
 			}
-			else
+		}
+
+		// gather the clusters, in the order of their first reference track
+		final List< TrackPairsCluster > clusters = new ArrayList< TrackPairsCluster >();
+		final TrackPairsCluster[] clusterOfRoot = new TrackPairsCluster[ nRefs ];
+		for ( int r = 0; r < nRefs; r++ )
+		{
+			final int root = find( parent, r );
+			TrackPairsCluster cluster = clusterOfRoot[ root ];
+			if ( cluster == null )
 			{
-				throw new Exception( "There is a track cluster empty" );
+				cluster = new TrackPairsCluster();
+				clusterOfRoot[ root ] = cluster;
+				clusters.add( cluster );
 			}
+			cluster.addPairs( feasiblePairs.get( r ) );
 		}
 		return clusters;
 	}
 
+	static int find( final int[] parent, final int i )
+	{
+		int root = i;
+		while ( parent[ root ] != root )
+			root = parent[ root ];
+		// path compression
+		int j = i;
+		while ( parent[ j ] != root )
+		{
+			final int next = parent[ j ];
+			parent[ j ] = root;
+			j = next;
+		}
+		return root;
+	}
+
+	static void union( final int[] parent, final int i, final int j )
+	{
+		final int ri = find( parent, i );
+		final int rj = find( parent, j );
+		// keep the smallest index as root
+		if ( ri < rj )
+			parent[ rj ] = ri;
+		else if ( rj < ri )
+			parent[ ri ] = rj;
+	}
+
 	/**
 	 * Compute the set of feasible pairs between a reference track and candidate
 	 * and dummy tracks. A pair is not feasible if it does not bring improvement
@@ -230,7 +294,7 @@ public class OneToOneMatcher
 		final TrackToTrackDistance distance = new TrackToTrackDistance( ts, dummyTrack, distType, maxDist );
 		final TrackPair pair = new TrackPair(
 				ts,
-				new TrackSegment(),
+				dummyTrack,
 				distance.distance,
 				distance.firstMatchingTime,
 				distance.lastMatchingTime );
@@ -238,28 +302,74 @@ public class OneToOneMatcher
 		return feasiblePairs;
 	}
 
+	/**
+	 * Solves the assignment of one cluster.
+	 */
+	@FunctionalInterface
+	private static interface ClusterSolver
+	{
+		public List< TrackPair > solve( TrackPairsCluster cluster ) throws Exception;
+	}
+
+	/**
+	 * Wraps the exceptions thrown while solving clusters in parallel.
+	 */
+	private static class ClusterSolverException extends RuntimeException
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		private ClusterSolverException( final Exception cause )
+		{
+			super( cause );
+		}
+	}
+
 	/**
 	 * cluster of TrackPair objects that share common tracks
 	 */
 	private class TrackPairsCluster
 	{
-		private final Set< TrackSegment > usedReferenceTracks = new HashSet< TrackSegment >();
+		private final Map< TrackSegment, Integer > referenceIndices = new IdentityHashMap< TrackSegment, Integer >();
+
+		private final Map< TrackSegment, Integer > candidateIndices = new IdentityHashMap< TrackSegment, Integer >();
 
-		private final Set< TrackSegment > usedCandidateTracks = new HashSet< TrackSegment >();
+		private final List< TrackSegment > referenceTrackList = new ArrayList< TrackSegment >();
+
+		private final List< TrackSegment > candidateTrackList = new ArrayList< TrackSegment >();
 
 		private final List< TrackPair > trackPairs = new ArrayList< TrackPair >();
 
 		private double[][] costs;
 
-		private List< TrackSegment > candidateTrackList;
-
-		private List< TrackSegment > referenceTrackList;
+		private TrackPair[][] pairMatrix;
 
-		public void mergeCluster( final TrackPairsCluster toMerge )
+		/**
+		 * Adds the feasible pairs of a reference track to this cluster, and
+		 * index their tracks.
+		 */
+		private void addPairs( final List< TrackPair > pairs )
 		{
-			this.usedCandidateTracks.addAll( toMerge.usedCandidateTracks );
-			this.usedReferenceTracks.addAll( toMerge.usedReferenceTracks );
-			this.trackPairs.addAll( toMerge.trackPairs );
+			for ( final TrackPair tp : pairs )
+			{
+				Integer referenceIndex = referenceIndices.get( tp.referenceTrack );
+				if ( referenceIndex == null )
+				{
+					referenceIndex = Integer.valueOf( referenceTrackList.size() );
+					referenceIndices.put( tp.referenceTrack, referenceIndex );
+					referenceTrackList.add( tp.referenceTrack );
+				}
+				Integer candidateIndex = candidateIndices.get( tp.candidateTrack );
+				if ( candidateIndex == null )
+				{
+					candidateIndex = Integer.valueOf( candidateTrackList.size() );
+					candidateIndices.put( tp.candidateTrack, candidateIndex );
+					candidateTrackList.add( tp.candidateTrack );
+				}
+				tp.referenceIndex = referenceIndex.intValue();
+				tp.candidateIndex = candidateIndex.intValue();
+				trackPairs.add( tp );
+			}
 		}
 
 		/**
@@ -272,11 +382,8 @@ public class OneToOneMatcher
 			for ( final TrackPair tp : this.trackPairs )
 				maxDist = Math.max( maxDist, tp.distance );
 
-			candidateTrackList = new ArrayList< TrackSegment >();
-			candidateTrackList.addAll( usedCandidateTracks );
-			referenceTrackList = new ArrayList< TrackSegment >();
-			referenceTrackList.addAll( usedReferenceTracks );
 			costs = new double[ referenceTrackList.size() ][ candidateTrackList.size() ];
+			pairMatrix = new TrackPair[ referenceTrackList.size() ][ candidateTrackList.size() ];
 
 			// fill costs
 			for ( int i = 0; i < costs.length; i++ )
@@ -285,10 +392,45 @@ public class OneToOneMatcher
 
 			for ( final TrackPair tp : this.trackPairs )
 			{
-				tp.referenceIndex = referenceTrackList.indexOf( tp.referenceTrack );
-				tp.candidateIndex = candidateTrackList.indexOf( tp.candidateTrack );
 				costs[ tp.referenceIndex ][ tp.candidateIndex ] = tp.distance;
+				pairMatrix[ tp.referenceIndex ][ tp.candidateIndex ] = tp;
+			}
+		}
+
+		/**
+		 * Solve the assignment of this cluster with the sparse solver, on the
+		 * feasible pairs only.
+		 * 
+		 * @return the list of TrackPair objects of the best assignment.
+		 */
+		private List< TrackPair > solveSparse() throws Exception
+		{
+			// sort the pairs by reference track
+			final int nRefs = referenceTrackList.size();
+			final int[] rowStart = new int[ nRefs + 1 ];
+			for ( final TrackPair tp : trackPairs )
+				rowStart[ tp.referenceIndex + 1 ]++;
+			for ( int r = 0; r < nRefs; r++ )
+				rowStart[ r + 1 ] += rowStart[ r ];
+
+			final int[] fill = Arrays.copyOf( rowStart, nRefs );
+			final int[] cols = new int[ trackPairs.size() ];
+			final double[] pairCosts = new double[ trackPairs.size() ];
+			final TrackPair[] sortedPairs = new TrackPair[ trackPairs.size() ];
+			for ( final TrackPair tp : trackPairs )
+			{
+				final int e = fill[ tp.referenceIndex ]++;
+				cols[ e ] = tp.candidateIndex;
+				pairCosts[ e ] = tp.distance;
+				sortedPairs[ e ] = tp;
 			}
+
+			final SparseLAPSolver solver = new SparseLAPSolver( nRefs, candidateTrackList.size(), rowStart, cols, pairCosts );
+			final int[] solution = solver.solve();
+			final List< TrackPair > assignment = new ArrayList< TrackPair >( nRefs );
+			for ( int r = 0; r < nRefs; r++ )
+				assignment.add( sortedPairs[ solution[ r ] ] );
+			return assignment;
 		}
 
 		/**
@@ -318,18 +460,10 @@ public class OneToOneMatcher
 				}
 				if ( !found )
 					throw new Exception( "No match found when building assignment" );
-				found = false;
-				for ( final TrackPair tp : trackPairs )
-				{
-					if ( tp.candidateIndex == candidateIndex && tp.referenceIndex == referenceIndex )
-					{
-						assignment.add( tp );
-						found = true;
-						break;
-					}
-				}
-				if ( !found )
+				final TrackPair tp = pairMatrix[ referenceIndex ][ candidateIndex ];
+				if ( tp == null )
 					throw new Exception( "Track pair not found when building assignment" );
+				assignment.add( tp );
 			}
 			return assignment;
 		}
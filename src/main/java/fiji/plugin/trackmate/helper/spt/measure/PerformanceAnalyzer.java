@@ -22,7 +22,9 @@
 package fiji.plugin.trackmate.helper.spt.measure;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Utilities to compute several tracking performance criteria for a given
@@ -43,6 +45,21 @@ public class PerformanceAnalyzer
 
 	private final List< TrackPair > trackPairs;
 
+	/**
+	 * Index of the first pair in which each candidate track appears.
+	 */
+	private final Map< TrackSegment, Integer > candidatePairIndex;
+
+	/**
+	 * Index of the first pair in which each reference track appears.
+	 */
+	private final Map< TrackSegment, Integer > referencePairIndex;
+
+	/**
+	 * Statistics on the track pairs, computed once for the last gate used.
+	 */
+	private PairStatistics statistics;
+
 	/**
 	 * Build the analyzer
 	 * 
@@ -65,6 +82,18 @@ public class PerformanceAnalyzer
 		this.candidateTracks.addAll( candidateTracks );
 		this.trackPairs = new ArrayList< TrackPair >();
 		this.trackPairs.addAll( trackPairs );
+
+		// Tracks are compared by identity.
+		this.candidatePairIndex = new IdentityHashMap<>();
+		this.referencePairIndex = new IdentityHashMap<>();
+		for ( int i = 0; i < this.trackPairs.size(); i++ )
+		{
+			final TrackPair tp = this.trackPairs.get( i );
+			if ( tp.candidateTrack != null )
+				candidatePairIndex.putIfAbsent( tp.candidateTrack, Integer.valueOf( i ) );
+			if ( tp.referenceTrack != null )
+				referencePairIndex.putIfAbsent( tp.referenceTrack, Integer.valueOf( i ) );
+		}
 	}
 
 	/**
@@ -111,17 +140,7 @@ public class PerformanceAnalyzer
 	 */
 	public double getPairedTracksDistance( final DistanceTypes distType, final double maxDist )
 	{
-		double distance = 0;
-		for ( final TrackPair tp : trackPairs )
-		{
-			final TrackToTrackDistance d = new TrackToTrackDistance(
-					tp.referenceTrack,
-					tp.candidateTrack,
-					distType,
-					maxDist );
-			distance += d.distance;
-		}
-		return distance;
+		return getStatistics( maxDist ).pairedDistance( distType );
 	}
 
 	/**
@@ -129,22 +148,13 @@ public class PerformanceAnalyzer
 	 */
 	public double getPairedTracksNormalizedDistance( final DistanceTypes distType, final double maxDist )
 	{
-		double distance = 0;
-		for ( final TrackPair tp : trackPairs )
-		{
-			final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, distType, maxDist );
-			distance += d.distance;
-		}
+		final PairStatistics stats = getStatistics( maxDist );
+		final double distance = stats.pairedDistance( distType );
 		/*
 		 * divide now by the maximum distance that corresponds to reference
 		 * tracks with no associated tracks
 		 */
-		double normalization = 0;
-		for ( final TrackSegment ts : referenceTracks )
-		{
-			final TrackToTrackDistance d = new TrackToTrackDistance( ts, null, distType, maxDist );
-			normalization += d.distance;
-		}
+		final double normalization = stats.referenceBound( distType );
 		return 1d - distance / normalization;
 	}
 
@@ -154,38 +164,12 @@ public class PerformanceAnalyzer
 	 */
 	public double getFullTrackingScore( final DistanceTypes distType, final double maxDist )
 	{
-		double distance = 0;
-		for ( final TrackPair tp : trackPairs )
-		{
-			final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, distType, maxDist );
-			distance += d.distance;
-		}
+		final PairStatistics stats = getStatistics( maxDist );
+		final double distance = stats.pairedDistance( distType );
 		// compute the bound on the distance
-		double bound = 0;
-		for ( final TrackSegment ts : referenceTracks )
-		{
-			final TrackToTrackDistance d = new TrackToTrackDistance( ts, null, distType, maxDist );
-			bound += d.distance;
-		}
+		final double bound = stats.referenceBound( distType );
 		// compute the penalty for wrong tracks
-		double penalty = 0;
-		for ( final TrackSegment ts : candidateTracks )
-		{
-			boolean found = false;
-			for ( final TrackPair tp : trackPairs )
-			{
-				if ( tp.candidateTrack == ts )
-				{
-					found = true;
-					break;
-				}
-			}
-			if ( !found )
-			{
-				final TrackToTrackDistance d = new TrackToTrackDistance( ts, null, distType, maxDist );
-				penalty += d.distance;
-			}
-		}
+		final double penalty = stats.spuriousPenalty( distType );
 		return ( bound - distance ) / ( bound + penalty );
 	}
 
@@ -196,19 +180,8 @@ public class PerformanceAnalyzer
 	{
 		int numSpuriousTracks = 0;
 		for ( final TrackSegment ts : candidateTracks )
-		{
-			boolean found = false;
-			for ( final TrackPair tp : trackPairs )
-			{
-				if ( tp.candidateTrack == ts )
-				{
-					found = true;
-					break;
-				}
-			}
-			if ( !found )
+			if ( !candidatePairIndex.containsKey( ts ) )
 				numSpuriousTracks++;
-		}
 		return numSpuriousTracks;
 	}
 
@@ -222,14 +195,12 @@ public class PerformanceAnalyzer
 		for ( final TrackSegment ts : referenceTracks )
 		{
 			boolean found = false;
-			for ( final TrackPair tp : trackPairs )
+			final Integer index = referencePairIndex.get( ts );
+			if ( index != null )
 			{
-				if ( tp.referenceTrack == ts )
-				{
-					if ( tp.candidateTrack != null && !tp.candidateTrack.getDetectionList().isEmpty() )
-						found = true;
-					break;
-				}
+				final TrackPair tp = trackPairs.get( index.intValue() );
+				if ( tp.candidateTrack != null && !tp.candidateTrack.getDetectionList().isEmpty() )
+					found = true;
 			}
 			if ( !found )
 				numMissedTrack++;
@@ -244,19 +215,8 @@ public class PerformanceAnalyzer
 	{
 		int numCorrectTracks = 0;
 		for ( final TrackSegment ts : candidateTracks )
-		{
-			boolean found = false;
-			for ( final TrackPair tp : trackPairs )
-			{
-				if ( tp.candidateTrack == ts )
-				{
-					found = true;
-					break;
-				}
-			}
-			if ( found )
+			if ( candidatePairIndex.containsKey( ts ) )
 				numCorrectTracks++;
-		}
 		return numCorrectTracks;
 	}
 
@@ -265,12 +225,10 @@ public class PerformanceAnalyzer
 	 */
 	public int getNumPairedDetections( final double maxDist )
 	{
+		final PairStatistics stats = getStatistics( maxDist );
 		int numRecoveredDetections = 0;
-		for ( final TrackPair tp : trackPairs )
-		{
-			final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, DistanceTypes.DISTANCE_MATCHING, maxDist );
-			numRecoveredDetections += d.numMatchingDetections;
-		}
+		for ( int i = 0; i < stats.numMatchingDetections.length; i++ )
+			numRecoveredDetections += stats.numMatchingDetections[ i ];
 		return numRecoveredDetections;
 	}
 
@@ -280,12 +238,10 @@ public class PerformanceAnalyzer
 	 */
 	public int getNumMissedDetections( final double maxDist )
 	{
+		final PairStatistics stats = getStatistics( maxDist );
 		int numMissedDetections = 0;
-		for ( final TrackPair tp : trackPairs )
-		{
-			final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, DistanceTypes.DISTANCE_MATCHING, maxDist );
-			numMissedDetections += d.numNonMatchedDetections;
-		}
+		for ( int i = 0; i < stats.numNonMatchedDetections.length; i++ )
+			numMissedDetections += stats.numNonMatchedDetections[ i ];
 		return numMissedDetections;
 	}
 
@@ -295,21 +251,16 @@ public class PerformanceAnalyzer
 	 */
 	public int getNumWrongDetections( final double maxDist )
 	{
+		final PairStatistics stats = getStatistics( maxDist );
 		int numSpuriousDetections = 0;
 		for ( final TrackSegment ts : candidateTracks )
 		{
-			boolean found = false;
-			for ( final TrackPair tp : trackPairs )
+			final Integer index = candidatePairIndex.get( ts );
+			if ( index != null )
 			{
-				if ( tp.candidateTrack == ts )
-				{
-					final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, DistanceTypes.DISTANCE_MATCHING, maxDist );
-					numSpuriousDetections += d.numWrongDetections;
-					found = true;
-					break;
-				}
+				numSpuriousDetections += stats.numWrongDetections[ index.intValue() ];
 			}
-			if ( !found )
+			else
 			{
 				for ( final Detection d : ts.getDetectionList() )
 					if ( d.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION )
@@ -332,23 +283,23 @@ public class PerformanceAnalyzer
 
 	public double[] getDistanceDetectionData( final double maxDist )
 	{
+		final PairStatistics stats = getStatistics( maxDist );
 		double sumDistance = 0;
 		double sumSquareDistance = 0;
 		double minDistance = Double.MAX_VALUE;
 		double maxDistance = 0;
 		int numDetections = 0;
-		for ( final TrackPair tp : trackPairs )
+		for ( int i = 0; i < trackPairs.size(); i++ )
 		{
-			if ( tp.candidateTrack != null && !tp.candidateTrack.getDetectionList().isEmpty() )
+			if ( stats.hasCandidate[ i ] )
 			{
-				final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, DistanceTypes.DISTANCE_MATCHING, maxDist );
-				sumDistance += d.sumDetectionDistance;
-				sumSquareDistance += d.sumSquareDetectionDistance;
-				if ( d.minDetectionDistance < minDistance )
-					minDistance = d.minDetectionDistance;
-				if ( d.maxDetectionDistance > maxDistance )
-					maxDistance = d.maxDetectionDistance;
-				numDetections += d.numMatchingDetections;
+				sumDistance += stats.sumDetectionDistance[ i ];
+				sumSquareDistance += stats.sumSquareDetectionDistance[ i ];
+				if ( stats.minDetectionDistance[ i ] < minDistance )
+					minDistance = stats.minDetectionDistance[ i ];
+				if ( stats.maxDetectionDistance[ i ] > maxDistance )
+					maxDistance = stats.maxDetectionDistance[ i ];
+				numDetections += stats.numMatchingDetections[ i ];
 			}
 		}
 		if ( numDetections == 0 )
@@ -361,6 +312,40 @@ public class PerformanceAnalyzer
 		}
 	}
 
+	/**
+	 * Returns the ISBI SPT scores: alpha, beta, the detections Jaccard
+	 * similarity (JSC), the tracks Jaccard similarity (JSC theta) and the RMSE
+	 * of matched detections.
+	 * <p>
+	 * The track pairs are walked through only once, and the statistics are
+	 * reused by the other getters called with the same gate.
+	 * 
+	 * @param distType
+	 *            type of distance that is used for alpha and beta.
+	 * @param maxDist
+	 *            the gate (maximum Euclidian distance) between detections.
+	 * @return a new <code>double[]</code> array with alpha, beta, JSC,
+	 *         JSCtheta and RMSE.
+	 */
+	public double[] getScores( final DistanceTypes distType, final double maxDist )
+	{
+		final double alpha = getPairedTracksNormalizedDistance( distType, maxDist );
+		final double beta = getFullTrackingScore( distType, maxDist );
+		final double rmse = getDistanceDetectionData( maxDist )[ 0 ];
+
+		final int numSpuriousTracks = getNumSpuriousTracks();
+		final int numMissedTracks = getNumMissedTracks();
+		final int numCorrectTracks = getNumPairedTracks();
+		final int numRecoveredDetections = getNumPairedDetections( maxDist );
+		final int numMissedDetections = getNumMissedDetections( maxDist );
+		final int numWrongDetections = getNumWrongDetections( maxDist );
+
+		final double detectionsSimilarity = numRecoveredDetections / ( ( double ) numRecoveredDetections + ( double ) numMissedDetections + numWrongDetections );
+		final double tracksSimilarity = numCorrectTracks / ( ( double ) numCorrectTracks + ( double ) numMissedTracks + numSpuriousTracks );
+
+		return new double[] { alpha, beta, detectionsSimilarity, tracksSimilarity, rmse };
+	}
+
 	public List< Double > getAllPairsDetectionEuclidianDistances()
 	{
 		final ArrayList< Double > distanceList = new ArrayList< Double >();
@@ -445,44 +430,123 @@ public class PerformanceAnalyzer
 
 	protected double[] getMSDs( final List< TrackSegment > tracks )
 	{
-		int maxTGap = 0;
-		for ( final TrackSegment ts : tracks )
-		{
-			final int trackLength = ( ts.getLastDetection().getT() - ts.getFirstDetection().getT() ) + 1;
-			if ( trackLength - 1 > maxTGap )
-				maxTGap = trackLength - 1;
-		}
+		return TrackStatistics.msds( SPTTrackStore.fromTrackSegments( tracks ) );
+	}
+
+	/**
+	 * Returns the statistics on the track pairs for the specified gate,
+	 * computing them if they are not cached already.
+	 */
+	private PairStatistics getStatistics( final double maxDist )
+	{
+		if ( statistics == null || Double.compare( statistics.maxDist, maxDist ) != 0 )
+			statistics = new PairStatistics( maxDist );
+		return statistics;
+	}
+
+	/**
+	 * The results of the track to track distances for all the pairs, stored
+	 * in primitive arrays indexed by pair.
+	 */
+	private final class PairStatistics
+	{
+
+		private final double maxDist;
+
+		private final boolean[] hasCandidate;
+
+		private final double[] euclidianDistance;
+
+		private final double[] matchingDistance;
+
+		private final int[] numMatchingDetections;
+
+		private final int[] numNonMatchedDetections;
+
+		private final int[] numWrongDetections;
+
+		private final double[] sumDetectionDistance;
+
+		private final double[] sumSquareDetectionDistance;
+
+		private final double[] minDetectionDistance;
+
+		private final double[] maxDetectionDistance;
+
+		private double referenceEuclidianBound = 0;
 
-		final double[] msds = new double[ maxTGap ];
-		final int[] numJumps = new int[ maxTGap ];
+		private double referenceMatchingBound = 0;
 
-		for ( final TrackSegment ts : tracks )
+		private double spuriousEuclidianPenalty = 0;
+
+		private double spuriousMatchingPenalty = 0;
+
+		private PairStatistics( final double maxDist )
 		{
-			for ( int tGap = 1; tGap <= maxTGap; tGap++ )
+			this.maxDist = maxDist;
+			final int n = trackPairs.size();
+			hasCandidate = new boolean[ n ];
+			euclidianDistance = new double[ n ];
+			matchingDistance = new double[ n ];
+			numMatchingDetections = new int[ n ];
+			numNonMatchedDetections = new int[ n ];
+			numWrongDetections = new int[ n ];
+			sumDetectionDistance = new double[ n ];
+			sumSquareDetectionDistance = new double[ n ];
+			minDetectionDistance = new double[ n ];
+			maxDetectionDistance = new double[ n ];
+
+			for ( int i = 0; i < n; i++ )
+			{
+				final TrackPair tp = trackPairs.get( i );
+				final TrackToTrackDistance d = new TrackToTrackDistance( tp.referenceTrack, tp.candidateTrack, DistanceTypes.DISTANCE_MATCHING, maxDist );
+				hasCandidate[ i ] = tp.candidateTrack != null && !tp.candidateTrack.getDetectionList().isEmpty();
+				euclidianDistance[ i ] = d.euclidianDistance;
+				matchingDistance[ i ] = d.matchingDistance;
+				numMatchingDetections[ i ] = d.numMatchingDetections;
+				numNonMatchedDetections[ i ] = d.numNonMatchedDetections;
+				numWrongDetections[ i ] = d.numWrongDetections;
+				sumDetectionDistance[ i ] = d.sumDetectionDistance;
+				sumSquareDetectionDistance[ i ] = d.sumSquareDetectionDistance;
+				minDetectionDistance[ i ] = d.minDetectionDistance;
+				maxDetectionDistance[ i ] = d.maxDetectionDistance;
+			}
+
+			for ( final TrackSegment ts : referenceTracks )
 			{
-				final int firstT = ts.getFirstDetection().getT();
-				final int lastT = ts.getLastDetection().getT();
+				final TrackToTrackDistance d = new TrackToTrackDistance( ts, null, DistanceTypes.DISTANCE_MATCHING, maxDist );
+				referenceEuclidianBound += d.euclidianDistance;
+				referenceMatchingBound += d.matchingDistance;
+			}
 
-				for ( int t = firstT; t <= lastT - tGap; t++ )
+			for ( final TrackSegment ts : candidateTracks )
+			{
+				if ( !candidatePairIndex.containsKey( ts ) )
 				{
-					final Detection d1 = ts.getDetectionAtTime( t );
-					if ( d1 != null )
-					{
-						final Detection d2 = ts.getDetectionAtTime( t + tGap );
-						if ( d2 != null )
-						{
-							msds[ tGap - 1 ] += ( d1.getX() - d2.getX() ) * ( d1.getX() - d2.getX() ) + ( d1.getY() - d2.getY() ) * ( d1.getY() - d2.getY() ) + ( d1.getZ() - d2.getZ() ) * ( d1.getZ() - d2.getZ() );
-							numJumps[ tGap - 1 ] += 1;
-						}
-					}
+					final TrackToTrackDistance d = new TrackToTrackDistance( ts, null, DistanceTypes.DISTANCE_MATCHING, maxDist );
+					spuriousEuclidianPenalty += d.euclidianDistance;
+					spuriousMatchingPenalty += d.matchingDistance;
 				}
 			}
 		}
-		for ( int k = 0; k < msds.length; k++ )
+
+		private double pairedDistance( final DistanceTypes distType )
+		{
+			final double[] distances = ( distType == DistanceTypes.DISTANCE_EUCLIDIAN ) ? euclidianDistance : matchingDistance;
+			double distance = 0;
+			for ( int i = 0; i < distances.length; i++ )
+				distance += distances[ i ];
+			return distance;
+		}
+
+		private double referenceBound( final DistanceTypes distType )
+		{
+			return ( distType == DistanceTypes.DISTANCE_EUCLIDIAN ) ? referenceEuclidianBound : referenceMatchingBound;
+		}
+
+		private double spuriousPenalty( final DistanceTypes distType )
 		{
-			if ( numJumps[ k ] > 0 )
-				msds[ k ] /= numJumps[ k ];
+			return ( distType == DistanceTypes.DISTANCE_EUCLIDIAN ) ? spuriousEuclidianPenalty : spuriousMatchingPenalty;
 		}
-		return msds;
 	}
 }
@@ -0,0 +1,837 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Compact, column-oriented storage of a set of SPT tracks.
+ * <p>
+ * Instead of one {@link Detection} object per detection and one
+ * {@link TrackSegment} per track, the detections of all the tracks are stored
+ * in primitive coordinate arrays, track after track. Each track covers a
+ * contiguous range of detection indices, and has one detection per frame from
+ * its first frame to its last frame. Gaps are filled with virtual detections,
+ * flagged in a packed bitset. This is the layout the ISBI SPT scoring code
+ * expects, so that the detection of a track at a given frame is found in
+ * constant time.
+ * <p>
+ * Instances are immutable and are created with a {@link Builder}.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class SPTTrackStore
+{
+
+	private final int nTracks;
+
+	/**
+	 * Index of the first detection of each track. Has
+	 * <code>nTracks + 1</code> elements, the last one being the total number
+	 * of detections.
+	 */
+	private final int[] offsets;
+
+	private final int[] firstFrames;
+
+	/**
+	 * Id of each track in the data it was built from. -1 if unknown.
+	 */
+	private final int[] sourceIds;
+
+	private final double[] x;
+
+	private final double[] y;
+
+	private final double[] z;
+
+	private final BitSet virtual;
+
+	/**
+	 * Id of each detection in the data it was built from, -1 for virtual
+	 * detections. <code>null</code> if unknown.
+	 */
+	private final int[] detectionIds;
+
+	private SPTTrackStore( final int nTracks, final int[] offsets, final int[] firstFrames, final int[] sourceIds, final double[] x, final double[] y, final double[] z, final BitSet virtual, final int[] detectionIds )
+	{
+		this.nTracks = nTracks;
+		this.offsets = offsets;
+		this.firstFrames = firstFrames;
+		this.sourceIds = sourceIds;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.virtual = virtual;
+		this.detectionIds = detectionIds;
+	}
+
+	/**
+	 * Returns the number of tracks in this store.
+	 * 
+	 * @return the number of tracks.
+	 */
+	public int numTracks()
+	{
+		return nTracks;
+	}
+
+	/**
+	 * Returns the total number of detections in this store, including the
+	 * virtual ones.
+	 * 
+	 * @return the number of detections.
+	 */
+	public int numDetections()
+	{
+		return offsets[ nTracks ];
+	}
+
+	/**
+	 * Returns the index of the first detection of the specified track.
+	 * 
+	 * @param track
+	 *            the track index.
+	 * @return the detection index.
+	 */
+	public int start( final int track )
+	{
+		return offsets[ track ];
+	}
+
+	/**
+	 * Returns the index after the last detection of the specified track.
+	 * 
+	 * @param track
+	 *            the track index.
+	 * @return the detection index, exclusive.
+	 */
+	public int end( final int track )
+	{
+		return offsets[ track + 1 ];
+	}
+
+	/**
+	 * Returns the number of detections in the specified track, which is also
+	 * the number of frames it spans.
+	 * 
+	 * @param track
+	 *            the track index.
+	 * @return the track length.
+	 */
+	public int length( final int track )
+	{
+		return offsets[ track + 1 ] - offsets[ track ];
+	}
+
+	public int firstFrame( final int track )
+	{
+		return firstFrames[ track ];
+	}
+
+	public int lastFrame( final int track )
+	{
+		return firstFrames[ track ] + length( track ) - 1;
+	}
+
+	/**
+	 * Returns the id of the specified track in the data this store was built
+	 * from, for instance the TrackMate track ID.
+	 * 
+	 * @param track
+	 *            the track index.
+	 * @return the source id, or -1 if it is not known.
+	 */
+	public int sourceId( final int track )
+	{
+		return sourceIds[ track ];
+	}
+
+	/**
+	 * Returns the index of the detection of the specified track at the
+	 * specified frame.
+	 * 
+	 * @param track
+	 *            the track index.
+	 * @param t
+	 *            the frame.
+	 * @return the detection index, or -1 if the track does not span this
+	 *         frame.
+	 */
+	public int detectionAtFrame( final int track, final int t )
+	{
+		final long offset = ( long ) t - firstFrames[ track ];
+		if ( offset < 0 || offset >= length( track ) )
+			return -1;
+		return offsets[ track ] + ( int ) offset;
+	}
+
+	/**
+	 * Returns the id of the specified detection in the data this store was
+	 * built from, for instance the TrackMate spot ID. Detection ids are not
+	 * written by {@link #write(ByteBuffer)}.
+	 * 
+	 * @param detection
+	 *            the detection index.
+	 * @return the detection id, or -1 if it is not known or if the detection
+	 *         is virtual.
+	 */
+	public int detectionId( final int detection )
+	{
+		return ( detectionIds == null ) ? -1 : detectionIds[ detection ];
+	}
+
+	public int frame( final int track, final int detection )
+	{
+		return firstFrames[ track ] + detection - offsets[ track ];
+	}
+
+	public double x( final int detection )
+	{
+		return x[ detection ];
+	}
+
+	public double y( final int detection )
+	{
+		return y[ detection ];
+	}
+
+	public double z( final int detection )
+	{
+		return z[ detection ];
+	}
+
+	public boolean isVirtual( final int detection )
+	{
+		return virtual.get( detection );
+	}
+
+	/**
+	 * Computes the Euclidian distances between consecutive detections of this
+	 * store and consecutive detections of another store, within a gate.
+	 * <p>
+	 * Distances strictly smaller than the gate are exact, bitwise equal to
+	 * the ones computed one detection at a time. The square root is skipped
+	 * for the detections that are farther than the gate, whose distance is
+	 * replaced by {@link Double#POSITIVE_INFINITY}, so callers must test the
+	 * distances against the gate themselves. The loop works on the coordinate
+	 * arrays directly and does not look at virtual detections.
+	 * 
+	 * @param from
+	 *            the index of the first detection in this store.
+	 * @param other
+	 *            the other store.
+	 * @param otherFrom
+	 *            the index of the first detection in the other store.
+	 * @param n
+	 *            the number of detections.
+	 * @param gate
+	 *            the gate.
+	 * @param out
+	 *            the array to write the distances to, from index 0.
+	 */
+	void distances( final int from, final SPTTrackStore other, final int otherFrom, final int n, final double gate, final double[] out )
+	{
+		/*
+		 * sqrt(s) < gate implies s < gate^2 in exact arithmetic, which is
+		 * smaller than the double after the rounded gate^2.
+		 */
+		final double gate2 = Math.nextUp( gate * gate );
+		final double[] x1 = x;
+		final double[] y1 = y;
+		final double[] z1 = z;
+		final double[] x2 = other.x;
+		final double[] y2 = other.y;
+		final double[] z2 = other.z;
+		for ( int k = 0; k < n; k++ )
+		{
+			final double dx = x1[ from + k ] - x2[ otherFrom + k ];
+			final double dy = y1[ from + k ] - y2[ otherFrom + k ];
+			final double dz = z1[ from + k ] - z2[ otherFrom + k ];
+			final double s = dx * dx + dy * dy + dz * dz;
+			out[ k ] = ( s < gate2 ) ? Math.sqrt( s ) : Double.POSITIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Converts this store to a list of {@link TrackSegment}s.
+	 * 
+	 * @return a new list of tracks.
+	 */
+	public List< TrackSegment > toTrackSegments()
+	{
+		final List< TrackSegment > tracks = new ArrayList< TrackSegment >( nTracks );
+		for ( int track = 0; track < nTracks; track++ )
+		{
+			final ArrayList< Detection > detections = new ArrayList< Detection >( length( track ) );
+			for ( int d = start( track ); d < end( track ); d++ )
+			{
+				final Detection detection = new Detection( x[ d ], y[ d ], z[ d ], frame( track, d ) );
+				detection.setDetectionType( virtual.get( d )
+						? Detection.DETECTIONTYPE_VIRTUAL_DETECTION
+						: Detection.DETECTIONTYPE_REAL_DETECTION );
+				detections.add( detection );
+			}
+			tracks.add( new TrackSegment( detections ) );
+		}
+		return tracks;
+	}
+
+	/**
+	 * Creates a store from a list of {@link TrackSegment}s. Tracks are
+	 * processed like in {@link Builder#endTrack(int)}.
+	 * 
+	 * @param tracks
+	 *            the tracks.
+	 * @return a new store.
+	 */
+	public static SPTTrackStore fromTrackSegments( final List< TrackSegment > tracks )
+	{
+		int nDetections = 0;
+		for ( final TrackSegment track : tracks )
+			nDetections += track.getDetectionList().size();
+
+		final Builder builder = new Builder( tracks.size(), nDetections );
+		for ( final TrackSegment track : tracks )
+		{
+			for ( final Detection d : track.getDetectionList() )
+				builder.addDetection( d.getT(), d.getX(), d.getY(), d.getZ(),
+						d.getDetectionType() == Detection.DETECTIONTYPE_VIRTUAL_DETECTION );
+			builder.endTrack( -1 );
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Concatenates several stores in a new store. The tracks of each store are
+	 * appended in order, keeping their source ids.
+	 * 
+	 * @param stores
+	 *            the stores to concatenate.
+	 * @return a new store.
+	 */
+	public static SPTTrackStore concatenate( final SPTTrackStore... stores )
+	{
+		int nTracks = 0;
+		int nDetections = 0;
+		for ( final SPTTrackStore store : stores )
+		{
+			nTracks += store.nTracks;
+			nDetections += store.numDetections();
+		}
+
+		final int[] offsets = new int[ nTracks + 1 ];
+		final int[] firstFrames = new int[ nTracks ];
+		final int[] sourceIds = new int[ nTracks ];
+		final double[] x = new double[ nDetections ];
+		final double[] y = new double[ nDetections ];
+		final double[] z = new double[ nDetections ];
+		final BitSet virtual = new BitSet( nDetections );
+		int[] detectionIds = null;
+		for ( final SPTTrackStore store : stores )
+		{
+			if ( store.detectionIds != null )
+			{
+				detectionIds = new int[ nDetections ];
+				Arrays.fill( detectionIds, -1 );
+				break;
+			}
+		}
+		int track = 0;
+		int detection = 0;
+		for ( final SPTTrackStore store : stores )
+		{
+			for ( int i = 0; i < store.nTracks; i++ )
+				offsets[ track + i ] = detection + store.offsets[ i ];
+			System.arraycopy( store.firstFrames, 0, firstFrames, track, store.nTracks );
+			System.arraycopy( store.sourceIds, 0, sourceIds, track, store.nTracks );
+			final int n = store.numDetections();
+			System.arraycopy( store.x, 0, x, detection, n );
+			System.arraycopy( store.y, 0, y, detection, n );
+			System.arraycopy( store.z, 0, z, detection, n );
+			for ( int d = store.virtual.nextSetBit( 0 ); d >= 0; d = store.virtual.nextSetBit( d + 1 ) )
+				virtual.set( detection + d );
+			if ( store.detectionIds != null )
+				System.arraycopy( store.detectionIds, 0, detectionIds, detection, n );
+			track += store.nTracks;
+			detection += n;
+		}
+		offsets[ nTracks ] = nDetections;
+		return new SPTTrackStore( nTracks, offsets, firstFrames, sourceIds, x, y, z, virtual, detectionIds );
+	}
+
+	/**
+	 * Returns the number of bytes needed to write this store with
+	 * {@link #write(ByteBuffer)}.
+	 * 
+	 * @return the size in bytes.
+	 */
+	public long serializedSize()
+	{
+		final long nDetections = numDetections();
+		return 2 * Integer.BYTES
+				+ ( long ) Integer.BYTES * ( 3L * nTracks + 1 )
+				+ 3L * Double.BYTES * nDetections
+				+ ( long ) Long.BYTES * ( ( nDetections + 63 ) / 64 );
+	}
+
+	/**
+	 * Writes this store to a buffer, in a compact binary form that can be
+	 * read back with {@link #read(ByteBuffer)}. The primitive arrays are
+	 * written in bulk, with the byte order of the buffer.
+	 * 
+	 * @param buffer
+	 *            the buffer to write to. Must have at least
+	 *            {@link #serializedSize()} bytes remaining.
+	 */
+	public void write( final ByteBuffer buffer )
+	{
+		final int nDetections = numDetections();
+		buffer.putInt( nTracks );
+		buffer.putInt( nDetections );
+		putInts( buffer, offsets );
+		putInts( buffer, firstFrames );
+		putInts( buffer, sourceIds );
+		putDoubles( buffer, x );
+		putDoubles( buffer, y );
+		putDoubles( buffer, z );
+		final long[] bits = Arrays.copyOf( virtual.toLongArray(), ( nDetections + 63 ) / 64 );
+		buffer.asLongBuffer().put( bits );
+		buffer.position( buffer.position() + bits.length * Long.BYTES );
+	}
+
+	/**
+	 * Reads a store written with {@link #write(ByteBuffer)}, with the byte
+	 * order of the buffer.
+	 * 
+	 * @param buffer
+	 *            the buffer to read from.
+	 * @return a new store.
+	 * @throws IllegalArgumentException
+	 *             if the buffer does not contain a valid store.
+	 */
+	public static SPTTrackStore read( final ByteBuffer buffer ) throws IllegalArgumentException
+	{
+		final int nTracks = buffer.getInt();
+		final int nDetections = buffer.getInt();
+		if ( nTracks < 0 || nDetections < 0 )
+			throw new IllegalArgumentException( "invalid store sizes: " + nTracks + " tracks, " + nDetections + " detections." );
+		final long size = ( long ) Integer.BYTES * ( 3L * nTracks + 1 )
+				+ 3L * Double.BYTES * nDetections
+				+ ( long ) Long.BYTES * ( ( nDetections + 63 ) / 64 );
+		if ( size > buffer.remaining() )
+			throw new IllegalArgumentException( "truncated store: expected " + size + " bytes, found " + buffer.remaining() + "." );
+
+		final int[] offsets = getInts( buffer, nTracks + 1 );
+		final int[] firstFrames = getInts( buffer, nTracks );
+		final int[] sourceIds = getInts( buffer, nTracks );
+		final double[] x = getDoubles( buffer, nDetections );
+		final double[] y = getDoubles( buffer, nDetections );
+		final double[] z = getDoubles( buffer, nDetections );
+		final long[] bits = new long[ ( nDetections + 63 ) / 64 ];
+		buffer.asLongBuffer().get( bits );
+		buffer.position( buffer.position() + bits.length * Long.BYTES );
+
+		if ( offsets[ 0 ] != 0 || offsets[ nTracks ] != nDetections )
+			throw new IllegalArgumentException( "invalid track offsets." );
+		for ( int track = 0; track < nTracks; track++ )
+			if ( offsets[ track + 1 ] <= offsets[ track ] || firstFrames[ track ] < 0 )
+				throw new IllegalArgumentException( "invalid track " + track + "." );
+
+		return new SPTTrackStore( nTracks, offsets, firstFrames, sourceIds, x, y, z, BitSet.valueOf( bits ), null );
+	}
+
+	private static void putInts( final ByteBuffer buffer, final int[] values )
+	{
+		buffer.asIntBuffer().put( values );
+		buffer.position( buffer.position() + values.length * Integer.BYTES );
+	}
+
+	private static void putDoubles( final ByteBuffer buffer, final double[] values )
+	{
+		buffer.asDoubleBuffer().put( values );
+		buffer.position( buffer.position() + values.length * Double.BYTES );
+	}
+
+	private static int[] getInts( final ByteBuffer buffer, final int n )
+	{
+		final int[] values = new int[ n ];
+		buffer.asIntBuffer().get( values );
+		buffer.position( buffer.position() + n * Integer.BYTES );
+		return values;
+	}
+
+	private static double[] getDoubles( final ByteBuffer buffer, final int n )
+	{
+		final double[] values = new double[ n ];
+		buffer.asDoubleBuffer().get( values );
+		buffer.position( buffer.position() + n * Double.BYTES );
+		return values;
+	}
+
+	/**
+	 * Builds a {@link SPTTrackStore}, one track at a time.
+	 * <p>
+	 * Detections of a track are added with
+	 * {@link #addDetection(int, double, double, double)} in any order, and the
+	 * track is completed with {@link #endTrack(int)}, which processes it the
+	 * same way the ISBI SPT importer does:
+	 * <ul>
+	 * <li>detections are sorted by frame;</li>
+	 * <li>gaps are filled with virtual detections, linearly interpolated
+	 * between the detections before and after the gap;</li>
+	 * <li>detections with NaN coordinates are trimmed from the beginning and
+	 * the end of the track;</li>
+	 * <li>tracks that are empty, or still contain detections with NaN
+	 * coordinates, are discarded.</li>
+	 * </ul>
+	 */
+	public static class Builder
+	{
+
+		private int nTracks = 0;
+
+		private int[] offsets;
+
+		private int[] firstFrames;
+
+		private int[] sourceIds;
+
+		private int size = 0;
+
+		private double[] x;
+
+		private double[] y;
+
+		private double[] z;
+
+		private final BitSet virtual = new BitSet();
+
+		private int[] ids;
+
+		private boolean hasIds = false;
+
+		/*
+		 * Detections of the current track, before sorting.
+		 */
+
+		private int pendingSize = 0;
+
+		private int[] pendingT = new int[ 16 ];
+
+		private double[] pendingX = new double[ 16 ];
+
+		private double[] pendingY = new double[ 16 ];
+
+		private double[] pendingZ = new double[ 16 ];
+
+		private boolean[] pendingVirtual = new boolean[ 16 ];
+
+		private int[] pendingIds = new int[ 16 ];
+
+		public Builder()
+		{
+			this( 16, 256 );
+		}
+
+		/**
+		 * Creates a builder with the specified initial capacities.
+		 * 
+		 * @param nTracks
+		 *            the expected number of tracks.
+		 * @param nDetections
+		 *            the expected number of detections.
+		 */
+		public Builder( final int nTracks, final int nDetections )
+		{
+			this.offsets = new int[ Math.max( 1, nTracks ) + 1 ];
+			this.firstFrames = new int[ Math.max( 1, nTracks ) ];
+			this.sourceIds = new int[ Math.max( 1, nTracks ) ];
+			this.x = new double[ Math.max( 16, nDetections ) ];
+			this.y = new double[ x.length ];
+			this.z = new double[ x.length ];
+			this.ids = new int[ x.length ];
+		}
+
+		/**
+		 * Adds a real detection to the current track.
+		 * 
+		 * @param t
+		 *            the frame of the detection.
+		 * @param xd
+		 *            the X position.
+		 * @param yd
+		 *            the Y position.
+		 * @param zd
+		 *            the Z position.
+		 * @return this builder.
+		 */
+		public Builder addDetection( final int t, final double xd, final double yd, final double zd )
+		{
+			return addDetection( t, xd, yd, zd, false );
+		}
+
+		/**
+		 * Adds a detection to the current track.
+		 * 
+		 * @param t
+		 *            the frame of the detection.
+		 * @param xd
+		 *            the X position.
+		 * @param yd
+		 *            the Y position.
+		 * @param zd
+		 *            the Z position.
+		 * @param isVirtual
+		 *            whether the detection is virtual.
+		 * @return this builder.
+		 */
+		public Builder addDetection( final int t, final double xd, final double yd, final double zd, final boolean isVirtual )
+		{
+			return addDetection( t, xd, yd, zd, isVirtual, -1 );
+		}
+
+		/**
+		 * Adds a real detection with its id in the source data to the current
+		 * track. The id can be retrieved with
+		 * {@link SPTTrackStore#detectionId(int)}.
+		 * 
+		 * @param t
+		 *            the frame of the detection.
+		 * @param xd
+		 *            the X position.
+		 * @param yd
+		 *            the Y position.
+		 * @param zd
+		 *            the Z position.
+		 * @param id
+		 *            the id of the detection, for instance the TrackMate spot
+		 *            ID.
+		 * @return this builder.
+		 */
+		public Builder addDetection( final int t, final double xd, final double yd, final double zd, final int id )
+		{
+			hasIds = true;
+			return addDetection( t, xd, yd, zd, false, id );
+		}
+
+		private Builder addDetection( final int t, final double xd, final double yd, final double zd, final boolean isVirtual, final int id )
+		{
+			if ( t < 0 )
+				throw new IllegalArgumentException( "invalid t value: " + t );
+
+			if ( pendingSize == pendingT.length )
+			{
+				final int n = 2 * pendingSize;
+				pendingT = Arrays.copyOf( pendingT, n );
+				pendingX = Arrays.copyOf( pendingX, n );
+				pendingY = Arrays.copyOf( pendingY, n );
+				pendingZ = Arrays.copyOf( pendingZ, n );
+				pendingVirtual = Arrays.copyOf( pendingVirtual, n );
+				pendingIds = Arrays.copyOf( pendingIds, n );
+			}
+			pendingT[ pendingSize ] = t;
+			pendingX[ pendingSize ] = xd;
+			pendingY[ pendingSize ] = yd;
+			pendingZ[ pendingSize ] = zd;
+			pendingVirtual[ pendingSize ] = isVirtual;
+			pendingIds[ pendingSize ] = id;
+			pendingSize++;
+			return this;
+		}
+
+		/**
+		 * Completes the current track. The track might be discarded, if it is
+		 * empty or if it contains detections with NaN coordinates that cannot
+		 * be trimmed.
+		 * 
+		 * @param sourceId
+		 *            the id of the track in the source data, or -1.
+		 * @return <code>true</code> if the track was added to the store.
+		 * @throws IllegalArgumentException
+		 *             if the track has two detections in the same frame.
+		 */
+		public boolean endTrack( final int sourceId )
+		{
+			final int n = pendingSize;
+			pendingSize = 0;
+			if ( n == 0 )
+				return false;
+
+			// sort the pending detections by frame, if they are not already
+			boolean sorted = true;
+			for ( int i = 1; sorted && i < n; i++ )
+				sorted = pendingT[ i ] >= pendingT[ i - 1 ];
+			final int[] order = new int[ n ];
+			if ( sorted )
+			{
+				for ( int i = 0; i < n; i++ )
+					order[ i ] = i;
+			}
+			else
+			{
+				// frames are positive, so we can sort them packed with the index
+				final long[] keys = new long[ n ];
+				for ( int i = 0; i < n; i++ )
+					keys[ i ] = ( ( long ) pendingT[ i ] << 32 ) | i;
+				Arrays.sort( keys );
+				for ( int i = 0; i < n; i++ )
+					order[ i ] = ( int ) keys[ i ];
+			}
+
+			// write the detections, capping holes with virtual detections
+			final int trackStart = size;
+			int lastT = -1;
+			for ( int k = 0; k < n; k++ )
+			{
+				final int i = order[ k ];
+				final int t = pendingT[ i ];
+				if ( k > 0 )
+				{
+					if ( t == lastT )
+					{
+						size = trackStart;
+						throw new IllegalArgumentException( "duplicated detection for a single track at time " + t );
+					}
+					if ( t > lastT + 1 )
+					{
+						final int prev = size - 1;
+						final double lastX = x[ prev ];
+						final double lastY = y[ prev ];
+						final double lastZ = z[ prev ];
+						final double gapT = 1 / ( ( double ) t - ( double ) lastT );
+						for ( int tt = lastT + 1; tt < t; tt++ )
+						{
+							// linear interpolation
+							append(
+									lastX + ( tt - lastT ) * ( pendingX[ i ] - lastX ) * gapT,
+									lastY + ( tt - lastT ) * ( pendingY[ i ] - lastY ) * gapT,
+									lastZ + ( tt - lastT ) * ( pendingZ[ i ] - lastZ ) * gapT,
+									true, -1 );
+						}
+					}
+				}
+				append( pendingX[ i ], pendingY[ i ], pendingZ[ i ], pendingVirtual[ i ], pendingIds[ i ] );
+				lastT = t;
+			}
+			final int firstT = pendingT[ order[ 0 ] ];
+
+			// trim NaN from the beginning and the end of the track
+			int first = trackStart;
+			while ( first < size && containsNaN( first ) )
+				first++;
+			int last = size - 1;
+			while ( last >= first && containsNaN( last ) )
+				last--;
+			if ( first > last )
+			{
+				size = trackStart;
+				return false;
+			}
+
+			// discard the track if a NaN still exists in the remaining track
+			for ( int d = first; d <= last; d++ )
+			{
+				if ( containsNaN( d ) )
+				{
+					size = trackStart;
+					return false;
+				}
+			}
+
+			// shift the trimmed track to its start
+			final int length = last - first + 1;
+			if ( first > trackStart )
+			{
+				System.arraycopy( x, first, x, trackStart, length );
+				System.arraycopy( y, first, y, trackStart, length );
+				System.arraycopy( z, first, z, trackStart, length );
+				System.arraycopy( ids, first, ids, trackStart, length );
+				for ( int d = 0; d < length; d++ )
+					virtual.set( trackStart + d, virtual.get( first + d ) );
+			}
+			size = trackStart + length;
+
+			if ( nTracks == firstFrames.length )
+			{
+				final int capacity = 2 * nTracks;
+				offsets = Arrays.copyOf( offsets, capacity + 1 );
+				firstFrames = Arrays.copyOf( firstFrames, capacity );
+				sourceIds = Arrays.copyOf( sourceIds, capacity );
+			}
+			offsets[ nTracks ] = trackStart;
+			firstFrames[ nTracks ] = firstT + ( first - trackStart );
+			sourceIds[ nTracks ] = sourceId;
+			nTracks++;
+			offsets[ nTracks ] = size;
+			return true;
+		}
+
+		/**
+		 * Creates the store. The builder should not be used afterwards.
+		 * 
+		 * @return a new store.
+		 */
+		public SPTTrackStore build()
+		{
+			if ( pendingSize > 0 )
+				endTrack( -1 );
+			return new SPTTrackStore(
+					nTracks,
+					Arrays.copyOf( offsets, nTracks + 1 ),
+					Arrays.copyOf( firstFrames, nTracks ),
+					Arrays.copyOf( sourceIds, nTracks ),
+					Arrays.copyOf( x, size ),
+					Arrays.copyOf( y, size ),
+					Arrays.copyOf( z, size ),
+					virtual.get( 0, size ),
+					hasIds ? Arrays.copyOf( ids, size ) : null );
+		}
+
+		private void append( final double xd, final double yd, final double zd, final boolean isVirtual, final int id )
+		{
+			if ( size == x.length )
+			{
+				final int n = 2 * size;
+				x = Arrays.copyOf( x, n );
+				y = Arrays.copyOf( y, n );
+				z = Arrays.copyOf( z, n );
+				ids = Arrays.copyOf( ids, n );
+			}
+			x[ size ] = xd;
+			y[ size ] = yd;
+			z[ size ] = zd;
+			virtual.set( size, isVirtual );
+			ids[ size ] = id;
+			size++;
+		}
+
+		private boolean containsNaN( final int d )
+		{
+			return Double.isNaN( x[ d ] ) || Double.isNaN( y[ d ] ) || Double.isNaN( z[ d ] );
+		}
+	}
+}
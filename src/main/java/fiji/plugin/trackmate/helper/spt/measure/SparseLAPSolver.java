@@ -0,0 +1,348 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.Arrays;
+
+/**
+ * Solver for sparse rectangular linear assignment problems, where each row
+ * has to be assigned to a distinct column, and only some row-column pairs are
+ * allowed.
+ * <p>
+ * This is a shortest augmenting path algorithm, in the spirit of the
+ * Jonker-Volgenant algorithm: rows are assigned one after the other, and for
+ * each new row, a Dijkstra search on the reduced costs finds the cheapest
+ * path to a free column. Row and column potentials are updated so that
+ * reduced costs stay non-negative. The allowed pairs are given in a
+ * compressed sparse row (CSR) layout, and the search uses an indexed binary
+ * heap, so that the cost of an augmentation depends on the number of allowed
+ * pairs it visits, and not on the full size of the cost matrix.
+ * <p>
+ * Costs do not need to be padded for forbidden pairs, as with the dense
+ * Hungarian solvers ({@link HungarianMatchingNew}, {@link HungarianMatching}).
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class SparseLAPSolver
+{
+
+	private final int numRow;
+
+	private final int numCol;
+
+	private final int[] rowStart;
+
+	private final int[] cols;
+
+	private final double[] costs;
+
+	/** The row of each allowed pair. */
+	private final int[] pairRow;
+
+	/**
+	 * Create the solver.
+	 * 
+	 * @param numRow
+	 *            the number of rows.
+	 * @param numCol
+	 *            the number of columns. Must be larger than or equal to the
+	 *            number of rows.
+	 * @param rowStart
+	 *            the index of the first allowed pair of each row in the
+	 *            <code>cols</code> and <code>costs</code> arrays. Its length is
+	 *            <code>numRow + 1</code>, and the last element is the total
+	 *            number of allowed pairs.
+	 * @param cols
+	 *            the column of each allowed pair.
+	 * @param costs
+	 *            the cost of each allowed pair.
+	 */
+	public SparseLAPSolver( final int numRow, final int numCol, final int[] rowStart, final int[] cols, final double[] costs )
+	{
+		if ( numRow > numCol )
+			throw new IllegalArgumentException( "The number of rows (" + numRow + ") must not be larger than the number of columns (" + numCol + ")." );
+		if ( rowStart.length != numRow + 1 )
+			throw new IllegalArgumentException( "The row start array must have a length of " + ( numRow + 1 ) + "." );
+		if ( cols.length < rowStart[ numRow ] || costs.length < rowStart[ numRow ] )
+			throw new IllegalArgumentException( "The column and cost arrays are too short for " + rowStart[ numRow ] + " pairs." );
+
+		this.numRow = numRow;
+		this.numCol = numCol;
+		this.rowStart = rowStart;
+		this.cols = cols;
+		this.costs = costs;
+		this.pairRow = new int[ rowStart[ numRow ] ];
+		for ( int r = 0; r < numRow; r++ )
+			Arrays.fill( pairRow, rowStart[ r ], rowStart[ r + 1 ], r );
+	}
+
+	/**
+	 * Compute the assignment with the minimal total cost.
+	 * 
+	 * @return for each row, the index of the pair it is assigned to, in the
+	 *         <code>cols</code> and <code>costs</code> arrays.
+	 * @throws Exception
+	 *             if there is no assignment of all the rows with the allowed
+	 *             pairs.
+	 */
+	public int[] solve() throws Exception
+	{
+		final double[] u = new double[ numRow ];
+		final double[] v = new double[ numCol ];
+
+		// the pair each row and column is assigned to, -1 if none
+		final int[] rowPair = new int[ numRow ];
+		final int[] colPair = new int[ numCol ];
+		Arrays.fill( rowPair, -1 );
+		Arrays.fill( colPair, -1 );
+
+		// initial row potentials so that reduced costs are non-negative
+		for ( int r = 0; r < numRow; r++ )
+		{
+			if ( rowStart[ r ] == rowStart[ r + 1 ] )
+				throw new Exception( "Row " + r + " has no allowed assignment." );
+			double min = Double.POSITIVE_INFINITY;
+			for ( int e = rowStart[ r ]; e < rowStart[ r + 1 ]; e++ )
+				min = Math.min( min, costs[ e ] );
+			u[ r ] = min;
+		}
+
+		// shortest path search state, reset between augmentations
+		final double[] dist = new double[ numCol ];
+		Arrays.fill( dist, Double.POSITIVE_INFINITY );
+		final int[] predPair = new int[ numCol ];
+		final int[] visited = new int[ numCol ];
+		final IndexedHeap heap = new IndexedHeap( numCol, dist );
+
+		for ( int row = 0; row < numRow; row++ )
+		{
+			int nVisited = 0;
+			heap.clear();
+
+			for ( int e = rowStart[ row ]; e < rowStart[ row + 1 ]; e++ )
+				relax( cols[ e ], costs[ e ] - u[ row ] - v[ cols[ e ] ], e, dist, predPair, heap );
+
+			int freeCol = -1;
+			while ( !heap.isEmpty() )
+			{
+				final int col = heap.pop();
+				visited[ nVisited++ ] = col;
+				if ( colPair[ col ] < 0 )
+				{
+					freeCol = col;
+					break;
+				}
+
+				// continue through the row assigned to this column
+				final int r = pairRow[ colPair[ col ] ];
+				for ( int e = rowStart[ r ]; e < rowStart[ r + 1 ]; e++ )
+				{
+					final int c = cols[ e ];
+					if ( heap.isDone( c ) )
+						continue;
+					relax( c, dist[ col ] + costs[ e ] - u[ r ] - v[ c ], e, dist, predPair, heap );
+				}
+			}
+			if ( freeCol < 0 )
+				throw new Exception( "Could not find an assignment for row " + row + "." );
+
+			// update the potentials of the visited rows and columns
+			final double delta = dist[ freeCol ];
+			u[ row ] += delta;
+			for ( int i = 0; i < nVisited; i++ )
+			{
+				final int col = visited[ i ];
+				final double d = delta - dist[ col ];
+				v[ col ] -= d;
+				if ( colPair[ col ] >= 0 )
+					u[ pairRow[ colPair[ col ] ] ] += d;
+			}
+
+			// augment along the path
+			int col = freeCol;
+			while ( true )
+			{
+				final int e = predPair[ col ];
+				final int r = pairRow[ e ];
+				final int previous = rowPair[ r ];
+				rowPair[ r ] = e;
+				colPair[ col ] = e;
+				if ( r == row )
+					break;
+				col = cols[ previous ];
+			}
+
+			// reset the search state of the columns we touched
+			heap.reset();
+		}
+		return rowPair;
+	}
+
+	private static void relax( final int col, final double d, final int pair, final double[] dist, final int[] predPair, final IndexedHeap heap )
+	{
+		if ( d < dist[ col ] )
+		{
+			dist[ col ] = d;
+			predPair[ col ] = pair;
+			heap.push( col );
+		}
+	}
+
+	/**
+	 * Binary min-heap of column indices, keyed by their distance, that
+	 * supports decreasing the key of a column already in the heap.
+	 */
+	private static final class IndexedHeap
+	{
+
+		private final double[] keys;
+
+		private final int[] heap;
+
+		/** Position of each column in the heap, -1 if not in it. */
+		private final int[] position;
+
+		/** Whether each column has been popped. */
+		private final boolean[] done;
+
+		/** The columns touched since the last reset. */
+		private final int[] touched;
+
+		private int nTouched = 0;
+
+		private int size = 0;
+
+		private IndexedHeap( final int n, final double[] keys )
+		{
+			this.keys = keys;
+			this.heap = new int[ n ];
+			this.position = new int[ n ];
+			this.done = new boolean[ n ];
+			this.touched = new int[ n ];
+			Arrays.fill( position, -1 );
+		}
+
+		private boolean isEmpty()
+		{
+			return size == 0;
+		}
+
+		private boolean isDone( final int col )
+		{
+			return done[ col ];
+		}
+
+		private void clear()
+		{
+			size = 0;
+		}
+
+		/**
+		 * Adds the column to the heap, or moves it up if its key decreased.
+		 */
+		private void push( final int col )
+		{
+			int pos = position[ col ];
+			if ( pos < 0 )
+			{
+				if ( !done[ col ] )
+					touched[ nTouched++ ] = col;
+				pos = size++;
+				heap[ pos ] = col;
+				position[ col ] = pos;
+			}
+			siftUp( pos );
+		}
+
+		private int pop()
+		{
+			final int col = heap[ 0 ];
+			position[ col ] = -1;
+			done[ col ] = true;
+			size--;
+			if ( size > 0 )
+			{
+				heap[ 0 ] = heap[ size ];
+				position[ heap[ 0 ] ] = 0;
+				siftDown( 0 );
+			}
+			return col;
+		}
+
+		/**
+		 * Resets the keys and the state of all the columns touched since the
+		 * last reset.
+		 */
+		private void reset()
+		{
+			for ( int i = 0; i < nTouched; i++ )
+			{
+				final int col = touched[ i ];
+				keys[ col ] = Double.POSITIVE_INFINITY;
+				position[ col ] = -1;
+				done[ col ] = false;
+			}
+			nTouched = 0;
+			size = 0;
+		}
+
+		private void siftUp( int pos )
+		{
+			final int col = heap[ pos ];
+			final double key = keys[ col ];
+			while ( pos > 0 )
+			{
+				final int parent = ( pos - 1 ) >>> 1;
+				final int p = heap[ parent ];
+				if ( keys[ p ] <= key )
+					break;
+				heap[ pos ] = p;
+				position[ p ] = pos;
+				pos = parent;
+			}
+			heap[ pos ] = col;
+			position[ col ] = pos;
+		}
+
+		private void siftDown( int pos )
+		{
+			final int col = heap[ pos ];
+			final double key = keys[ col ];
+			while ( true )
+			{
+				int child = 2 * pos + 1;
+				if ( child >= size )
+					break;
+				if ( child + 1 < size && keys[ heap[ child + 1 ] ] < keys[ heap[ child ] ] )
+					child++;
+				final int c = heap[ child ];
+				if ( keys[ c ] >= key )
+					break;
+				heap[ pos ] = c;
+				position[ c ] = pos;
+				pos = child;
+			}
+			heap[ pos ] = col;
+			position[ col ] = pos;
+		}
+	}
+}
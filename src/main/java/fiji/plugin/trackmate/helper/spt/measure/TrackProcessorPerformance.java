@@ -22,7 +22,11 @@
 package fiji.plugin.trackmate.helper.spt.measure;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Main class for the track processor that computes tracking quality with
@@ -59,7 +63,6 @@ public class TrackProcessorPerformance
 			final List< TrackSegment > trackSegmentList2,
 			final double maxDist )
 	{
-		final boolean newMethod = true;
 		final OneToOneMatcher matcher = new OneToOneMatcher( trackSegmentList1, trackSegmentList2 );
 		final DistanceTypes distType = DistanceTypes.DISTANCE_EUCLIDIAN;
 		if ( maxDist < 0 )
@@ -67,7 +70,7 @@ public class TrackProcessorPerformance
 		final ArrayList< TrackPair > pairs = new ArrayList< TrackPair >();
 		try
 		{
-			pairs.addAll( matcher.pairTracks( maxDist, distType, newMethod ) );
+			pairs.addAll( matcher.pairTracks( maxDist, distType ) );
 		}
 		catch ( final Exception e )
 		{
@@ -98,9 +101,11 @@ public class TrackProcessorPerformance
 				correctTracks.add( tp.candidateTrack );
 			}
 		}
+		final Set< TrackSegment > correctTrackSet = Collections.newSetFromMap( new IdentityHashMap<>( correctTracks.size() ) );
+		correctTrackSet.addAll( correctTracks );
 		for ( final TrackSegment ts : trackSegmentList2 )
 		{
-			if ( !correctTracks.contains( ts ) )
+			if ( !correctTrackSet.contains( ts ) )
 				spuriousTracks.add( ts );
 		}
 
@@ -116,6 +121,72 @@ public class TrackProcessorPerformance
 		return analyzer;
 	}
 
+	/**
+	 * Pairs the tracks of two {@link SPTTrackStore}s, and returns an analyzer
+	 * for this pairing. The tracks are handled by their index in the stores,
+	 * so the pairing and the scoring do not create any track object.
+	 * 
+	 * @param refs
+	 *            the reference tracks.
+	 * @param candidates
+	 *            the candidate tracks.
+	 * @param maxDist
+	 *            the gate (maximum Euclidian distance) between detections.
+	 * @return a new analyzer, or <code>null</code> if the gate is negative.
+	 */
+	public TrackStoreAnalyzer pairTracks( final SPTTrackStore refs, final SPTTrackStore candidates, final double maxDist )
+	{
+		if ( maxDist < 0 )
+			return null;
+		final TrackStoreMatcher matcher = new TrackStoreMatcher( refs, candidates );
+		int[] paired;
+		try
+		{
+			paired = matcher.pairTracks( maxDist, DistanceTypes.DISTANCE_EUCLIDIAN );
+		}
+		catch ( final Exception e )
+		{
+			e.printStackTrace();
+			paired = new int[ refs.numTracks() ];
+			Arrays.fill( paired, -1 );
+		}
+		return new TrackStoreAnalyzer( refs, candidates, paired );
+	}
+
+	/**
+	 * Pairs the tracks of two {@link SPTTrackStore}s with the detection
+	 * distances of a cache, and returns an analyzer for this pairing.
+	 * 
+	 * @param refs
+	 *            the reference tracks.
+	 * @param candidates
+	 *            the candidate tracks.
+	 * @param cache
+	 *            the detection distances between the reference tracks and the
+	 *            detections of the candidate tracks.
+	 * @return a new analyzer, or <code>null</code> if the gate of the cache
+	 *         is negative.
+	 * @see TrackStoreMatcher#pairTracks(DetectionDistanceCache)
+	 */
+	public TrackStoreAnalyzer pairTracks( final SPTTrackStore refs, final SPTTrackStore candidates, final DetectionDistanceCache cache )
+	{
+		if ( cache.getGate() < 0 )
+			return null;
+		final TrackStoreMatcher matcher = new TrackStoreMatcher( refs, candidates );
+		int[] paired;
+		try
+		{
+			paired = matcher.pairTracks( cache );
+		}
+		catch ( final Exception e )
+		{
+			e.printStackTrace();
+			paired = new int[ refs.numTracks() ];
+			Arrays.fill( paired, -1 );
+		}
+		return new TrackStoreAnalyzer( refs, candidates, paired );
+	}
+
 	public static ArrayList< TrackPair > pairTracks( final ArrayList< TrackSegment > trackSegmentList1,
 			final ArrayList< TrackSegment > trackSegmentList2, final DistanceTypes distType, final double maxDist ) throws Exception
 	{
@@ -69,8 +69,26 @@ public class TrackSegment implements Cloneable
 
 	private int id = 0;
 
+	/**
+	 * Whether this track is in the static id registry. Tracks are registered
+	 * lazily, when their id is first needed, so that the scoring code, which
+	 * creates many short-lived tracks and compares them by identity, does not
+	 * go through the registry.
+	 */
+	private boolean registered = false;
+
+	/**
+	 * Cache for the contiguity check of the detection list. Replaced as a
+	 * whole, so that tracks can be read concurrently.
+	 */
+	private volatile Contiguity contiguity;
+
 	private static final Random RANDOM = new Random();
 
+	/**
+	 * Returns the track with the specified id. Only tracks whose id has been
+	 * queried or set are registered.
+	 */
 	public static TrackSegment getTrackSegmentById( final int id )
 	{
 		synchronized ( idKeyHashMapList )
@@ -82,8 +100,6 @@ public class TrackSegment implements Cloneable
 	public TrackSegment()
 	{
 		super();
-
-		generateId();
 	}
 
 	/** Constructor with a list of detection */
@@ -92,7 +108,6 @@ public class TrackSegment implements Cloneable
 		super();
 
 		this.detectionList = detectionList;
-		generateId();
 
 		// FIXME: add a duplicate owner test.
 		// for (Detection detection : detectionList)
@@ -122,7 +137,9 @@ public class TrackSegment implements Cloneable
 		previousList = new ArrayList< TrackSegment >( previousList );
 		nextList = new ArrayList< TrackSegment >( nextList );
 
-		generateId();
+		// the clone gets its own id when it is needed
+		cloneSegment.registered = false;
+		cloneSegment.id = 0;
 
 		return cloneSegment;
 
@@ -132,17 +149,26 @@ public class TrackSegment implements Cloneable
 	{
 		synchronized ( idKeyHashMapList )
 		{
+			if ( !registered )
+				return;
+
 			synchronized ( idHashMapList )
 			{
 				idKeyHashMapList.remove( Integer.valueOf( id ) );
 				idHashMapList.remove( this );
+				registered = false;
 			}
 		}
 	}
 
 	public int getId()
 	{
-		return id;
+		synchronized ( idKeyHashMapList )
+		{
+			if ( !registered )
+				generateId();
+			return id;
+		}
 	}
 
 	public void generateId()
@@ -165,6 +191,7 @@ public class TrackSegment implements Cloneable
 						idKeyHashMapList.put( key, this );
 
 						this.id = key.intValue();
+						this.registered = true;
 
 						return;
 					}
@@ -184,10 +211,14 @@ public class TrackSegment implements Cloneable
 				// available ?
 				if ( idKeyHashMapList.get( key ) == null )
 				{
+					// just for safety
+					removeId();
+
 					idHashMapList.put( this, key );
 					idKeyHashMapList.put( key, this );
 
 					this.id = key.intValue();
+					this.registered = true;
 				}
 //				else
 //					System.out.println( "track id already loaded" );
@@ -325,9 +356,31 @@ public class TrackSegment implements Cloneable
 		return detectionList.get( i );
 	}
 
-	/** return detection at time t */
+	/**
+	 * return detection at time t. Detections are normally stored at
+	 * consecutive times (see {@link #addDetection(Detection)}), so the
+	 * detection is looked up directly at its offset from the first frame. If
+	 * the list does not follow this layout, we fall back to a linear scan.
+	 */
 	public Detection getDetectionAtTime( final int t )
 	{
+		final int size = detectionList.size();
+		if ( size == 0 )
+			return null;
+
+		final Detection first = detectionList.get( 0 );
+		final long offset = ( long ) t - first.getT();
+		if ( offset >= 0 && offset < size )
+		{
+			final Detection detection = detectionList.get( ( int ) offset );
+			if ( detection.getT() == t )
+				return detection;
+		}
+		else if ( isContiguous( first, size ) )
+		{
+			return null;
+		}
+
 		for ( final Detection detection : detectionList )
 		{
 			if ( detection.getT() == t )
@@ -336,6 +389,53 @@ public class TrackSegment implements Cloneable
 		return null;
 	}
 
+	/**
+	 * Returns <code>true</code> if the detections are stored at consecutive
+	 * times. The check is cached, and redone only when the size or the ends of
+	 * the detection list change.
+	 */
+	private boolean isContiguous( final Detection first, final int size )
+	{
+		final Detection last = detectionList.get( size - 1 );
+		final Contiguity cached = contiguity;
+		if ( cached != null && cached.first == first && cached.last == last && cached.size == size
+				&& cached.firstT == first.getT() && cached.lastT == last.getT() )
+			return cached.contiguous;
+
+		boolean ok = ( ( long ) last.getT() - first.getT() == size - 1 );
+		for ( int i = 1; ok && i < size; i++ )
+			ok = detectionList.get( i ).getT() == first.getT() + i;
+
+		contiguity = new Contiguity( first, last, size, ok );
+		return ok;
+	}
+
+	private static final class Contiguity
+	{
+
+		private final Detection first;
+
+		private final Detection last;
+
+		private final int size;
+
+		private final int firstT;
+
+		private final int lastT;
+
+		private final boolean contiguous;
+
+		private Contiguity( final Detection first, final Detection last, final int size, final boolean contiguous )
+		{
+			this.first = first;
+			this.last = last;
+			this.size = size;
+			this.firstT = first.getT();
+			this.lastT = last.getT();
+			this.contiguous = contiguous;
+		}
+	}
+
 	/**
 	 * return detection list WARNING: User should use addDetection and
 	 * removeDetection instead of doing it himself using direct access to the
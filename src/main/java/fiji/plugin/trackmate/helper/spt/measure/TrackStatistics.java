@@ -0,0 +1,380 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Mean-square displacement and jump-length statistics of the tracks of a
+ * {@link SPTTrackStore}.
+ * <p>
+ * The MSD of a track is computed for all the time gaps at once with the FFT
+ * algorithm of Calandrini <i>et al.</i> (2011): the sum of square
+ * displacements for a gap is the sum of the square positions of the
+ * detections involved, minus twice the position autocorrelation for this
+ * gap, and the autocorrelation is obtained from the power spectrum of the
+ * positions. This takes <code>O(N log N)</code> per track of length
+ * <code>N</code> instead of <code>O(N^2)</code>. Short tracks use the direct
+ * sum. Positions are centered on the track mean to limit round-off errors.
+ * <p>
+ * Like in the ISBI SPT scoring code, virtual detections filling the gaps of
+ * a track are used as any other detection. Tracks are processed in parallel,
+ * in chunks of fixed size whose results are summed in order, so that results
+ * do not depend on the number of threads.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class TrackStatistics
+{
+
+	/**
+	 * Tracks shorter than this use the direct sum.
+	 */
+	private static final int FFT_MIN_LENGTH = 64;
+
+	/**
+	 * Number of tracks accumulated together by a task.
+	 */
+	private static final int CHUNK_SIZE = 64;
+
+	private TrackStatistics()
+	{}
+
+	/**
+	 * Returns the mean-square displacement of the tracks of a store, for all
+	 * the time gaps from 1 to the largest track length minus 1. The square
+	 * displacements of all the tracks are averaged together.
+	 * 
+	 * @param store
+	 *            the tracks.
+	 * @return a new array, whose element <code>k</code> is the MSD for a time
+	 *         gap of <code>k + 1</code> frames, or 0 if no track spans that
+	 *         many frames.
+	 */
+	public static double[] msds( final SPTTrackStore store )
+	{
+		int maxLength = 0;
+		for ( int track = 0; track < store.numTracks(); track++ )
+			maxLength = Math.max( maxLength, store.length( track ) );
+		final int maxTGap = Math.max( 0, maxLength - 1 );
+
+		final int nTracks = store.numTracks();
+		final int nChunks = ( nTracks + CHUNK_SIZE - 1 ) / CHUNK_SIZE;
+		final double[][] chunkSums = new double[ nChunks ][];
+		final long[][] chunkCounts = new long[ nChunks ][];
+		IntStream.range( 0, nChunks ).parallel().forEach( chunk -> {
+			final double[] sums = new double[ maxTGap ];
+			final long[] counts = new long[ maxTGap ];
+			final Workspace ws = new Workspace();
+			final int to = Math.min( nTracks, ( chunk + 1 ) * CHUNK_SIZE );
+			for ( int track = chunk * CHUNK_SIZE; track < to; track++ )
+				accumulateSquareDisplacements( store, track, ws, sums, counts );
+			chunkSums[ chunk ] = sums;
+			chunkCounts[ chunk ] = counts;
+		} );
+
+		final double[] msds = new double[ maxTGap ];
+		final long[] numJumps = new long[ maxTGap ];
+		for ( int chunk = 0; chunk < nChunks; chunk++ )
+		{
+			for ( int k = 0; k < maxTGap; k++ )
+			{
+				msds[ k ] += chunkSums[ chunk ][ k ];
+				numJumps[ k ] += chunkCounts[ chunk ][ k ];
+			}
+		}
+		for ( int k = 0; k < maxTGap; k++ )
+		{
+			if ( numJumps[ k ] > 0 )
+				msds[ k ] /= numJumps[ k ];
+		}
+		return msds;
+	}
+
+	/**
+	 * Returns the lengths of all the jumps between consecutive detections of
+	 * the tracks of a store, track after track.
+	 * 
+	 * @param store
+	 *            the tracks.
+	 * @return a new array.
+	 */
+	public static double[] jumpLengths( final SPTTrackStore store )
+	{
+		final int nTracks = store.numTracks();
+		final int[] offsets = new int[ nTracks + 1 ];
+		for ( int track = 0; track < nTracks; track++ )
+			offsets[ track + 1 ] = offsets[ track ] + store.length( track ) - 1;
+
+		final double[] lengths = new double[ offsets[ nTracks ] ];
+		IntStream.range( 0, nTracks ).parallel().forEach( track -> {
+			final int n = offsets[ track + 1 ] - offsets[ track ];
+			if ( n == 0 )
+				return;
+			final double[] out = new double[ n ];
+			store.distances( store.start( track ), store, store.start( track ) + 1, n, Double.POSITIVE_INFINITY, out );
+			System.arraycopy( out, 0, lengths, offsets[ track ], n );
+		} );
+		return lengths;
+	}
+
+	/**
+	 * Counts values in bins of equal width starting at 0. Values larger than
+	 * the last bin are counted in the last bin. Negative and NaN values are
+	 * ignored.
+	 * 
+	 * @param values
+	 *            the values, for instance jump lengths.
+	 * @param binWidth
+	 *            the width of the bins.
+	 * @param nBins
+	 *            the number of bins.
+	 * @return a new array with the count of each bin.
+	 */
+	public static int[] histogram( final double[] values, final double binWidth, final int nBins )
+	{
+		if ( !( binWidth > 0. ) || nBins <= 0 )
+			throw new IllegalArgumentException( "Invalid histogram bins: width " + binWidth + ", number " + nBins + "." );
+		final int[] counts = new int[ nBins ];
+		for ( final double v : values )
+		{
+			if ( !( v >= 0. ) )
+				continue;
+			counts[ ( int ) Math.min( nBins - 1, Math.floor( v / binWidth ) ) ]++;
+		}
+		return counts;
+	}
+
+	/**
+	 * Adds the sums of square displacements of a track to the specified
+	 * arrays, for gaps from 1 to its length minus 1.
+	 */
+	private static void accumulateSquareDisplacements( final SPTTrackStore store, final int track, final Workspace ws, final double[] sums, final long[] counts )
+	{
+		final int n = store.length( track );
+		if ( n < 2 )
+			return;
+
+		// Centered positions and their square norms.
+		ws.ensureCapacity( n );
+		final int start = store.start( track );
+		double mx = 0.;
+		double my = 0.;
+		double mz = 0.;
+		for ( int t = 0; t < n; t++ )
+		{
+			mx += store.x( start + t );
+			my += store.y( start + t );
+			mz += store.z( start + t );
+		}
+		mx /= n;
+		my /= n;
+		mz /= n;
+		boolean planar = true;
+		final double[] x = ws.x;
+		final double[] y = ws.y;
+		final double[] z = ws.z;
+		final double[] sq = ws.sq;
+		for ( int t = 0; t < n; t++ )
+		{
+			x[ t ] = store.x( start + t ) - mx;
+			y[ t ] = store.y( start + t ) - my;
+			z[ t ] = store.z( start + t ) - mz;
+			planar &= z[ t ] == 0.;
+			sq[ t ] = x[ t ] * x[ t ] + y[ t ] * y[ t ] + z[ t ] * z[ t ];
+		}
+
+		// Position autocorrelation for gaps 0 to n - 1.
+		final double[] autocorrelation = ws.autocorrelation;
+		if ( n < FFT_MIN_LENGTH )
+		{
+			for ( int gap = 0; gap < n; gap++ )
+			{
+				double s = 0.;
+				for ( int t = 0; t < n - gap; t++ )
+					s += x[ t ] * x[ t + gap ] + y[ t ] * y[ t + gap ] + z[ t ] * z[ t + gap ];
+				autocorrelation[ gap ] = s;
+			}
+		}
+		else
+		{
+			fftAutocorrelation( n, planar, ws );
+		}
+
+		// Sum of square norms over the detections involved in each gap.
+		double q = 0.;
+		for ( int t = 0; t < n; t++ )
+			q += sq[ t ];
+		q *= 2.;
+		for ( int gap = 1; gap < n; gap++ )
+		{
+			q -= sq[ gap - 1 ] + sq[ n - gap ];
+			sums[ gap - 1 ] += Math.max( 0., q - 2. * autocorrelation[ gap ] );
+			counts[ gap - 1 ] += n - gap;
+		}
+	}
+
+	/**
+	 * Computes the autocorrelation of the centered positions of the
+	 * workspace from their power spectrum. X and Y are transformed together
+	 * as the real and imaginary parts of one signal: the real part of the
+	 * inverse transform of its power spectrum is the sum of their
+	 * autocorrelations.
+	 */
+	private static void fftAutocorrelation( final int n, final boolean planar, final Workspace ws )
+	{
+		final int m = Integer.highestOneBit( 2 * n - 1 ) << 1;
+		ws.ensureFFTCapacity( m );
+		final double[] re = ws.re;
+		final double[] im = ws.im;
+		System.arraycopy( ws.x, 0, re, 0, n );
+		System.arraycopy( ws.y, 0, im, 0, n );
+		Arrays.fill( re, n, m, 0. );
+		Arrays.fill( im, n, m, 0. );
+		fft( re, im, m );
+		for ( int k = 0; k < m; k++ )
+		{
+			re[ k ] = re[ k ] * re[ k ] + im[ k ] * im[ k ];
+			im[ k ] = 0.;
+		}
+
+		if ( !planar )
+		{
+			final double[] re2 = ws.re2;
+			final double[] im2 = ws.im2;
+			System.arraycopy( ws.z, 0, re2, 0, n );
+			Arrays.fill( re2, n, m, 0. );
+			Arrays.fill( im2, 0, m, 0. );
+			fft( re2, im2, m );
+			for ( int k = 0; k < m; k++ )
+				re[ k ] += re2[ k ] * re2[ k ] + im2[ k ] * im2[ k ];
+		}
+
+		/*
+		 * The power spectrum of x + iy is real but not even, so transforming it
+		 * forward gives the complex autocorrelation at the opposite gap, which
+		 * is the conjugate of the one at the gap. Only the real part, the sum
+		 * of the autocorrelations, is read, and it is the same for both.
+		 */
+		fft( re, im, m );
+		for ( int gap = 0; gap < n; gap++ )
+			ws.autocorrelation[ gap ] = re[ gap ] / m;
+	}
+
+	/**
+	 * In-place iterative radix-2 complex FFT. The size must be a power of 2.
+	 */
+	private static void fft( final double[] re, final double[] im, final int m )
+	{
+		// Bit-reversal permutation.
+		for ( int i = 1, j = 0; i < m; i++ )
+		{
+			int bit = m >> 1;
+			for ( ; ( j & bit ) != 0; bit >>= 1 )
+				j ^= bit;
+			j ^= bit;
+			if ( i < j )
+			{
+				final double tr = re[ i ];
+				re[ i ] = re[ j ];
+				re[ j ] = tr;
+				final double ti = im[ i ];
+				im[ i ] = im[ j ];
+				im[ j ] = ti;
+			}
+		}
+
+		for ( int len = 2; len <= m; len <<= 1 )
+		{
+			final double angle = -2. * Math.PI / len;
+			final double wr = Math.cos( angle );
+			final double wi = Math.sin( angle );
+			final int half = len >> 1;
+			for ( int i = 0; i < m; i += len )
+			{
+				double cr = 1.;
+				double ci = 0.;
+				for ( int k = 0; k < half; k++ )
+				{
+					final int a = i + k;
+					final int b = a + half;
+					final double br = re[ b ] * cr - im[ b ] * ci;
+					final double bi = re[ b ] * ci + im[ b ] * cr;
+					re[ b ] = re[ a ] - br;
+					im[ b ] = im[ a ] - bi;
+					re[ a ] += br;
+					im[ a ] += bi;
+					final double ncr = cr * wr - ci * wi;
+					ci = cr * wi + ci * wr;
+					cr = ncr;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Buffers reused for the tracks of a chunk.
+	 */
+	private static final class Workspace
+	{
+
+		private double[] x = new double[ 0 ];
+
+		private double[] y = new double[ 0 ];
+
+		private double[] z = new double[ 0 ];
+
+		private double[] sq = new double[ 0 ];
+
+		private double[] autocorrelation = new double[ 0 ];
+
+		private double[] re = new double[ 0 ];
+
+		private double[] im = new double[ 0 ];
+
+		private double[] re2 = new double[ 0 ];
+
+		private double[] im2 = new double[ 0 ];
+
+		private void ensureCapacity( final int n )
+		{
+			if ( x.length >= n )
+				return;
+			x = new double[ n ];
+			y = new double[ n ];
+			z = new double[ n ];
+			sq = new double[ n ];
+			autocorrelation = new double[ n ];
+		}
+
+		private void ensureFFTCapacity( final int m )
+		{
+			if ( re.length >= m )
+				return;
+			re = new double[ m ];
+			im = new double[ m ];
+			re2 = new double[ m ];
+			im2 = new double[ m ];
+		}
+	}
+}
@@ -0,0 +1,416 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.Arrays;
+
+/**
+ * Computes the ISBI SPT tracking performance criteria for a pairing between
+ * the reference and candidate tracks of two {@link SPTTrackStore}s.
+ * <p>
+ * This is the counterpart of {@link PerformanceAnalyzer} for track stores.
+ * The track to track distances of all the pairs are computed once per gate,
+ * and stored in primitive arrays indexed by reference track.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class TrackStoreAnalyzer
+{
+
+	private final SPTTrackStore refs;
+
+	private final SPTTrackStore candidates;
+
+	/**
+	 * For each reference track, the candidate track it is paired with, or -1.
+	 */
+	private final int[] paired;
+
+	/**
+	 * Whether each candidate track is paired with a reference track.
+	 */
+	private final boolean[] candidatePaired;
+
+	/**
+	 * For each candidate track, the reference track it is paired with, or -1.
+	 */
+	private final int[] candidateRef;
+
+	private PairStatistics statistics;
+
+	/**
+	 * Build the analyzer.
+	 * 
+	 * @param refs
+	 *            the reference tracks.
+	 * @param candidates
+	 *            the candidate tracks.
+	 * @param paired
+	 *            for each reference track, the index of the candidate track it
+	 *            is paired with, or -1 if it is paired with a dummy track, as
+	 *            returned by {@link TrackStoreMatcher#pairTracks}.
+	 */
+	public TrackStoreAnalyzer( final SPTTrackStore refs, final SPTTrackStore candidates, final int[] paired )
+	{
+		this.refs = refs;
+		this.candidates = candidates;
+		this.paired = paired;
+		this.candidatePaired = new boolean[ candidates.numTracks() ];
+		this.candidateRef = new int[ candidates.numTracks() ];
+		Arrays.fill( candidateRef, -1 );
+		for ( int r = 0; r < paired.length; r++ )
+		{
+			final int c = paired[ r ];
+			if ( c >= 0 && !candidatePaired[ c ] )
+			{
+				candidatePaired[ c ] = true;
+				candidateRef[ c ] = r;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of reference tracks
+	 */
+	public int getNumRefTracks()
+	{
+		return refs.numTracks();
+	}
+
+	/**
+	 * @return the number of candidate tracks
+	 */
+	public int getNumCandidateTracks()
+	{
+		return candidates.numTracks();
+	}
+
+	/**
+	 * @return the normalized distance between the pairs (alpha criterion)
+	 */
+	public double getPairedTracksNormalizedDistance( final DistanceTypes distType, final double maxDist )
+	{
+		final PairStatistics stats = getStatistics( maxDist );
+		return 1d - stats.pairedDistance( distType ) / stats.referenceBound( distType );
+	}
+
+	/**
+	 * @return the full distance between the pairs (beta criterion) that
+	 *         accounts for non-associated candidate tracks
+	 */
+	public double getFullTrackingScore( final DistanceTypes distType, final double maxDist )
+	{
+		final PairStatistics stats = getStatistics( maxDist );
+		final double distance = stats.pairedDistance( distType );
+		final double bound = stats.referenceBound( distType );
+		final double penalty = stats.spuriousPenalty( distType );
+		return ( bound - distance ) / ( bound + penalty );
+	}
+
+	/**
+	 * @return the number of non-associated candidate tracks
+	 */
+	public int getNumSpuriousTracks()
+	{
+		return candidates.numTracks() - getNumPairedTracks();
+	}
+
+	/**
+	 * @return the number of reference tracks associated with a dummy track
+	 */
+	public int getNumMissedTracks()
+	{
+		int numMissedTracks = 0;
+		for ( final int c : paired )
+			if ( c < 0 )
+				numMissedTracks++;
+		return numMissedTracks;
+	}
+
+	/**
+	 * @return the number of pairs between reference and candidate tracks
+	 */
+	public int getNumPairedTracks()
+	{
+		int numCorrectTracks = 0;
+		for ( final boolean p : candidatePaired )
+			if ( p )
+				numCorrectTracks++;
+		return numCorrectTracks;
+	}
+
+	/**
+	 * @return the total number of paired detections
+	 */
+	public int getNumPairedDetections( final double maxDist )
+	{
+		final PairStatistics stats = getStatistics( maxDist );
+		int numRecoveredDetections = 0;
+		for ( int r = 0; r < paired.length; r++ )
+			numRecoveredDetections += stats.numMatchingDetections[ r ];
+		return numRecoveredDetections;
+	}
+
+	/**
+	 * @return the number of detections for the reference tracks that are not
+	 *         paired to a candidate detection
+	 */
+	public int getNumMissedDetections( final double maxDist )
+	{
+		final PairStatistics stats = getStatistics( maxDist );
+		int numMissedDetections = 0;
+		for ( int r = 0; r < paired.length; r++ )
+			numMissedDetections += stats.numNonMatchedDetections[ r ];
+		return numMissedDetections;
+	}
+
+	/**
+	 * @return the number of detections for the candidate tracks that are not
+	 *         paired to a reference detection
+	 */
+	public int getNumWrongDetections( final double maxDist )
+	{
+		final PairStatistics stats = getStatistics( maxDist );
+		int numSpuriousDetections = 0;
+		for ( int c = 0; c < candidates.numTracks(); c++ )
+		{
+			if ( candidatePaired[ c ] )
+			{
+				numSpuriousDetections += stats.numWrongDetections[ candidateRef[ c ] ];
+			}
+			else
+			{
+				// Virtual detections are not considered as spurious detections.
+				for ( int d = candidates.start( c ); d < candidates.end( c ); d++ )
+					if ( !candidates.isVirtual( d ) )
+						numSpuriousDetections++;
+			}
+		}
+		return numSpuriousDetections;
+	}
+
+	/**
+	 * @return the RMSE, min, max and standard deviation of the distance
+	 *         between paired detections.
+	 */
+	public double[] getDistanceDetectionData( final double maxDist )
+	{
+		final PairStatistics stats = getStatistics( maxDist );
+		double sumDistance = 0;
+		double sumSquareDistance = 0;
+		double minDistance = Double.MAX_VALUE;
+		double maxDistance = 0;
+		int numDetections = 0;
+		for ( int r = 0; r < paired.length; r++ )
+		{
+			if ( paired[ r ] >= 0 )
+			{
+				sumDistance += stats.sumDetectionDistance[ r ];
+				sumSquareDistance += stats.sumSquareDetectionDistance[ r ];
+				if ( stats.minDetectionDistance[ r ] < minDistance )
+					minDistance = stats.minDetectionDistance[ r ];
+				if ( stats.maxDetectionDistance[ r ] > maxDistance )
+					maxDistance = stats.maxDetectionDistance[ r ];
+				numDetections += stats.numMatchingDetections[ r ];
+			}
+		}
+		if ( numDetections == 0 )
+			return new double[] { 0, 0, 0, 0 };
+
+		final double rmse = Math.sqrt( sumSquareDistance / numDetections );
+		final double stdDistance = Math.sqrt( sumSquareDistance / numDetections - Math.pow( sumDistance / numDetections, 2 ) );
+		return new double[] { rmse, minDistance, maxDistance, stdDistance };
+	}
+
+	/**
+	 * Returns the ISBI SPT scores: alpha, beta, the detections Jaccard
+	 * similarity (JSC), the tracks Jaccard similarity (JSC theta) and the RMSE
+	 * of matched detections.
+	 * 
+	 * @param distType
+	 *            type of distance that is used for alpha and beta.
+	 * @param maxDist
+	 *            the gate (maximum Euclidian distance) between detections.
+	 * @return a new <code>double[]</code> array with alpha, beta, JSC,
+	 *         JSCtheta and RMSE.
+	 * @see PerformanceAnalyzer#getScores(DistanceTypes, double)
+	 */
+	public double[] getScores( final DistanceTypes distType, final double maxDist )
+	{
+		final double alpha = getPairedTracksNormalizedDistance( distType, maxDist );
+		final double beta = getFullTrackingScore( distType, maxDist );
+		final double rmse = getDistanceDetectionData( maxDist )[ 0 ];
+
+		final int numSpuriousTracks = getNumSpuriousTracks();
+		final int numMissedTracks = getNumMissedTracks();
+		final int numCorrectTracks = getNumPairedTracks();
+		final int numRecoveredDetections = getNumPairedDetections( maxDist );
+		final int numMissedDetections = getNumMissedDetections( maxDist );
+		final int numWrongDetections = getNumWrongDetections( maxDist );
+
+		final double detectionsSimilarity = numRecoveredDetections / ( ( double ) numRecoveredDetections + ( double ) numMissedDetections + numWrongDetections );
+		final double tracksSimilarity = numCorrectTracks / ( ( double ) numCorrectTracks + ( double ) numMissedTracks + numSpuriousTracks );
+
+		return new double[] { alpha, beta, detectionsSimilarity, tracksSimilarity, rmse };
+	}
+
+	/**
+	 * @return the MSD of the reference tracks, for time gaps from 1 frame.
+	 * @see TrackStatistics#msds(SPTTrackStore)
+	 */
+	public double[] getReferenceTracksMSDs()
+	{
+		return TrackStatistics.msds( refs );
+	}
+
+	/**
+	 * @return the MSD of the candidate tracks, for time gaps from 1 frame.
+	 * @see TrackStatistics#msds(SPTTrackStore)
+	 */
+	public double[] getCandidateTracksMSDs()
+	{
+		return TrackStatistics.msds( candidates );
+	}
+
+	/**
+	 * @return the lengths of the jumps between consecutive detections of the
+	 *         reference tracks.
+	 */
+	public double[] getReferenceTracksJumpLengths()
+	{
+		return TrackStatistics.jumpLengths( refs );
+	}
+
+	/**
+	 * @return the lengths of the jumps between consecutive detections of the
+	 *         candidate tracks.
+	 */
+	public double[] getCandidateTracksJumpLengths()
+	{
+		return TrackStatistics.jumpLengths( candidates );
+	}
+
+	private PairStatistics getStatistics( final double maxDist )
+	{
+		if ( statistics == null || Double.compare( statistics.maxDist, maxDist ) != 0 )
+			statistics = new PairStatistics( maxDist );
+		return statistics;
+	}
+
+	/**
+	 * The results of the track to track distances for all the pairs, stored
+	 * in primitive arrays indexed by reference track.
+	 */
+	private final class PairStatistics
+	{
+
+		private final double maxDist;
+
+		private final double[] euclidianDistance;
+
+		private final double[] matchingDistance;
+
+		private final int[] numMatchingDetections;
+
+		private final int[] numNonMatchedDetections;
+
+		private final int[] numWrongDetections;
+
+		private final double[] sumDetectionDistance;
+
+		private final double[] sumSquareDetectionDistance;
+
+		private final double[] minDetectionDistance;
+
+		private final double[] maxDetectionDistance;
+
+		private double referenceEuclidianBound = 0;
+
+		private double referenceMatchingBound = 0;
+
+		private double spuriousEuclidianPenalty = 0;
+
+		private double spuriousMatchingPenalty = 0;
+
+		private PairStatistics( final double maxDist )
+		{
+			this.maxDist = maxDist;
+			final int n = paired.length;
+			euclidianDistance = new double[ n ];
+			matchingDistance = new double[ n ];
+			numMatchingDetections = new int[ n ];
+			numNonMatchedDetections = new int[ n ];
+			numWrongDetections = new int[ n ];
+			sumDetectionDistance = new double[ n ];
+			sumSquareDetectionDistance = new double[ n ];
+			minDetectionDistance = new double[ n ];
+			maxDetectionDistance = new double[ n ];
+
+			for ( int r = 0; r < n; r++ )
+			{
+				final TrackToTrackDistance d = new TrackToTrackDistance( refs, r, candidates, paired[ r ], DistanceTypes.DISTANCE_MATCHING, maxDist );
+				euclidianDistance[ r ] = d.euclidianDistance;
+				matchingDistance[ r ] = d.matchingDistance;
+				numMatchingDetections[ r ] = d.numMatchingDetections;
+				numNonMatchedDetections[ r ] = d.numNonMatchedDetections;
+				numWrongDetections[ r ] = d.numWrongDetections;
+				sumDetectionDistance[ r ] = d.sumDetectionDistance;
+				sumSquareDetectionDistance[ r ] = d.sumSquareDetectionDistance;
+				minDetectionDistance[ r ] = d.minDetectionDistance;
+				maxDetectionDistance[ r ] = d.maxDetectionDistance;
+
+				// the distance of a reference track with no associated track
+				final int length = refs.length( r );
+				referenceEuclidianBound += maxDist * length;
+				referenceMatchingBound += length;
+			}
+
+			for ( int c = 0; c < candidates.numTracks(); c++ )
+			{
+				if ( candidatePaired[ c ] )
+					continue;
+				final int length = candidates.length( c );
+				spuriousEuclidianPenalty += maxDist * length;
+				spuriousMatchingPenalty += length;
+			}
+		}
+
+		private double pairedDistance( final DistanceTypes distType )
+		{
+			final double[] distances = ( distType == DistanceTypes.DISTANCE_EUCLIDIAN ) ? euclidianDistance : matchingDistance;
+			double distance = 0;
+			for ( int i = 0; i < distances.length; i++ )
+				distance += distances[ i ];
+			return distance;
+		}
+
+		private double referenceBound( final DistanceTypes distType )
+		{
+			return ( distType == DistanceTypes.DISTANCE_EUCLIDIAN ) ? referenceEuclidianBound : referenceMatchingBound;
+		}
+
+		private double spuriousPenalty( final DistanceTypes distType )
+		{
+			return ( distType == DistanceTypes.DISTANCE_EUCLIDIAN ) ? spuriousEuclidianPenalty : spuriousMatchingPenalty;
+		}
+	}
+}
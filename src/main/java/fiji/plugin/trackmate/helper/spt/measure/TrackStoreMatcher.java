@@ -0,0 +1,373 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Creation of the best one-to-one matching between the reference tracks and
+ * the candidate tracks of two {@link SPTTrackStore}s.
+ * <p>
+ * This is the same matching as {@link OneToOneMatcher}, working on track
+ * indices instead of {@link TrackSegment} objects: feasible pairs are found
+ * with a {@link CandidateDetectionIndex}, grouped in independent clusters with
+ * a union-find, and each cluster is solved with the {@link SparseLAPSolver}.
+ * Reference tracks that are not paired with a candidate track are paired with
+ * a dummy track.
+ * 
+ * @author Jean-Yves Tinevez
+ */
+public class TrackStoreMatcher
+{
+
+	private final SPTTrackStore refs;
+
+	private final SPTTrackStore candidates;
+
+	/**
+	 * @param refs
+	 *            the reference tracks.
+	 * @param candidates
+	 *            the candidate tracks.
+	 */
+	public TrackStoreMatcher( final SPTTrackStore refs, final SPTTrackStore candidates )
+	{
+		this.refs = refs;
+		this.candidates = candidates;
+	}
+
+	/**
+	 * Compute the best pairing.
+	 * 
+	 * @param maxDist
+	 *            maximum Euclidian distance between two detections (gate)
+	 * @param distType
+	 *            type of distance that is used for computing the costs of
+	 *            association
+	 * @return for each reference track, the index of the candidate track it
+	 *         is paired with, or -1 if it is paired with a dummy track.
+	 * @throws Exception
+	 *             if the assignment cannot be computed.
+	 */
+	public int[] pairTracks( final double maxDist, final DistanceTypes distType ) throws Exception
+	{
+		final int nRefs = refs.numTracks();
+
+		/*
+		 * Feasible pairs. For each reference track, the candidate tracks that
+		 * match it, followed by a dummy track (-1).
+		 */
+		final CandidateDetectionIndex index = new CandidateDetectionIndex( candidates, maxDist );
+		final int[][] feasible = new int[ nRefs ][];
+		final double[][] costs = new double[ nRefs ][];
+		IntStream.range( 0, nRefs ).parallel().forEach( r -> {
+			final int[] cands = index.getCandidates( refs, r );
+			final int[] pairs = new int[ cands.length + 1 ];
+			final double[] pairCosts = new double[ cands.length + 1 ];
+			int n = 0;
+			for ( final int c : cands )
+			{
+				final TrackToTrackDistance distance = new TrackToTrackDistance( refs, r, candidates, c, distType, maxDist );
+				if ( distance.isMatching )
+				{
+					pairs[ n ] = c;
+					pairCosts[ n ] = distance.distance;
+					n++;
+				}
+			}
+			pairs[ n ] = -1;
+			pairCosts[ n ] = new TrackToTrackDistance( refs, r, null, -1, distType, maxDist ).distance;
+			n++;
+			feasible[ r ] = Arrays.copyOf( pairs, n );
+			costs[ r ] = Arrays.copyOf( pairCosts, n );
+		} );
+
+		return solve( candidates.numTracks(), feasible, costs );
+	}
+
+	/**
+	 * Compute the best pairing with the Euclidian distance, using the
+	 * detection distances of a cache. The result is the same as
+	 * {@link #pairTracks(double, DistanceTypes)} with the gate of the cache,
+	 * but no detection distance is computed.
+	 * 
+	 * @param cache
+	 *            the detection distances between the reference tracks of this
+	 *            matcher and the detections of the candidate tracks.
+	 * @return for each reference track, the index of the candidate track it
+	 *         is paired with, or -1 if it is paired with a dummy track.
+	 * @throws IllegalArgumentException
+	 *             if the cache was not computed for the reference tracks of
+	 *             this matcher, or if it does not contain a real detection of
+	 *             the candidate tracks.
+	 * @throws Exception
+	 *             if the assignment cannot be computed.
+	 */
+	public int[] pairTracks( final DetectionDistanceCache cache ) throws Exception
+	{
+		if ( cache.getReferences() != refs )
+			throw new IllegalArgumentException( "The distance cache was computed for other reference tracks." );
+		final double maxDist = cache.getGate();
+		final int[] trackOf = trackOf( cache, candidates );
+
+		final int nRefs = refs.numTracks();
+		final int[][] feasible = new int[ nRefs ][];
+		final double[][] costs = new double[ nRefs ][];
+		IntStream.range( 0, nRefs ).parallel().forEach( r -> {
+			/*
+			 * Matching detections of this reference track, sorted by
+			 * candidate track then by frame.
+			 */
+			final int firstEntry = cache.rowStart( refs.start( r ) );
+			final int lastEntry = cache.rowStart( refs.end( r ) );
+			final long[] keys = new long[ lastEntry - firstEntry ];
+			int n = 0;
+			for ( int e = firstEntry; e < lastEntry; e++ )
+			{
+				final int c = trackOf[ cache.candidate( e ) ];
+				if ( c >= 0 )
+					keys[ n++ ] = ( ( long ) c << 32 ) | e;
+			}
+			Arrays.sort( keys, 0, n );
+
+			final int[] pairs = new int[ n + 1 ];
+			final double[] pairCosts = new double[ n + 1 ];
+			int nPairs = 0;
+			final int t0_1 = refs.firstFrame( r );
+			final int tend_1 = refs.lastFrame( r );
+			for ( int k = 0; k < n; )
+			{
+				final int c = ( int ) ( keys[ k ] >>> 32 );
+				final int t0_2 = candidates.firstFrame( c );
+				final int tend_2 = candidates.lastFrame( c );
+				final int firstT = Math.max( t0_1, t0_2 );
+				final int endT = Math.min( tend_1, tend_2 );
+
+				// Same summation order as in TrackToTrackDistance.
+				double distance = maxDist * ( Math.abs( t0_2 - t0_1 ) + Math.abs( tend_2 - tend_1 ) );
+				for ( int t = firstT; t <= endT; t++ )
+				{
+					if ( k < n && ( keys[ k ] >>> 32 ) == c && cache.frame( cache.candidate( ( int ) keys[ k ] ) ) == t )
+					{
+						distance += cache.distance( ( int ) keys[ k ] );
+						k++;
+					}
+					else
+					{
+						distance += maxDist;
+					}
+				}
+				pairs[ nPairs ] = c;
+				pairCosts[ nPairs ] = distance;
+				nPairs++;
+			}
+			pairs[ nPairs ] = -1;
+			pairCosts[ nPairs ] = new TrackToTrackDistance( refs, r, null, -1, DistanceTypes.DISTANCE_EUCLIDIAN, maxDist ).distance;
+			nPairs++;
+			feasible[ r ] = Arrays.copyOf( pairs, nPairs );
+			costs[ r ] = Arrays.copyOf( pairCosts, nPairs );
+		} );
+
+		return solve( candidates.numTracks(), feasible, costs );
+	}
+
+	/**
+	 * Returns the candidate track of each candidate detection of a cache, or
+	 * -1 for the detections that are not in a candidate track.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the cache does not contain a real detection of the
+	 *             candidate tracks.
+	 */
+	static int[] trackOf( final DetectionDistanceCache cache, final SPTTrackStore candidates ) throws IllegalArgumentException
+	{
+		final int[] trackOf = new int[ cache.numCandidateDetections() ];
+		Arrays.fill( trackOf, -1 );
+		for ( int c = 0; c < candidates.numTracks(); c++ )
+		{
+			for ( int d = candidates.start( c ); d < candidates.end( c ); d++ )
+			{
+				if ( candidates.isVirtual( d ) )
+					continue;
+				final int i = cache.indexOf( candidates.detectionId( d ) );
+				if ( i < 0 )
+					throw new IllegalArgumentException( "The candidate detection with id " + candidates.detectionId( d ) + " is not in the distance cache." );
+				trackOf[ i ] = c;
+			}
+		}
+		return trackOf;
+	}
+
+	/**
+	 * Computes the best assignment of reference tracks to candidate tracks or
+	 * to dummy tracks, from the feasible pairs of each reference track.
+	 * 
+	 * @param nCandidates
+	 *            the number of candidate tracks.
+	 * @param feasible
+	 *            for each reference track, the indices of the candidate tracks
+	 *            it can be paired with, -1 standing for its dummy track.
+	 * @param costs
+	 *            the costs of the feasible pairs.
+	 * @return for each reference track, the index of the candidate track it
+	 *         is paired with, or -1 if it is paired with a dummy track.
+	 * @throws Exception
+	 *             if the assignment cannot be computed.
+	 */
+	static int[] solve( final int nCandidates, final int[][] feasible, final double[][] costs ) throws Exception
+	{
+		final int nRefs = feasible.length;
+
+		/*
+		 * Clusters: reference tracks that share a candidate track, directly
+		 * or not.
+		 */
+		final int[] parent = new int[ nRefs ];
+		for ( int r = 0; r < nRefs; r++ )
+			parent[ r ] = r;
+		final int[] firstRef = new int[ nCandidates ];
+		Arrays.fill( firstRef, -1 );
+		for ( int r = 0; r < nRefs; r++ )
+		{
+			for ( final int c : feasible[ r ] )
+			{
+				if ( c < 0 )
+					continue;
+				if ( firstRef[ c ] < 0 )
+					firstRef[ c ] = r;
+				else
+					OneToOneMatcher.union( parent, firstRef[ c ], r );
+			}
+		}
+
+		// cluster members, in the order of their first reference track
+		final int[] clusterOf = new int[ nRefs ];
+		final int[] clusterOfRoot = new int[ nRefs ];
+		Arrays.fill( clusterOfRoot, -1 );
+		int nClusters = 0;
+		for ( int r = 0; r < nRefs; r++ )
+		{
+			final int root = OneToOneMatcher.find( parent, r );
+			if ( clusterOfRoot[ root ] < 0 )
+				clusterOfRoot[ root ] = nClusters++;
+			clusterOf[ r ] = clusterOfRoot[ root ];
+		}
+		final int[] clusterStart = new int[ nClusters + 1 ];
+		for ( int r = 0; r < nRefs; r++ )
+			clusterStart[ clusterOf[ r ] + 1 ]++;
+		for ( int k = 0; k < nClusters; k++ )
+			clusterStart[ k + 1 ] += clusterStart[ k ];
+		final int[] members = new int[ nRefs ];
+		final int[] fill = Arrays.copyOf( clusterStart, nClusters );
+		for ( int r = 0; r < nRefs; r++ )
+			members[ fill[ clusterOf[ r ] ]++ ] = r;
+
+		/*
+		 * Solve clusters in parallel. Clusters do not share candidate tracks,
+		 * so they can write their results and their local column indices in
+		 * the same arrays.
+		 */
+		final int[] paired = new int[ nRefs ];
+		final int[] localColumn = new int[ nCandidates ];
+		final Exception[] error = new Exception[ 1 ];
+		IntStream.range( 0, nClusters ).parallel().forEach( k -> {
+			try
+			{
+				solveCluster( members, clusterStart[ k ], clusterStart[ k + 1 ], feasible, costs, localColumn, paired );
+			}
+			catch ( final Exception e )
+			{
+				synchronized ( error )
+				{
+					if ( error[ 0 ] == null )
+						error[ 0 ] = e;
+				}
+			}
+		} );
+		if ( error[ 0 ] != null )
+			throw error[ 0 ];
+
+		return paired;
+	}
+
+	private static void solveCluster(
+			final int[] members,
+			final int from,
+			final int to,
+			final int[][] feasible,
+			final double[][] costs,
+			final int[] localColumn,
+			final int[] paired ) throws Exception
+	{
+		final int nRows = to - from;
+
+		// local indices of the candidate tracks, then one dummy per row
+		int nCands = 0;
+		int nPairs = 0;
+		for ( int i = from; i < to; i++ )
+		{
+			for ( final int c : feasible[ members[ i ] ] )
+				if ( c >= 0 )
+					localColumn[ c ] = -1;
+			nPairs += feasible[ members[ i ] ].length;
+		}
+		final int[] columnCandidate = new int[ nPairs ];
+		for ( int i = from; i < to; i++ )
+		{
+			for ( final int c : feasible[ members[ i ] ] )
+			{
+				if ( c >= 0 && localColumn[ c ] < 0 )
+				{
+					localColumn[ c ] = nCands;
+					columnCandidate[ nCands ] = c;
+					nCands++;
+				}
+			}
+		}
+
+		final int[] rowStart = new int[ nRows + 1 ];
+		final int[] cols = new int[ nPairs ];
+		final double[] pairCosts = new double[ nPairs ];
+		int e = 0;
+		for ( int row = 0; row < nRows; row++ )
+		{
+			final int r = members[ from + row ];
+			rowStart[ row ] = e;
+			for ( int j = 0; j < feasible[ r ].length; j++ )
+			{
+				final int c = feasible[ r ][ j ];
+				cols[ e ] = ( c >= 0 ) ? localColumn[ c ] : nCands + row;
+				pairCosts[ e ] = costs[ r ][ j ];
+				e++;
+			}
+		}
+		rowStart[ nRows ] = e;
+
+		final int[] solution = new SparseLAPSolver( nRows, nCands + nRows, rowStart, cols, pairCosts ).solve();
+		for ( int row = 0; row < nRows; row++ )
+		{
+			final int col = cols[ solution[ row ] ];
+			paired[ members[ from + row ] ] = ( col < nCands ) ? columnCandidate[ col ] : -1;
+		}
+	}
+}
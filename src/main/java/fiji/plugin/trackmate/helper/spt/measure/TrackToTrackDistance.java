@@ -34,6 +34,12 @@ public class TrackToTrackDistance
 	
 	double distance;
 
+	/** The distance computed with {@link DistanceTypes#DISTANCE_EUCLIDIAN}. */
+	double euclidianDistance;
+
+	/** The distance computed with {@link DistanceTypes#DISTANCE_MATCHING}. */
+	double matchingDistance;
+
 	boolean isMatching = false;
 
 	int firstMatchingTime = -1;
@@ -54,6 +60,11 @@ public class TrackToTrackDistance
 
 	double sumDetectionDistance = 0;
 
+	/**
+	 * Per-thread buffer for the detection distances of a track pair.
+	 */
+	private static final ThreadLocal< double[] > SCRATCH = ThreadLocal.withInitial( () -> new double[ 256 ] );
+
 	/**
 	 * Compute the distance between two tracks
 	 * 
@@ -70,18 +81,17 @@ public class TrackToTrackDistance
 	 */
 	public TrackToTrackDistance( final TrackSegment ts1, final TrackSegment ts2, final DistanceTypes distanceType, final double maxDist )
 	{
+		/*
+		 * We compute the distances of both types in the same pass, so that
+		 * they can be reused by the performance analyzer without walking
+		 * through the tracks again.
+		 */
 		if ( ts2 == null || ts2.getDetectionList().isEmpty() )
 		{
 			isMatching = false;
-			switch ( distanceType )
-			{
-			case DISTANCE_EUCLIDIAN:
-				distance = maxDist * ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
-				break;
-			case DISTANCE_MATCHING:
-				distance = ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
-				break;
-			}
+			euclidianDistance = maxDist * ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
+			matchingDistance = ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
+			distance = ( distanceType == DistanceTypes.DISTANCE_EUCLIDIAN ) ? euclidianDistance : matchingDistance;
 			numMatchingDetections = 0;
 			numNonMatchedDetections = ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
 			numWrongDetections = 0;
@@ -103,86 +113,47 @@ public class TrackToTrackDistance
 
 			final int firstT = Math.max( t0_1, t0_2 );
 			final int endT = Math.min( tend_1, tend_2 );
-			switch ( distanceType )
-			{
-			case DISTANCE_EUCLIDIAN:
+			boolean matching = false;
+			euclidianDistance = maxDist * ( Math.abs( t0_2 - t0_1 ) + Math.abs( tend_2 - tend_1 ) );
+			matchingDistance = ( Math.abs( t0_2 - t0_1 ) + Math.abs( tend_2 - tend_1 ) );
+			for ( int t = firstT; t <= endT; t++ )
 			{
-				distance = maxDist * ( Math.abs( t0_2 - t0_1 ) + Math.abs( tend_2 - tend_1 ) );
-				for ( int t = firstT; t <= endT; t++ )
+				final Detection d1 = ts1.getDetectionAtTime( t );
+				final Detection d2 = ts2.getDetectionAtTime( t );
+				final double ed = Math.sqrt( ( d1.getX() - d2.getX() ) * ( d1.getX() - d2.getX() ) + ( d1.getY() - d2.getY() ) * ( d1.getY() - d2.getY() ) + ( d1.getZ() - d2.getZ() ) * ( d1.getZ() - d2.getZ() ) );
+				if ( d2.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION && ed < maxDist )
 				{
-					final Detection d1 = ts1.getDetectionAtTime( t );
-					final Detection d2 = ts2.getDetectionAtTime( t );
-					final double ed = Math.sqrt( ( d1.getX() - d2.getX() ) * ( d1.getX() - d2.getX() ) + ( d1.getY() - d2.getY() ) * ( d1.getY() - d2.getY() ) + ( d1.getZ() - d2.getZ() ) * ( d1.getZ() - d2.getZ() ) );
-					if ( d2.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION && ed < maxDist )
+					if ( !matching )
 					{
-						if ( !isMatching )
-						{
-							firstMatchingTime = t;
-							isMatching = true;
-						}
-						lastMatchingTime = t;
-						distance += ed;
-						numMatchingDetections++;
-						// distance between detections
-						sumDetectionDistance += ed;
-						sumSquareDetectionDistance += ( ed * ed );
-						if ( ed < minDetectionDistance )
-							minDetectionDistance = ed;
-						else if ( ed > maxDetectionDistance )
-							maxDetectionDistance = ed;
-					}
-					else
-					{
-						// virtual detections are not considered as spurious
-						// detections
-						if ( d2.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION )
-							numWrongDetections++;
-						numNonMatchedDetections++;
-						distance += maxDist;
+						firstMatchingTime = t;
+						matching = true;
 					}
+					lastMatchingTime = t;
+					euclidianDistance += ed;
+					// not penalty if matching for the matching distance
+					numMatchingDetections++;
+					// distance between detections
+					sumDetectionDistance += ed;
+					sumSquareDetectionDistance += ( ed * ed );
+					if ( ed < minDetectionDistance )
+						minDetectionDistance = ed;
+					else if ( ed > maxDetectionDistance )
+						maxDetectionDistance = ed;
 				}
-				break;
-			}
-			case DISTANCE_MATCHING:
-			{
-				boolean matching = false;
-				distance = ( Math.abs( t0_2 - t0_1 ) + Math.abs( tend_2 - tend_1 ) );
-				for ( int t = firstT; t <= endT; t++ )
+				else
 				{
-					final Detection d1 = ts1.getDetectionAtTime( t );
-					final Detection d2 = ts2.getDetectionAtTime( t );
-					final double ed = Math.sqrt( ( d1.getX() - d2.getX() ) * ( d1.getX() - d2.getX() ) + ( d1.getY() - d2.getY() ) * ( d1.getY() - d2.getY() ) + ( d1.getZ() - d2.getZ() ) * ( d1.getZ() - d2.getZ() ) );
-					if ( d2.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION && ed < maxDist )
-					{
-						if ( !matching )
-						{
-							firstMatchingTime = t;
-							matching = true;
-						}
-						lastMatchingTime = t;
-						// not penalty if matching
-						numMatchingDetections++;
-						// distance between detections
-						sumDetectionDistance += ed;
-						sumSquareDetectionDistance += ( ed * ed );
-						if ( ed < minDetectionDistance )
-							minDetectionDistance = ed;
-						else if ( ed > maxDetectionDistance )
-							maxDetectionDistance = ed;
-					}
-					else
-					{
-						distance++;
-						// virtual detections are not considered as spurious
-						// detections
-						if ( d2.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION )
-							numWrongDetections++;
-						numNonMatchedDetections++;
-					}
+					// virtual detections are not considered as spurious
+					// detections
+					if ( d2.getDetectionType() == Detection.DETECTIONTYPE_REAL_DETECTION )
+						numWrongDetections++;
+					numNonMatchedDetections++;
+					euclidianDistance += maxDist;
+					matchingDistance++;
 				}
-				break;
-			}
 			}
+			// Only the Euclidian distance flags the tracks as matching.
+			isMatching = matching && distanceType == DistanceTypes.DISTANCE_EUCLIDIAN;
+			distance = ( distanceType == DistanceTypes.DISTANCE_EUCLIDIAN ) ? euclidianDistance : matchingDistance;
 		}
 		else
 		{
@@ -190,15 +161,126 @@ public class TrackToTrackDistance
 			numWrongDetections += ( ts2.getLastDetection().getT() - ts2.getFirstDetection().getT() + 1 );
 			numNonMatchedDetections += ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
 			isMatching = false;
-			switch ( distanceType )
+			euclidianDistance = maxDist * ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
+			matchingDistance = ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
+			distance = ( distanceType == DistanceTypes.DISTANCE_EUCLIDIAN ) ? euclidianDistance : matchingDistance;
+		}
+	}
+
+	/**
+	 * Compute the distance between two tracks of {@link SPTTrackStore}s.
+	 * 
+	 * @param store1
+	 *            the store of the first track
+	 * @param track1
+	 *            the index of the first track in its store
+	 * @param store2
+	 *            the store of the track with which to compare the first track.
+	 *            Can be <code>null</code> if there is no track to compare to.
+	 * @param track2
+	 *            the index of the track with which to compare the first track,
+	 *            or -1 if there is no track to compare to
+	 * @param distanceType
+	 *            the type of distance between detections that is used for the
+	 *            computation
+	 * @param maxDist
+	 *            the gate that is used for computing the distance between
+	 *            detections
+	 */
+	public TrackToTrackDistance( final SPTTrackStore store1, final int track1, final SPTTrackStore store2, final int track2, final DistanceTypes distanceType, final double maxDist )
+	{
+		final int t0_1 = store1.firstFrame( track1 );
+		final int tend_1 = store1.lastFrame( track1 );
+		if ( store2 == null || track2 < 0 )
+		{
+			isMatching = false;
+			euclidianDistance = maxDist * ( tend_1 - t0_1 + 1 );
+			matchingDistance = ( tend_1 - t0_1 + 1 );
+			distance = ( distanceType == DistanceTypes.DISTANCE_EUCLIDIAN ) ? euclidianDistance : matchingDistance;
+			numMatchingDetections = 0;
+			numNonMatchedDetections = ( tend_1 - t0_1 + 1 );
+			numWrongDetections = 0;
+			return;
+		}
+		final int t0_2 = store2.firstFrame( track2 );
+		final int tend_2 = store2.lastFrame( track2 );
+
+		// test if there is an intersection between segments
+		if ( ( t0_2 >= t0_1 && t0_2 <= tend_1 ) || ( tend_2 >= t0_1 && tend_2 <= tend_1 ) || ( t0_2 <= t0_1 && tend_2 >= tend_1 ) )
+		{
+			numWrongDetections += Math.max( 0, t0_1 - t0_2 );
+			numWrongDetections += Math.max( 0, tend_2 - tend_1 );
+
+			numNonMatchedDetections += Math.max( 0, t0_2 - t0_1 );
+			numNonMatchedDetections += Math.max( 0, tend_1 - tend_2 );
+
+			final int firstT = Math.max( t0_1, t0_2 );
+			final int endT = Math.min( tend_1, tend_2 );
+			boolean matching = false;
+			euclidianDistance = maxDist * ( Math.abs( t0_2 - t0_1 ) + Math.abs( tend_2 - tend_1 ) );
+			matchingDistance = ( Math.abs( t0_2 - t0_1 ) + Math.abs( tend_2 - tend_1 ) );
+			// detections are contiguous in the stores
+			final int d1Start = store1.detectionAtFrame( track1, firstT );
+			final int d2Start = store2.detectionAtFrame( track2, firstT );
+			final int overlap = endT - firstT + 1;
+			final double[] eds = scratch( overlap );
+			store1.distances( d1Start, store2, d2Start, overlap, maxDist, eds );
+			for ( int k = 0; k < overlap; k++ )
 			{
-			case DISTANCE_EUCLIDIAN:
-				distance = maxDist * ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
-				break;
-			case DISTANCE_MATCHING:
-				distance = ( ts1.getLastDetection().getT() - ts1.getFirstDetection().getT() + 1 );
-				break;
+				final double ed = eds[ k ];
+				final boolean real = !store2.isVirtual( d2Start + k );
+				if ( real && ed < maxDist )
+				{
+					if ( !matching )
+					{
+						firstMatchingTime = firstT + k;
+						matching = true;
+					}
+					lastMatchingTime = firstT + k;
+					euclidianDistance += ed;
+					numMatchingDetections++;
+					sumDetectionDistance += ed;
+					sumSquareDetectionDistance += ( ed * ed );
+					if ( ed < minDetectionDistance )
+						minDetectionDistance = ed;
+					else if ( ed > maxDetectionDistance )
+						maxDetectionDistance = ed;
+				}
+				else
+				{
+					// virtual detections are not considered as spurious
+					// detections
+					if ( real )
+						numWrongDetections++;
+					numNonMatchedDetections++;
+					euclidianDistance += maxDist;
+					matchingDistance++;
+				}
 			}
+			// Only the Euclidian distance flags the tracks as matching.
+			isMatching = matching && distanceType == DistanceTypes.DISTANCE_EUCLIDIAN;
+			distance = ( distanceType == DistanceTypes.DISTANCE_EUCLIDIAN ) ? euclidianDistance : matchingDistance;
+		}
+		else
+		{
+			numMatchingDetections = 0;
+			numWrongDetections += ( tend_2 - t0_2 + 1 );
+			numNonMatchedDetections += ( tend_1 - t0_1 + 1 );
+			isMatching = false;
+			euclidianDistance = maxDist * ( tend_1 - t0_1 + 1 );
+			matchingDistance = ( tend_1 - t0_1 + 1 );
+			distance = ( distanceType == DistanceTypes.DISTANCE_EUCLIDIAN ) ? euclidianDistance : matchingDistance;
+		}
+	}
+
+	private static double[] scratch( final int n )
+	{
+		double[] buffer = SCRATCH.get();
+		if ( buffer.length < n )
+		{
+			buffer = new double[ Math.max( n, 2 * buffer.length ) ];
+			SCRATCH.set( buffer );
 		}
+		return buffer;
 	}
 }
@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.importer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.helper.spt.measure.Detection;
+import fiji.plugin.trackmate.helper.spt.measure.SPTTrackStore;
+import fiji.plugin.trackmate.helper.spt.measure.TrackSegment;
+
+/**
+ * Checks that the streaming reader of ISBI'2012 track files gives the same
+ * tracks as the DOM reader.
+ */
+public class SPTFormatImporterTest
+{
+
+	/**
+	 * A 2D file: the detections have no <code>z</code> attribute, and the
+	 * second track has a gap at frame 2.
+	 */
+	private static final String XML_2D = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<root>\n"
+			+ "<TrackContestISBI2012 SNR=\"4\" density=\"low\" scenario=\"VESICLE\">\n"
+			+ "<particle>\n"
+			+ "<detection t=\"0\" x=\"1.5\" y=\"2.5\"/>\n"
+			+ "<detection t=\"1\" x=\"2\" y=\"3\"/>\n"
+			+ "</particle>\n"
+			+ "<particle>\n"
+			+ "<detection t=\"1\" x=\"10\" y=\"20\"/>\n"
+			+ "<detection t=\"3\" x=\"12\" y=\"24\"/>\n"
+			+ "</particle>\n"
+			+ "</TrackContestISBI2012>\n"
+			+ "</root>\n";
+
+	@Test
+	public void testRead2D()
+	{
+		final SPTTrackStore store = SPTFormatImporter.storeFromXML( new ByteArrayInputStream( XML_2D.getBytes( StandardCharsets.UTF_8 ) ) );
+		assertEquals( 2, store.numTracks() );
+
+		assertEquals( 0, store.firstFrame( 0 ) );
+		assertEquals( 1, store.lastFrame( 0 ) );
+		final int d0 = store.start( 0 );
+		assertEquals( 1.5, store.x( d0 ), 0. );
+		assertEquals( 2.5, store.y( d0 ), 0. );
+		assertEquals( 0., store.z( d0 ), 0. );
+
+		assertEquals( 1, store.firstFrame( 1 ) );
+		assertEquals( 3, store.lastFrame( 1 ) );
+		assertEquals( 3, store.length( 1 ) );
+		final int gap = store.detectionAtFrame( 1, 2 );
+		assertTrue( store.isVirtual( gap ) );
+		assertEquals( 11., store.x( gap ), 1e-12 );
+		assertEquals( 22., store.y( gap ), 1e-12 );
+		assertEquals( 0., store.z( gap ), 0. );
+		assertFalse( store.isVirtual( store.detectionAtFrame( 1, 3 ) ) );
+	}
+
+	@Test
+	public void testSameAsDOMReader() throws IOException
+	{
+		final File file = File.createTempFile( "SPTFormatImporterTest", ".xml" );
+		try
+		{
+			Files.write( file.toPath(), XML_2D.getBytes( StandardCharsets.UTF_8 ) );
+			final List< TrackSegment > expected = SPTFormatImporter.fromXML( file );
+			final SPTTrackStore store = SPTFormatImporter.storeFromXML( file );
+
+			assertEquals( expected.size(), store.numTracks() );
+			for ( int r = 0; r < expected.size(); r++ )
+			{
+				final List< Detection > detections = expected.get( r ).getDetectionList();
+				assertEquals( detections.size(), store.length( r ) );
+				for ( int k = 0; k < detections.size(); k++ )
+				{
+					final Detection detection = detections.get( k );
+					final int d = store.start( r ) + k;
+					assertEquals( detection.getT(), store.frame( r, d ) );
+					assertEquals( detection.getX(), store.x( d ), 1e-12 );
+					assertEquals( detection.getY(), store.y( d ), 1e-12 );
+					assertEquals( detection.getZ(), store.z( d ), 0. );
+					assertEquals( detection.getDetectionType() == Detection.DETECTIONTYPE_VIRTUAL_DETECTION, store.isVirtual( d ) );
+				}
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testMissingFrame()
+	{
+		final String xml = "<root><TrackContestISBI2012><particle><detection x=\"1\" y=\"2\"/></particle></TrackContestISBI2012></root>";
+		SPTFormatImporter.storeFromXML( new ByteArrayInputStream( xml.getBytes( StandardCharsets.UTF_8 ) ) );
+	}
+}
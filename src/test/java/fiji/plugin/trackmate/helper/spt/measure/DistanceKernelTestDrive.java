@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import java.util.Random;
+
+/**
+ * Compares the detection distance kernel of {@link SPTTrackStore} with the
+ * scalar loop it replaced, on random track pairs. Checks that the distances
+ * within the gate are the same, then prints the time taken by both.
+ */
+public class DistanceKernelTestDrive
+{
+
+	private static final int N_TRACKS = 200;
+
+	private static final int TRACK_LENGTH = 500;
+
+	private static final int N_ROUNDS = 20;
+
+	public static void main( final String[] args )
+	{
+		final Random ran = new Random( 1l );
+		final SPTTrackStore refs = randomTracks( ran );
+		final SPTTrackStore candidates = randomTracks( ran );
+		final double maxDist = 2.;
+
+		final double[] out = new double[ TRACK_LENGTH ];
+		for ( int r = 0; r < N_TRACKS; r++ )
+		{
+			refs.distances( refs.start( r ), candidates, candidates.start( r ), TRACK_LENGTH, maxDist, out );
+			for ( int k = 0; k < TRACK_LENGTH; k++ )
+			{
+				final double expected = scalarDistance( refs, refs.start( r ) + k, candidates, candidates.start( r ) + k );
+				if ( expected < maxDist && Double.doubleToLongBits( expected ) != Double.doubleToLongBits( out[ k ] )
+						|| expected >= maxDist && out[ k ] < maxDist )
+					throw new IllegalStateException( "Distance mismatch for track " + r + " at detection " + k + ": " + expected + " vs " + out[ k ] );
+			}
+		}
+		System.out.println( "Kernel and scalar distances are identical within the gate." );
+
+		for ( int round = 0; round < N_ROUNDS; round++ )
+		{
+			long start = System.nanoTime();
+			double scalarSum = 0.;
+			for ( int r = 0; r < N_TRACKS; r++ )
+				for ( int c = 0; c < N_TRACKS; c++ )
+					scalarSum += scalarPairDistance( refs, r, candidates, c, maxDist );
+			final long scalarTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			double kernelSum = 0.;
+			for ( int r = 0; r < N_TRACKS; r++ )
+				for ( int c = 0; c < N_TRACKS; c++ )
+					kernelSum += kernelPairDistance( refs, r, candidates, c, maxDist, out );
+			final long kernelTime = System.nanoTime() - start;
+
+			System.out.println( String.format( "Round %2d - scalar: %6.1f ms, kernel: %6.1f ms, same result: %b",
+					round, scalarTime / 1e6, kernelTime / 1e6, scalarSum == kernelSum ) );
+		}
+	}
+
+	/**
+	 * The scalar loop of {@link TrackToTrackDistance} before the kernel, for
+	 * tracks spanning the same frames.
+	 */
+	private static double scalarPairDistance( final SPTTrackStore refs, final int r, final SPTTrackStore candidates, final int c, final double maxDist )
+	{
+		double distance = 0.;
+		for ( int k = 0; k < refs.length( r ); k++ )
+		{
+			final int d1 = refs.start( r ) + k;
+			final int d2 = candidates.start( c ) + k;
+			final double ed = scalarDistance( refs, d1, candidates, d2 );
+			if ( !candidates.isVirtual( d2 ) && ed < maxDist )
+				distance += ed;
+			else
+				distance += maxDist;
+		}
+		return distance;
+	}
+
+	/**
+	 * The same loop, with the distances computed first by the kernel.
+	 */
+	private static double kernelPairDistance( final SPTTrackStore refs, final int r, final SPTTrackStore candidates, final int c, final double maxDist, final double[] eds )
+	{
+		final int n = refs.length( r );
+		refs.distances( refs.start( r ), candidates, candidates.start( c ), n, maxDist, eds );
+		double distance = 0.;
+		for ( int k = 0; k < n; k++ )
+		{
+			final double ed = eds[ k ];
+			if ( !candidates.isVirtual( candidates.start( c ) + k ) && ed < maxDist )
+				distance += ed;
+			else
+				distance += maxDist;
+		}
+		return distance;
+	}
+
+	private static double scalarDistance( final SPTTrackStore store1, final int d1, final SPTTrackStore store2, final int d2 )
+	{
+		final double dx = store1.x( d1 ) - store2.x( d2 );
+		final double dy = store1.y( d1 ) - store2.y( d2 );
+		final double dz = store1.z( d1 ) - store2.z( d2 );
+		return Math.sqrt( dx * dx + dy * dy + dz * dz );
+	}
+
+	private static SPTTrackStore randomTracks( final Random ran )
+	{
+		final SPTTrackStore.Builder builder = new SPTTrackStore.Builder( N_TRACKS, N_TRACKS * TRACK_LENGTH );
+		for ( int r = 0; r < N_TRACKS; r++ )
+		{
+			double x = 100. * ran.nextDouble();
+			double y = 100. * ran.nextDouble();
+			for ( int t = 0; t < TRACK_LENGTH; t++ )
+			{
+				x += ran.nextGaussian();
+				y += ran.nextGaussian();
+				builder.addDetection( t, x, y, 0., ran.nextInt( 10 ) == 0 );
+			}
+			builder.endTrack( r );
+		}
+		return builder.build();
+	}
+}
@@ -0,0 +1,242 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.helper.spt.ISBIScoring;
+
+/**
+ * Checks that the scores computed by {@link MultiGateScorer} for several gates
+ * at once, with or without a {@link DetectionDistanceCache}, are the scores
+ * computed by {@link ISBIScoring} one gate at a time.
+ */
+public class MultiGateScorerTest
+{
+
+	private static final int N_FRAMES = 50;
+
+	private static final double SIZE = 40.;
+
+	private static final double[] GATES = new double[] { 3., 1., 5., 2.5, 0.5 };
+
+	@Test
+	public void testSameScoresAsOneGateAtATime() throws Exception
+	{
+		for ( long seed = 1; seed <= 5; seed++ )
+		{
+			final Random ran = new Random( seed );
+			final SPTTrackStore refs = references( ran, 30 );
+			final SPTTrackStore candidates = candidates( ran, refs, 10 );
+
+			final MultiGateScorer scorer = new MultiGateScorer( refs, candidates, GATES );
+			for ( final DistanceTypes distType : DistanceTypes.values() )
+			{
+				final double[][] scores = scorer.getScores( distType );
+				assertEquals( GATES.length, scores.length );
+				for ( int g = 0; g < GATES.length; g++ )
+				{
+					final double[] expected = ISBIScoring.score( refs, candidates, GATES[ g ], distType );
+					assertScoresEqual( "seed " + seed + ", " + distType + ", gate " + GATES[ g ], expected, scores[ g ] );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSameScoresWithDistanceCache() throws Exception
+	{
+		for ( long seed = 1; seed <= 5; seed++ )
+		{
+			final Random ran = new Random( seed );
+			final SPTTrackStore refs = references( ran, 30 );
+			final SPTTrackStore candidates = withIds( candidates( ran, refs, 10 ) );
+
+			// The cache can be computed for a larger gate than the largest one.
+			for ( final double cacheGate : new double[] { 5., 7. } )
+			{
+				final MultiGateScorer scorer = new MultiGateScorer( cache( refs, candidates, cacheGate ), candidates, GATES );
+				for ( final DistanceTypes distType : DistanceTypes.values() )
+				{
+					final double[][] scores = scorer.getScores( distType );
+					for ( int g = 0; g < GATES.length; g++ )
+					{
+						final double[] expected = ISBIScoring.score( refs, candidates, GATES[ g ], distType );
+						assertScoresEqual( "seed " + seed + ", cache gate " + cacheGate + ", " + distType + ", gate " + GATES[ g ], expected, scores[ g ] );
+					}
+				}
+			}
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testGateLargerThanCache() throws Exception
+	{
+		final Random ran = new Random( 1l );
+		final SPTTrackStore refs = references( ran, 5 );
+		final SPTTrackStore candidates = withIds( candidates( ran, refs, 2 ) );
+		new MultiGateScorer( cache( refs, candidates, 2. ), candidates, GATES );
+	}
+
+	@Test
+	public void testNoCandidate() throws Exception
+	{
+		final SPTTrackStore refs = references( new Random( 1l ), 5 );
+		final SPTTrackStore candidates = new SPTTrackStore.Builder().build();
+		final double[][] scores = new MultiGateScorer( refs, candidates, GATES ).getScores( DistanceTypes.DISTANCE_EUCLIDIAN );
+		for ( int g = 0; g < GATES.length; g++ )
+			assertScoresEqual( "gate " + GATES[ g ], ISBIScoring.score( refs, candidates, GATES[ g ], DistanceTypes.DISTANCE_EUCLIDIAN ), scores[ g ] );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testInvalidGate() throws Exception
+	{
+		final SPTTrackStore refs = references( new Random( 1l ), 5 );
+		new MultiGateScorer( refs, refs, new double[] { 1., 0. } );
+	}
+
+	private static void assertScoresEqual( final String message, final double[] expected, final double[] actual )
+	{
+		assertEquals( message, expected.length, actual.length );
+		for ( int i = 0; i < expected.length; i++ )
+			assertEquals( message + ", score " + i, expected[ i ], actual[ i ], 1e-9 * Math.max( 1., Math.abs( expected[ i ] ) ) );
+	}
+
+	/**
+	 * Returns a copy of a candidate store in which each real detection has an
+	 * id, its index among the real detections.
+	 */
+	private static SPTTrackStore withIds( final SPTTrackStore candidates )
+	{
+		final SPTTrackStore.Builder builder = new SPTTrackStore.Builder();
+		int id = 0;
+		for ( int c = 0; c < candidates.numTracks(); c++ )
+		{
+			for ( int d = candidates.start( c ); d < candidates.end( c ); d++ )
+				if ( !candidates.isVirtual( d ) )
+					builder.addDetection( candidates.frame( c, d ), candidates.x( d ), candidates.y( d ), candidates.z( d ), id++ );
+			builder.endTrack( -1 );
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the distance cache of the real detections of a candidate store
+	 * built with {@link #withIds(SPTTrackStore)}.
+	 */
+	private static DetectionDistanceCache cache( final SPTTrackStore refs, final SPTTrackStore candidates, final double gate )
+	{
+		final int n = candidates.numDetections();
+		final int[] ids = new int[ n ];
+		final int[] frames = new int[ n ];
+		final double[] x = new double[ n ];
+		final double[] y = new double[ n ];
+		final double[] z = new double[ n ];
+		int i = 0;
+		for ( int c = 0; c < candidates.numTracks(); c++ )
+		{
+			for ( int d = candidates.start( c ); d < candidates.end( c ); d++ )
+			{
+				if ( candidates.isVirtual( d ) )
+					continue;
+				ids[ i ] = candidates.detectionId( d );
+				frames[ i ] = candidates.frame( c, d );
+				x[ i ] = candidates.x( d );
+				y[ i ] = candidates.y( d );
+				z[ i ] = candidates.z( d );
+				i++;
+			}
+		}
+		return new DetectionDistanceCache( refs, gate,
+				Arrays.copyOf( ids, i ),
+				Arrays.copyOf( frames, i ),
+				Arrays.copyOf( x, i ),
+				Arrays.copyOf( y, i ),
+				Arrays.copyOf( z, i ) );
+	}
+
+	/**
+	 * Random walks in 2D.
+	 */
+	private static SPTTrackStore references( final Random ran, final int nTracks )
+	{
+		final SPTTrackStore.Builder builder = new SPTTrackStore.Builder();
+		for ( int r = 0; r < nTracks; r++ )
+		{
+			final int first = ran.nextInt( N_FRAMES / 2 );
+			final int last = first + 5 + ran.nextInt( N_FRAMES / 2 );
+			double x = SIZE * ran.nextDouble();
+			double y = SIZE * ran.nextDouble();
+			for ( int t = first; t <= last; t++ )
+			{
+				builder.addDetection( t, x, y, 0. );
+				x += ran.nextGaussian();
+				y += ran.nextGaussian();
+			}
+			builder.endTrack( r );
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Noisy copies of the reference tracks, with missing detections, broken
+	 * tracks and spurious tracks.
+	 */
+	private static SPTTrackStore candidates( final Random ran, final SPTTrackStore refs, final int nSpurious )
+	{
+		final SPTTrackStore.Builder builder = new SPTTrackStore.Builder();
+		for ( int r = 0; r < refs.numTracks(); r++ )
+		{
+			if ( ran.nextDouble() < 0.1 )
+				continue;
+
+			final double noise = 0.2 + 2. * ran.nextDouble();
+			final int breakAt = ( ran.nextDouble() < 0.3 ) ? refs.start( r ) + ran.nextInt( refs.length( r ) ) : -1;
+			for ( int d = refs.start( r ); d < refs.end( r ); d++ )
+			{
+				if ( d == breakAt )
+					builder.endTrack( -1 );
+				if ( ran.nextDouble() < 0.1 )
+					continue;
+				builder.addDetection( refs.frame( r, d ),
+						refs.x( d ) + noise * ran.nextGaussian(),
+						refs.y( d ) + noise * ran.nextGaussian(),
+						0. );
+			}
+			builder.endTrack( -1 );
+		}
+
+		final SPTTrackStore spurious = references( ran, nSpurious );
+		for ( int r = 0; r < spurious.numTracks(); r++ )
+		{
+			for ( int d = spurious.start( r ); d < spurious.end( r ); d++ )
+				builder.addDetection( spurious.frame( r, d ), spurious.x( d ), spurious.y( d ), 0. );
+			builder.endTrack( -1 );
+		}
+		return builder.build();
+	}
+}
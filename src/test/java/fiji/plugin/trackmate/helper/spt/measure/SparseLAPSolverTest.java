@@ -0,0 +1,266 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the {@link SparseLAPSolver} with the dense Hungarian solver
+ * {@link HungarianMatchingNew} on random sparse cost matrices.
+ */
+public class SparseLAPSolverTest
+{
+
+	/**
+	 * Cost of the forbidden pairs for the dense solver, larger than the sum of
+	 * all the allowed costs.
+	 */
+	private static final double FORBIDDEN = 1e6;
+
+	@Test
+	public void testSameCostAsDenseSolver() throws Exception
+	{
+		final Random ran = new Random( 1l );
+		int nFeasible = 0;
+		int nInfeasible = 0;
+		for ( int i = 0; i < 500; i++ )
+		{
+			final int numRow = 1 + ran.nextInt( 20 );
+			final int numCol = numRow + ran.nextInt( 10 );
+			final double density = 0.05 + 0.5 * ran.nextDouble();
+			final Problem problem = new Problem( ran, numRow, numCol, density );
+
+			final boolean[][] matching = new HungarianMatchingNew( problem.dense() ).compute();
+			double expected = 0.;
+			boolean feasible = true;
+			for ( int r = 0; r < numRow; r++ )
+			{
+				final int c = assignedColumn( matching[ r ] );
+				final int e = problem.pair( r, c );
+				if ( e < 0 )
+					feasible = false;
+				else
+					expected += problem.costs[ e ];
+			}
+
+			if ( feasible )
+			{
+				nFeasible++;
+				final int[] solution = problem.solver().solve();
+				assertEquals( "problem " + i, expected, problem.totalCost( solution ), 1e-9 );
+			}
+			else
+			{
+				nInfeasible++;
+				assertInfeasible( "problem " + i, problem );
+			}
+		}
+		// The random problems must cover both cases.
+		assertTrue( nFeasible > 50 );
+		assertTrue( nInfeasible > 50 );
+	}
+
+	@Test
+	public void testSquare() throws Exception
+	{
+		// Greedy on the first row would pick column 0.
+		final SparseLAPSolver solver = new SparseLAPSolver( 2, 2,
+				new int[] { 0, 2, 3 },
+				new int[] { 0, 1, 0 },
+				new double[] { 1., 2., 1. } );
+		assertArrayEquals( new int[] { 1, 2 }, solver.solve() );
+	}
+
+	@Test
+	public void testRectangular() throws Exception
+	{
+		final SparseLAPSolver solver = new SparseLAPSolver( 2, 4,
+				new int[] { 0, 3, 5 },
+				new int[] { 0, 2, 3, 2, 3 },
+				new double[] { 5., 1., 2., 1., 3. } );
+		// Row 0 takes column 3 so that row 1 can take column 2.
+		assertArrayEquals( new int[] { 2, 3 }, solver.solve() );
+	}
+
+	@Test
+	public void testRowWithoutPair()
+	{
+		final Problem problem = new Problem( 2, 3,
+				new int[] { 0, 2, 2 },
+				new int[] { 0, 1 },
+				new double[] { 1., 1. } );
+		assertInfeasible( "row without pair", problem );
+	}
+
+	@Test
+	public void testTooFewColumns()
+	{
+		// Three rows that can only use two columns.
+		final Problem problem = new Problem( 3, 5,
+				new int[] { 0, 2, 4, 6 },
+				new int[] { 0, 1, 0, 1, 1, 0 },
+				new double[] { 1., 2., 3., 4., 5., 6. } );
+		assertInfeasible( "too few columns", problem );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testMoreRowsThanColumns()
+	{
+		new SparseLAPSolver( 3, 2, new int[] { 0, 1, 2, 3 }, new int[] { 0, 1, 0 }, new double[] { 1., 1., 1. } );
+	}
+
+	private static void assertInfeasible( final String message, final Problem problem )
+	{
+		try
+		{
+			problem.solver().solve();
+			fail( message + ": expected no assignment." );
+		}
+		catch ( final Exception e )
+		{
+			// Expected.
+		}
+	}
+
+	private static int assignedColumn( final boolean[] row )
+	{
+		int col = -1;
+		for ( int c = 0; c < row.length; c++ )
+		{
+			if ( row[ c ] )
+			{
+				assertEquals( -1, col );
+				col = c;
+			}
+		}
+		return col;
+	}
+
+	/**
+	 * A sparse assignment problem, in the CSR layout of the
+	 * {@link SparseLAPSolver}.
+	 */
+	private static final class Problem
+	{
+
+		private final int numRow;
+
+		private final int numCol;
+
+		private final int[] rowStart;
+
+		private final int[] cols;
+
+		private final double[] costs;
+
+		private Problem( final int numRow, final int numCol, final int[] rowStart, final int[] cols, final double[] costs )
+		{
+			this.numRow = numRow;
+			this.numCol = numCol;
+			this.rowStart = rowStart;
+			this.cols = cols;
+			this.costs = costs;
+		}
+
+		private Problem( final Random ran, final int numRow, final int numCol, final double density )
+		{
+			this.numRow = numRow;
+			this.numCol = numCol;
+			this.rowStart = new int[ numRow + 1 ];
+			final int[] c = new int[ numRow * numCol ];
+			final double[] w = new double[ numRow * numCol ];
+			int n = 0;
+			for ( int r = 0; r < numRow; r++ )
+			{
+				for ( int col = 0; col < numCol; col++ )
+				{
+					if ( ran.nextDouble() < density )
+					{
+						c[ n ] = col;
+						w[ n ] = 10. * ran.nextDouble();
+						n++;
+					}
+				}
+				rowStart[ r + 1 ] = n;
+			}
+			this.cols = Arrays.copyOf( c, n );
+			this.costs = Arrays.copyOf( w, n );
+		}
+
+		private SparseLAPSolver solver()
+		{
+			return new SparseLAPSolver( numRow, numCol, rowStart, cols, costs );
+		}
+
+		private double[][] dense()
+		{
+			final double[][] dense = new double[ numRow ][ numCol ];
+			for ( int r = 0; r < numRow; r++ )
+			{
+				Arrays.fill( dense[ r ], FORBIDDEN );
+				for ( int e = rowStart[ r ]; e < rowStart[ r + 1 ]; e++ )
+					dense[ r ][ cols[ e ] ] = costs[ e ];
+			}
+			return dense;
+		}
+
+		/**
+		 * Returns the allowed pair of a row and a column, or -1.
+		 */
+		private int pair( final int row, final int col )
+		{
+			for ( int e = rowStart[ row ]; e < rowStart[ row + 1 ]; e++ )
+				if ( cols[ e ] == col )
+					return e;
+			return -1;
+		}
+
+		/**
+		 * Checks that a solution of the sparse solver is a valid assignment,
+		 * and returns its cost.
+		 */
+		private double totalCost( final int[] solution )
+		{
+			assertEquals( numRow, solution.length );
+			final boolean[] used = new boolean[ numCol ];
+			double cost = 0.;
+			for ( int r = 0; r < numRow; r++ )
+			{
+				final int e = solution[ r ];
+				assertTrue( e >= rowStart[ r ] && e < rowStart[ r + 1 ] );
+				assertFalse( used[ cols[ e ] ] );
+				used[ cols[ e ] ] = true;
+				cost += costs[ e ];
+			}
+			return cost;
+		}
+	}
+}
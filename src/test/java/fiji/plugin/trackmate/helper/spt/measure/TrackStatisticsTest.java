@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the MSDs computed by {@link TrackStatistics} are the MSDs
+ * computed with the direct sum over all the pairs of detections of a track,
+ * for tracks shorter and longer than the length above which the FFT is used.
+ */
+public class TrackStatisticsTest
+{
+
+	private static final int[] LENGTHS = new int[] { 2, 5, 40, 63, 64, 65, 100, 257, 600 };
+
+	@Test
+	public void testSameAsDirectSum2D() throws Exception
+	{
+		for ( long seed = 1; seed <= 3; seed++ )
+		{
+			final SPTTrackStore store = tracks( new Random( seed ), false );
+			assertMSDsEqual( "2D, seed " + seed, directMSDs( store ), TrackStatistics.msds( store ) );
+		}
+	}
+
+	@Test
+	public void testSameAsDirectSum3D() throws Exception
+	{
+		for ( long seed = 1; seed <= 3; seed++ )
+		{
+			final SPTTrackStore store = tracks( new Random( seed ), true );
+			assertMSDsEqual( "3D, seed " + seed, directMSDs( store ), TrackStatistics.msds( store ) );
+		}
+	}
+
+	@Test
+	public void testSingleLongTrack() throws Exception
+	{
+		// Far from the origin, with a drift, to exercise round-off errors.
+		final Random ran = new Random( 1l );
+		final SPTTrackStore.Builder builder = new SPTTrackStore.Builder();
+		double x = 1e4;
+		double y = -1e4;
+		int t = 0;
+		for ( int i = 0; i < 300; i++ )
+		{
+			builder.addDetection( t, x, y, 0. );
+			x += 0.5 + ran.nextGaussian();
+			y += ran.nextGaussian();
+			t += ( ran.nextDouble() < 0.1 ) ? 2 + ran.nextInt( 3 ) : 1;
+		}
+		builder.endTrack( 0 );
+		final SPTTrackStore store = builder.build();
+		assertTrue( store.length( 0 ) > 300 );
+		assertMSDsEqual( "single track", directMSDs( store ), TrackStatistics.msds( store ) );
+	}
+
+	@Test
+	public void testNoTrack() throws Exception
+	{
+		assertEquals( 0, TrackStatistics.msds( new SPTTrackStore.Builder().build() ).length );
+	}
+
+	private static void assertMSDsEqual( final String message, final double[] expected, final double[] actual )
+	{
+		assertEquals( message, expected.length, actual.length );
+		for ( int k = 0; k < expected.length; k++ )
+			assertEquals( message + ", gap " + ( k + 1 ), expected[ k ], actual[ k ], 1e-8 * Math.max( 1., Math.abs( expected[ k ] ) ) );
+	}
+
+	/**
+	 * MSDs computed with the direct <code>O(N^2)</code> sum, virtual detections
+	 * included.
+	 */
+	private static double[] directMSDs( final SPTTrackStore store )
+	{
+		int maxLength = 0;
+		for ( int track = 0; track < store.numTracks(); track++ )
+			maxLength = Math.max( maxLength, store.length( track ) );
+		final int maxTGap = Math.max( 0, maxLength - 1 );
+		final double[] sums = new double[ maxTGap ];
+		final long[] counts = new long[ maxTGap ];
+		for ( int track = 0; track < store.numTracks(); track++ )
+		{
+			final int start = store.start( track );
+			final int n = store.length( track );
+			for ( int gap = 1; gap < n; gap++ )
+			{
+				for ( int t = 0; t < n - gap; t++ )
+				{
+					final double dx = store.x( start + t + gap ) - store.x( start + t );
+					final double dy = store.y( start + t + gap ) - store.y( start + t );
+					final double dz = store.z( start + t + gap ) - store.z( start + t );
+					sums[ gap - 1 ] += dx * dx + dy * dy + dz * dz;
+				}
+				counts[ gap - 1 ] += n - gap;
+			}
+		}
+		for ( int k = 0; k < maxTGap; k++ )
+			if ( counts[ k ] > 0 )
+				sums[ k ] /= counts[ k ];
+		return sums;
+	}
+
+	/**
+	 * Random walks of lengths around the FFT threshold, with gaps filled by
+	 * virtual detections.
+	 */
+	private static SPTTrackStore tracks( final Random ran, final boolean is3D )
+	{
+		final SPTTrackStore.Builder builder = new SPTTrackStore.Builder();
+		int id = 0;
+		for ( final int length : LENGTHS )
+		{
+			for ( int i = 0; i < 3; i++ )
+			{
+				double x = 100. * ran.nextDouble();
+				double y = 100. * ran.nextDouble();
+				double z = is3D ? 10. * ran.nextDouble() : 0.;
+				int t = ran.nextInt( 10 );
+				for ( int d = 0; d < length; d++ )
+				{
+					builder.addDetection( t, x, y, z );
+					x += ran.nextGaussian();
+					y += ran.nextGaussian();
+					if ( is3D )
+						z += 0.3 * ran.nextGaussian();
+					t += ( ran.nextDouble() < 0.15 ) ? 2 + ran.nextInt( 3 ) : 1;
+				}
+				builder.endTrack( id++ );
+			}
+		}
+		return builder.build();
+	}
+}
@@ -0,0 +1,220 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.helper.spt.measure;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.helper.spt.ISBIScoring;
+
+/**
+ * Checks that pairing tracks with the detection distances of a
+ * {@link DetectionDistanceCache} gives the same pairing and scores as
+ * computing the distances for the gate.
+ */
+public class TrackStoreMatcherTest
+{
+
+	/**
+	 * Offsets of the candidate detections from the reference detections. With
+	 * integer positions, some of them are exactly at a distance of 5, and some
+	 * exactly at a distance of 1.
+	 */
+	private static final double[][] OFFSETS = new double[][] {
+			{ 0., 0. },
+			{ 1., 0. },
+			{ 0., -1. },
+			{ 1., 1. },
+			{ 2., -1. },
+			{ 3., 4. },
+			{ -4., 3. },
+			{ 0., 5. },
+			{ -5., 0. },
+			{ 3., 4. + 1e-9 },
+			{ 6., 0. } };
+
+	private static final double[] GATES = new double[] { 5., 1., 2.5, Math.sqrt( 2. ) };
+
+	@Test
+	public void testSamePairingAsUncached() throws Exception
+	{
+		for ( long seed = 1; seed <= 10; seed++ )
+		{
+			final Scene scene = new Scene( new Random( seed ) );
+			final TrackStoreMatcher matcher = new TrackStoreMatcher( scene.refs, scene.candidates );
+			for ( final double gate : GATES )
+			{
+				final String message = "seed " + seed + ", gate " + gate;
+				final DetectionDistanceCache cache = scene.cache( gate );
+				assertArrayEquals( message,
+						matcher.pairTracks( gate, DistanceTypes.DISTANCE_EUCLIDIAN ),
+						matcher.pairTracks( cache ) );
+
+				for ( final DistanceTypes distType : DistanceTypes.values() )
+				{
+					final double[] expected = ISBIScoring.score( scene.refs, scene.candidates, gate, distType );
+					final double[] actual = ISBIScoring.score( cache, scene.candidates, distType );
+					assertArrayEquals( message + ", " + distType, expected, actual, 0. );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDetectionsAtTheGate() throws Exception
+	{
+		/*
+		 * One reference track, and one candidate track with two detections
+		 * exactly at the gate, and one within the gate.
+		 */
+		final SPTTrackStore.Builder refBuilder = new SPTTrackStore.Builder()
+				.addDetection( 0, 0., 0., 0. )
+				.addDetection( 1, 1., 0., 0. )
+				.addDetection( 2, 2., 0., 0. );
+		refBuilder.endTrack( 0 );
+		final SPTTrackStore refs = refBuilder.build();
+		final SPTTrackStore.Builder builder = new SPTTrackStore.Builder()
+				.addDetection( 0, 3., 4., 0., 10 )
+				.addDetection( 1, 1., 5., 0., 11 )
+				.addDetection( 2, 2., 4.5, 0., 12 );
+		builder.endTrack( 0 );
+		final SPTTrackStore candidates = builder.build();
+		final DetectionDistanceCache cache = new DetectionDistanceCache( refs, 5.,
+				new int[] { 10, 11, 12 },
+				new int[] { 0, 1, 2 },
+				new double[] { 3., 1., 2. },
+				new double[] { 4., 5., 4.5 },
+				new double[] { 0., 0., 0. } );
+
+		final TrackStoreMatcher matcher = new TrackStoreMatcher( refs, candidates );
+		assertArrayEquals( new int[] { 0 }, matcher.pairTracks( 5., DistanceTypes.DISTANCE_EUCLIDIAN ) );
+		assertArrayEquals( new int[] { 0 }, matcher.pairTracks( cache ) );
+		for ( final DistanceTypes distType : DistanceTypes.values() )
+			assertArrayEquals( ISBIScoring.score( refs, candidates, 5., distType ), ISBIScoring.score( cache, candidates, distType ), 0. );
+	}
+
+	/**
+	 * Reference tracks on integer positions, and candidate tracks with
+	 * detections at fixed offsets of the reference detections, with gaps,
+	 * broken tracks, spurious tracks and detections that are not in a track.
+	 */
+	private static final class Scene
+	{
+
+		private final SPTTrackStore refs;
+
+		private final SPTTrackStore candidates;
+
+		private int[] ids = new int[ 0 ];
+
+		private int[] frames = new int[ 0 ];
+
+		private double[] x = new double[ 0 ];
+
+		private double[] y = new double[ 0 ];
+
+		private int n = 0;
+
+		private Scene( final Random ran )
+		{
+			final SPTTrackStore.Builder refBuilder = new SPTTrackStore.Builder();
+			for ( int r = 0; r < 20; r++ )
+			{
+				final int first = ran.nextInt( 20 );
+				final int last = first + 3 + ran.nextInt( 20 );
+				int px = ran.nextInt( 30 );
+				int py = ran.nextInt( 30 );
+				for ( int t = first; t <= last; t++ )
+				{
+					refBuilder.addDetection( t, px, py, 0. );
+					px += ran.nextInt( 5 ) - 2;
+					py += ran.nextInt( 5 ) - 2;
+				}
+				refBuilder.endTrack( r );
+			}
+			this.refs = refBuilder.build();
+
+			final SPTTrackStore.Builder builder = new SPTTrackStore.Builder();
+			for ( int r = 0; r < refs.numTracks(); r++ )
+			{
+				for ( int d = refs.start( r ); d < refs.end( r ); d++ )
+				{
+					final double rand = ran.nextDouble();
+					final int t = refs.frame( r, d );
+					final double[] offset = OFFSETS[ ran.nextInt( OFFSETS.length ) ];
+					if ( rand < 0.1 )
+						continue;
+					if ( rand < 0.15 )
+						builder.endTrack( -1 );
+					if ( rand < 0.2 )
+						// Not in a track.
+						add( t, refs.x( d ) + offset[ 1 ], refs.y( d ) + offset[ 0 ] );
+					builder.addDetection( t, refs.x( d ) + offset[ 0 ], refs.y( d ) + offset[ 1 ], 0., add( t, refs.x( d ) + offset[ 0 ], refs.y( d ) + offset[ 1 ] ) );
+				}
+				builder.endTrack( -1 );
+			}
+			for ( int s = 0; s < 5; s++ )
+			{
+				final int first = ran.nextInt( 20 );
+				final int px = ran.nextInt( 30 );
+				final int py = ran.nextInt( 30 );
+				for ( int t = first; t < first + 5; t++ )
+					builder.addDetection( t, px, py + t - first, 0., add( t, px, py + t - first ) );
+				builder.endTrack( -1 );
+			}
+			this.candidates = builder.build();
+		}
+
+		private int add( final int t, final double px, final double py )
+		{
+			if ( n == ids.length )
+			{
+				final int capacity = Math.max( 16, 2 * n );
+				ids = Arrays.copyOf( ids, capacity );
+				frames = Arrays.copyOf( frames, capacity );
+				x = Arrays.copyOf( x, capacity );
+				y = Arrays.copyOf( y, capacity );
+			}
+			final int id = 1000 + n;
+			ids[ n ] = id;
+			frames[ n ] = t;
+			x[ n ] = px;
+			y[ n ] = py;
+			n++;
+			return id;
+		}
+
+		private DetectionDistanceCache cache( final double gate )
+		{
+			return new DetectionDistanceCache( refs, gate,
+					Arrays.copyOf( ids, n ),
+					Arrays.copyOf( frames, n ),
+					Arrays.copyOf( x, n ),
+					Arrays.copyOf( y, n ),
+					new double[ n ] );
+		}
+	}
+}